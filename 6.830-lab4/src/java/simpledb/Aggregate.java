@@ -1,22 +1,86 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import simpledb.Aggregator.Op;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min).  Note that we only support aggregates over a single column, grouped
- * by a single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min).  Any number of aggregates, grouped by any number of columns, are
+ * computed together in a single pass over the child.
+ * <p>
+ * Groups are kept in memory up to a memory budget. Once the groups outgrow
+ * the budget, tuples of groups that are already in memory keep being merged
+ * there, and tuples of new groups are hash-partitioned into temporary
+ * {@link SpillFile}s. Each partition is then aggregated on its own (and
+ * partitioned again if it is still too big) after the in-memory groups have
+ * been returned.
+ * <p>
+ * If the child is a plain {@link SeqScan} over a HeapFile and a parallelism
+ * greater than one is set, the aggregate runs in two phases instead: each of
+ * N worker threads aggregates morsels (small page ranges) of the table into
+ * its own partial aggregator, and the partial states are then combined into
+ * one. Each partial aggregator gets an equal share of the memory budget;
+ * if one outgrows its share, or the combined groups outgrow the budget, the
+ * partials are dropped and the child is aggregated serially, spilling as
+ * above.
+ * <p>
+ * An aggregate with no grouping over a plain SeqScan that only computes
+ * COUNT, MIN and MAX does not read the tuples at all if it can help it:
+ * COUNT is the sum of the used slots in the page headers, and MIN and MAX
+ * of an INT field come from the table's {@link ZoneMap}, reading only the
+ * pages whose range could hold the answer. Without a zone map MIN and MAX
+ * fall back to aggregating the tuples.
  */
 public class Aggregate extends Operator {
+    /** Default memory budget for the groups of one Aggregate, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    /** Number of partitions a spilling aggregate splits its overflow into. */
+    static final int SPILL_FANOUT = 16;
+
+    /** Partitions at this depth are aggregated in memory regardless of size. */
+    static final int MAX_SPILL_DEPTH = 6;
+
+    /**
+     * Default number of worker threads, set with the system property
+     * simpledb.AggregateParallelism (e.g. -Dsimpledb.AggregateParallelism=4).
+     */
+    public static final int DEFAULT_PARALLELISM =
+        Integer.getInteger("simpledb.AggregateParallelism", 1);
+
+    /** Worker threads shared by all parallel aggregates; idle ones exit. */
+    private static final ExecutorService WORKERS =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-aggregate-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
     private DbIterator child;
     private DbIterator aggregatedChild;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
     private Aggregator aggregator;
+    private Type[] gbFieldTypes;
+    private Type[] aFieldTypes;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    // partitions (and their depth) that still have to be aggregated
+    private LinkedList<SpillFile> pendingPartitions = new LinkedList<SpillFile>();
+    private LinkedList<Integer> pendingDepths = new LinkedList<Integer>();
+    private boolean spilled = false;
+    private boolean fromMetadata = false;
+    private boolean parallel = false;
     
     /**
      * Constructor.  
@@ -31,27 +95,113 @@ public class Aggregate extends Operator {
      * @param aop The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[] { afield },
+             gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+             new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key.
+     *
+     * @param child The DbIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result; empty if there is no grouping
+     * @param aops The aggregation operator to use for each of afields
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one aggregation operator per aggregate field");
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields;
+        this.gfields = gfields;
+        this.aops = aops;
 
-        Type gbFieldType;
-        Type aFieldType = child.getTupleDesc().getFieldType(afield);
+        TupleDesc childTd = child.getTupleDesc();
+        aFieldTypes = new Type[afields.length];
+        for (int i = 0; i < afields.length; i++)
+            aFieldTypes[i] = childTd.getFieldType(afields[i]);
+        gbFieldTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gbFieldTypes[i] = childTd.getFieldType(gfields[i]);
 
-        if (gfield==Aggregator.NO_GROUPING) {
-            gbFieldType = null;
-        } else {
-            gbFieldType = child.getTupleDesc().getFieldType(gfield);
-        }
-        
-        if (aFieldType == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gfield, gbFieldType, afield, aop);
-        } else if (aFieldType == Type.STRING_TYPE) {
-            aggregator = new StringAggregator(gfield, gbFieldType, afield, aop);
-        }
-            
-        }
+        aggregator = newAggregator();
+    }
+
+    private boolean isSimple() {
+        return afields.length == 1 && gfields.length <= 1;
+    }
+
+    private Aggregator newAggregator() {
+        if (!isSimple())
+            return new MultiAggregator(child.getTupleDesc(), gfields, afields, aops);
+
+        int gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+        Type gbFieldType = gfields.length == 0 ? null : gbFieldTypes[0];
+        if (aFieldTypes[0] == Type.STRING_TYPE)
+            return new StringAggregator(gfield, gbFieldType, afields[0], aops[0]);
+        return new IntegerAggregator(gfield, gbFieldType, afields[0], aops[0]);
+    }
+
+    /**
+     * Set the number of bytes the groups of this aggregate may use before
+     * it starts spilling to disk.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of worker threads used to aggregate a SeqScan child.
+     * With 1 the child is aggregated on the calling thread.
+     */
+    public void setParallelism(int workers) {
+        parallelism = Math.max(1, workers);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the index of the group by field in the child's tuples, or
+     *         {@link Aggregator#NO_GROUPING}; with a composite group key,
+     *         the first of its fields
+     */
+    public int groupField() {
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the name of the field returned by groupField(), or null if
+     *         there is no grouping
+     */
+    public String groupFieldName() {
+        if (gfields.length == 0)
+            return null;
+        return child.getTupleDesc().getFieldName(gfields[0]);
+    }
+
+    /**
+     * @return the index of the aggregated field in the child's tuples; with
+     *         several aggregates, that of the first
+     */
+    public int aggregateField() {
+        return afields[0];
+    }
+
+    /** @return the name of the field returned by aggregateField() */
+    public String aggregateFieldName() {
+        return child.getTupleDesc().getFieldName(afields[0]);
+    }
+
+    /** @return the operator of the aggregate returned by aggregateField() */
+    public Aggregator.Op aggregateOp() {
+        return aops[0];
+    }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         switch (aop) {
@@ -71,34 +221,376 @@ public class Aggregate extends Operator {
 
     public void open()
         throws NoSuchElementException, DbException, TransactionAbortedException {
-        child.open();
-        
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        fromMetadata = canAggregateFromMetadata();
+        if (fromMetadata) {
+            aggregatedChild = new TupleIterator(getTupleDesc(), aggregateFromMetadata((SeqScan)child));
+            aggregatedChild.open();
+            return;
+        }
+        parallel = canAggregateInParallel();
+        if (!parallel)
+            child.open();
+        aggregateInput();
+    }
+
+    /**
+     * @return true if every aggregate can be answered from the page headers
+     *         and the zone map of the table the child scans
+     */
+    private boolean canAggregateFromMetadata() {
+        if (gfields.length > 0 || !(child instanceof SeqScan))
+            return false;
+        SeqScan scan = (SeqScan)child;
+        if (scan.getPredicates().length > 0 || scan.getJoinFilters().length > 0)
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof HeapFile))
+            return false;
+        ZoneMap zm = ((HeapFile)file).getZoneMap();
+        for (int i = 0; i < aops.length; i++) {
+            if (aops[i] == Op.COUNT)
+                continue;
+            if ((aops[i] != Op.MIN && aops[i] != Op.MAX)
+                    || aFieldTypes[i] != Type.INT_TYPE || zm == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compute the aggregates from metadata (see canAggregateFromMetadata).
+     *
+     * @return the single result tuple, or no tuple if the table is empty,
+     *         as when the tuples are aggregated
+     */
+    private ArrayList<Tuple> aggregateFromMetadata(SeqScan scan)
+            throws DbException, TransactionAbortedException {
+        TransactionId tid = scan.getTransactionId();
+        HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(scan.getTableId());
+        int start = scan.getStartPage();
+        int end = scan.getEndPage() < 0 ? file.numPages()
+            : Math.min(scan.getEndPage(), file.numPages());
+
+        long count = 0;
+        for (int p = start; p < end; p++) {
+            HeapPageId pid = new HeapPageId(file.getId(), p);
+            count += ((HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY))
+                .getNumUsedSlots();
+        }
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        if (count == 0)
+            return result;
+
+        Tuple t = new Tuple(getTupleDesc());
+        for (int i = 0; i < aops.length; i++) {
+            int v;
+            if (aops[i] == Op.COUNT)
+                v = (int)count;
+            else
+                v = extremeFromZoneMap(tid, file, start, end, afields[i], aops[i] == Op.MAX);
+            t.setField(i, new IntField(v));
+        }
+        result.add(t);
+        return result;
+    }
+
+    /**
+     * Find the MIN or MAX of an INT field on pages [start, end) of a file
+     * with a zone map. Pages are read in order of their zone map bound, best
+     * first, until no remaining page can beat the best value found; since the
+     * bounds are exact unless tuples were deleted, that is usually one page.
+     * Pages that never held a tuple have the worst possible bound.
+     */
+    private int extremeFromZoneMap(TransactionId tid, HeapFile file, int start, int end,
+            int field, final boolean max) throws DbException, TransactionAbortedException {
+        final ZoneMap zm = file.getZoneMap();
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int p = start; p < end; p++)
+            pages.add(p);
+        final int f = field;
+        Collections.sort(pages, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (max)
+                    return compareInts(zm.getMax(b, f), zm.getMax(a, f));
+                return compareInts(zm.getMin(a, f), zm.getMin(b, f));
+            }
+        });
+
+        boolean[] columns = new boolean[file.getTupleDesc().numFields()];
+        columns[field] = true;
+        boolean found = false;
+        int best = 0;
+        for (int p : pages) {
+            int bound = max ? zm.getMax(p, field) : zm.getMin(p, field);
+            if (found && (max ? bound <= best : bound >= best))
+                break;
+            HeapPageId pid = new HeapPageId(file.getId(), p);
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator(null, null, columns);
+            while (it.hasNext()) {
+                int v = ((IntField)it.next().getField(field)).getValue();
+                if (!found || (max ? v > best : v < best)) {
+                    best = v;
+                    found = true;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static int compareInts(int a, int b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * Aggregate the whole child, spilling if needed, and open the results
+     * of the in-memory groups.
+     */
+    private void aggregateInput() throws DbException, TransactionAbortedException {
+        closeAggregatedChild();
+        deletePendingPartitions();
+        spilled = false;
+        if (parallel) {
+            aggregator = aggregateInParallel((SeqScan)child);
+            if (aggregator == null) {
+                // the groups outgrew the budget; the serial path spills
+                parallel = false;
+                child.open();
+            }
+        }
+        if (parallel) {
+            aggregatedChild = aggregator.iterator();
+        } else {
+            aggregator = newAggregator();
+            aggregatedChild = aggregate(aggregator, child, 0);
         }
-        aggregatedChild = aggregator.iterator();
         aggregatedChild.open();
     }
 
+    private boolean canAggregateInParallel() {
+        if (parallelism <= 1 || !(child instanceof SeqScan))
+            return false;
+        SeqScan scan = (SeqScan)child;
+        return Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile;
+    }
+
+    /**
+     * Two-phase aggregation of a SeqScan: split the table into morsels of
+     * {@link ParallelScan#DEFAULT_MORSEL_PAGES} pages, let each worker thread
+     * take morsels one at a time and aggregate them into its own partial
+     * aggregator, and combine the partial aggregators.
+     *
+     * @return the combined aggregator, or null if the groups did not fit in
+     *         the memory budget
+     */
+    private Aggregator aggregateInParallel(final SeqScan scan)
+            throws DbException, TransactionAbortedException {
+        HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(scan.getTableId());
+        final int start = scan.getStartPage();
+        final int end = scan.getEndPage() < 0 ? file.numPages()
+            : Math.min(scan.getEndPage(), file.numPages());
+        final int morselPages = ParallelScan.DEFAULT_MORSEL_PAGES;
+        final int numMorsels = Math.max(0, (end - start + morselPages - 1) / morselPages);
+        final AtomicInteger nextMorsel = new AtomicInteger();
+        final AtomicBoolean overBudget = new AtomicBoolean();
+        int workers = Math.max(1, Math.min(parallelism, numMorsels));
+        // only grouped aggregates spill, so only they are held to the budget
+        final long share = gfields.length > 0 ? memoryBudget / workers : Long.MAX_VALUE;
+
+        ArrayList<Future<Aggregator>> partials = new ArrayList<Future<Aggregator>>();
+        for (int w = 0; w < workers; w++) {
+            partials.add(WORKERS.submit(new Callable<Aggregator>() {
+                public Aggregator call() throws Exception {
+                    Aggregator partial = newAggregator();
+                    int m;
+                    while (!overBudget.get() && (m = nextMorsel.getAndIncrement()) < numMorsels) {
+                        int first = start + m * morselPages;
+                        SeqScan range = scan.morsel(first, Math.min(end, first + morselPages));
+                        range.open();
+                        try {
+                            TupleBatch batch;
+                            while (!overBudget.get() && (batch = range.nextBatch()) != null) {
+                                partial.mergeBatch(batch);
+                                if (partial.memoryUsage() > share)
+                                    overBudget.set(true);
+                            }
+                        } finally {
+                            range.close();
+                        }
+                    }
+                    return partial;
+                }
+            }));
+        }
+
+        Aggregator result = newAggregator();
+        try {
+            for (Future<Aggregator> f : partials) {
+                Aggregator partial = f.get();
+                if (!overBudget.get())
+                    result.combine(partial);
+            }
+        } catch (InterruptedException e) {
+            cancel(partials);
+            throw new DbException("interrupted while aggregating");
+        } catch (ExecutionException e) {
+            cancel(partials);
+            Throwable cause = e.getCause();
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException)cause;
+            if (cause instanceof DbException)
+                throw (DbException)cause;
+            throw new DbException("error in aggregate worker: " + cause);
+        }
+        // the combined groups are no more than the partials held
+        return overBudget.get() ? null : result;
+    }
+
+    private static void cancel(List<Future<Aggregator>> partials) {
+        for (Future<Aggregator> f : partials)
+            f.cancel(true);
+    }
+
     /**
-     * Returns the next tuple.  If there is a group by field, then 
-     * the first field is the field by which we are
-     * grouping, and the second field is the result of computing the aggregate,
-     * If there is no group by field, then the result tuple should contain
-     * one field representing the result of the aggregate.
+     * Merge every tuple of input into agg. Once agg uses more than the
+     * memory budget, tuples of groups that are not in agg yet are written to
+     * SPILL_FANOUT partitions, which are queued in pendingPartitions.
+     * <p>
+     * The input is read a batch at a time. While nothing is spilled whole
+     * batches are merged, and the budget is checked after each batch, so
+     * agg may exceed the budget by the groups of one batch.
+     *
+     * @return an iterator over the groups held in agg
+     */
+    private DbIterator aggregate(Aggregator agg, DbIterator input, int depth)
+            throws DbException, TransactionAbortedException {
+        SpillFile[] partitions = null;
+        boolean done = false;
+        try {
+            TupleBatch batch;
+            while ((batch = TupleBatch.read(input)) != null) {
+                if (partitions == null) {
+                    agg.mergeBatch(batch);
+                    if (gfields.length > 0 && depth < MAX_SPILL_DEPTH
+                            && agg.memoryUsage() > memoryBudget)
+                        partitions = new SpillFile[SPILL_FANOUT];
+                    continue;
+                }
+                for (int i = 0; i < batch.numSelected(); i++) {
+                    Tuple t = batch.getTuple(batch.selected(i));
+                    if (agg.hasGroup(t)) {
+                        agg.mergeTupleIntoGroup(t);
+                    } else {
+                        int p = partitionOf(t, depth);
+                        if (partitions[p] == null)
+                            partitions[p] = new SpillFile(input.getTupleDesc());
+                        partitions[p].add(t);
+                    }
+                }
+            }
+            done = true;
+        } catch (IOException e) {
+            throw new DbException("error spilling aggregate partition: " + e.getMessage());
+        } finally {
+            // partitions are only queued (and deleted later) on success
+            if (!done && partitions != null)
+                for (SpillFile f : partitions)
+                    if (f != null)
+                        f.delete();
+        }
+
+        if (partitions != null) {
+            spilled = true;
+            for (SpillFile f : partitions) {
+                if (f != null) {
+                    pendingPartitions.add(f);
+                    pendingDepths.add(depth + 1);
+                }
+            }
+        }
+        return agg.iterator();
+    }
+
+    /**
+     * Pick the partition of the group of a tuple. Each depth uses different
+     * bits of the hash, so a partition that spills again is split further.
+     */
+    private int partitionOf(Tuple t, int depth) {
+        int h = 0;
+        for (int i = 0; i < gfields.length; i++)
+            h = h * 31 + t.getField(gfields[i]).hashCode();
+        h *= 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h >>> (depth * 4)) & (SPILL_FANOUT - 1);
+    }
+
+    /**
+     * Aggregate the next pending partition and open its results.
+     *
+     * @return false if there are no partitions left
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (pendingPartitions.isEmpty())
+            return false;
+
+        closeAggregatedChild();
+        SpillFile f = pendingPartitions.removeFirst();
+        int depth = pendingDepths.removeFirst();
+        DbIterator in = null;
+        try {
+            in = f.iterator();
+            in.open();
+            aggregator = newAggregator();
+            aggregatedChild = aggregate(aggregator, in, depth);
+        } catch (IOException e) {
+            throw new DbException("error reading aggregate partition: " + e.getMessage());
+        } finally {
+            if (in != null)
+                in.close();
+            f.delete();
+        }
+        aggregatedChild.open();
+        return true;
+    }
+
+    private void deletePendingPartitions() {
+        for (SpillFile f : pendingPartitions)
+            f.delete();
+        pendingPartitions.clear();
+        pendingDepths.clear();
+    }
+
+    /**
+     * Returns the next tuple.  The group by fields come first, followed by
+     * the result of each aggregate in the order given to the constructor.
+     * If there is no group by field, then the result tuple contains just
+     * the aggregate results.
      * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        while(aggregatedChild.hasNext())
-        {
-            return aggregatedChild.next();
+        while (true) {
+            if (aggregatedChild.hasNext())
+                return aggregatedChild.next();
+            if (!nextPartition())
+                return null;
         }
-        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        if (fromMetadata || parallel) {
+            // the workers scanned the table themselves; the child is not open
+            aggregatedChild.rewind();
+            return;
+        }
         child.rewind();
-        aggregatedChild.rewind();
+        if (spilled) {
+            // the groups were only ever in memory one partition at a time
+            aggregateInput();
+        } else {
+            aggregatedChild.rewind();
+        }
     }
 
     /**
@@ -113,6 +605,11 @@ public class Aggregate extends Operator {
      * of the child iterator. 
      */
     public TupleDesc getTupleDesc() {
+        if (!isSimple())
+            return MultiAggregator.resultTupleDesc(child.getTupleDesc(), gfields, afields, aops);
+
+        int afield = afields[0];
+        int gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
         if(gfield==Aggregator.NO_GROUPING)
         {
             Type[] typeAr = {child.getTupleDesc().getFieldType(afield)};
@@ -135,6 +632,23 @@ public class Aggregate extends Operator {
     }
 
     public void close() {
+        super.close();
         child.close();
+        closeAggregatedChild();
+        deletePendingPartitions();
+    }
+
+    private void closeAggregatedChild() {
+        if (aggregatedChild != null)
+            aggregatedChild.close();
+        aggregatedChild = null;
+    }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
     }
 }
@@ -0,0 +1,479 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * AggregationTable is an open-addressing hash table used by the aggregators
+ * to keep running aggregates per group.
+ * <p>
+ * A group key is made of zero or more group by columns, each stored as a
+ * primitive int: IntField group values are used directly, and StringField
+ * group values are dictionary-encoded (one dictionary per column) into dense
+ * int codes first. Each group has one set of accumulators (sum, count, min,
+ * max) per aggregated column; the accumulators are kept in parallel
+ * primitive arrays indexed by group * numColumns + column, so merging a tuple
+ * costs one probe and never allocates a Field. Sums are 64-bit, so SUM and
+ * AVG do not overflow while accumulating; a SUM or COUNT that does not fit
+ * in the int result column throws ArithmeticException rather than wrapping.
+ * <p>
+ * Groups are numbered 0..numGroups()-1 in the order they were first seen.
+ */
+public class AggregationTable {
+
+    private static final int INITIAL_GROUPS = 16;
+    private static final int EMPTY = -1;
+
+    // rough heap cost of one dictionary entry: the String, its char array
+    // and the HashMap/ArrayList entries pointing at it
+    private static final long DICTIONARY_ENTRY_BYTES = 2L * Type.STRING_LEN + 96;
+
+    private final Type[] gbfieldtypes;
+    private final int keyWidth;
+    private final int numColumns;
+
+    // open-addressing slots; each holds a group number or EMPTY
+    private int[] slots;
+    private int mask;
+
+    // per-group state: keys indexed by group * keyWidth + i, accumulators
+    // by group * numColumns + column
+    private int[] keys;
+    private long[] sums;
+    private long[] counts;
+    private int[] mins;
+    private int[] maxs;
+    private int capacity;
+    private int numGroups;
+
+    // per string column dictionaries: value -> code, code -> value
+    private ArrayList<HashMap<String, Integer>> dictionaries;
+    private ArrayList<ArrayList<String>> dictionaryValues;
+
+    // scratch buffer for the key being looked up
+    private final int[] probe;
+
+    /**
+     * Constructor for a table with at most one group by column and one
+     * aggregated column.
+     *
+     * @param gbfieldtype the type of the group by field, or null if there is
+     *            no grouping (all tuples fall into one group)
+     */
+    public AggregationTable(Type gbfieldtype) {
+        this(gbfieldtype == null ? new Type[0] : new Type[] { gbfieldtype }, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param gbfieldtypes the types of the group by columns; empty if there
+     *            is no grouping (all tuples fall into one group)
+     * @param numColumns the number of aggregated columns kept per group
+     */
+    public AggregationTable(Type[] gbfieldtypes, int numColumns) {
+        this.gbfieldtypes = gbfieldtypes;
+        this.keyWidth = gbfieldtypes.length;
+        this.numColumns = numColumns;
+        probe = new int[keyWidth];
+        dictionaries = new ArrayList<HashMap<String, Integer>>();
+        dictionaryValues = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i < keyWidth; i++) {
+            boolean str = gbfieldtypes[i] == Type.STRING_TYPE;
+            dictionaries.add(str ? new HashMap<String, Integer>() : null);
+            dictionaryValues.add(str ? new ArrayList<String>() : null);
+        }
+        clear();
+    }
+
+    /** Drop all groups. */
+    public void clear() {
+        slots = new int[INITIAL_GROUPS * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        capacity = INITIAL_GROUPS;
+        keys = new int[INITIAL_GROUPS * keyWidth];
+        sums = new long[INITIAL_GROUPS * numColumns];
+        counts = new long[INITIAL_GROUPS * numColumns];
+        mins = new int[INITIAL_GROUPS * numColumns];
+        maxs = new int[INITIAL_GROUPS * numColumns];
+        numGroups = 0;
+        for (int i = 0; i < keyWidth; i++) {
+            if (dictionaries.get(i) != null) {
+                dictionaries.get(i).clear();
+                dictionaryValues.get(i).clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct groups in the table
+     */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @return the number of aggregated columns kept per group
+     */
+    public int numColumns() {
+        return numColumns;
+    }
+
+    /**
+     * @return an estimate of the number of bytes of heap held by this table,
+     *   used to decide when an aggregate has to spill to disk
+     */
+    public long memoryUsage() {
+        long bytes = 4L * slots.length + 4L * keys.length + 24L * sums.length;
+        for (int i = 0; i < keyWidth; i++)
+            if (dictionaryValues.get(i) != null)
+                bytes += DICTIONARY_ENTRY_BYTES * dictionaryValues.get(i).size();
+        return bytes;
+    }
+
+    /**
+     * Encode a group by value as the primitive key used by this table.
+     * Strings are assigned a new dictionary code the first time they are
+     * seen.
+     *
+     * @param gbField the group by value, ignored if there is no grouping
+     */
+    public int encode(Field gbField) {
+        if (keyWidth == 0)
+            return 0;
+        return encode(0, gbField, true);
+    }
+
+    // encode the value of group by column i; returns -1 for a string that
+    // is not in the dictionary if insert is false
+    private int encode(int i, Field f, boolean insert) {
+        if (gbfieldtypes[i] == Type.INT_TYPE)
+            return ((IntField) f).getValue();
+        return encode(i, ((StringField) f).getValue(), insert);
+    }
+
+    private int encode(int i, String s, boolean insert) {
+        Integer code = dictionaries.get(i).get(s);
+        if (code == null) {
+            if (!insert)
+                return -1;
+            code = dictionaryValues.get(i).size();
+            dictionaries.get(i).put(s, code);
+            dictionaryValues.get(i).add(s);
+        }
+        return code;
+    }
+
+    /**
+     * Return the group number for the specified group by value, or -1 if
+     * there is no such group. Never creates a group.
+     */
+    public int find(Field gbField) {
+        if (keyWidth == 0)
+            return lookup(false);
+        int key = encode(0, gbField, false);
+        if (key == -1 && gbfieldtypes[0] == Type.STRING_TYPE)
+            return -1;
+        probe[0] = key;
+        return lookup(false);
+    }
+
+    /**
+     * Return the group number for the group by columns gbfields of a tuple,
+     * or -1 if there is no such group. Never creates a group.
+     */
+    public int find(Tuple tup, int[] gbfields) {
+        for (int i = 0; i < keyWidth; i++) {
+            int key = encode(i, tup.getField(gbfields[i]), false);
+            if (key == -1 && gbfieldtypes[i] == Type.STRING_TYPE)
+                return -1;
+            probe[i] = key;
+        }
+        return lookup(false);
+    }
+
+    /**
+     * Return the group number for the specified group by value, creating an
+     * empty group if it has not been seen yet.
+     */
+    public int findOrInsert(Field gbField) {
+        return findOrInsertKey(encode(gbField));
+    }
+
+    /**
+     * Return the group number for the group by columns gbfields of a tuple,
+     * creating an empty group if it has not been seen yet.
+     */
+    public int findOrInsert(Tuple tup, int[] gbfields) {
+        for (int i = 0; i < keyWidth; i++)
+            probe[i] = encode(i, tup.getField(gbfields[i]), true);
+        return lookup(true);
+    }
+
+    /**
+     * Return the group number for the group by columns gbfields of a row of
+     * a batch, creating an empty group if it has not been seen yet.
+     */
+    public int findOrInsert(TupleBatch b, int row, int[] gbfields) {
+        for (int i = 0; i < keyWidth; i++) {
+            if (gbfieldtypes[i] == Type.INT_TYPE)
+                probe[i] = b.getInt(gbfields[i], row);
+            else
+                probe[i] = encode(i, b.getString(gbfields[i], row), true);
+        }
+        return lookup(true);
+    }
+
+    /**
+     * Return the group number for the specified (already encoded) key of a
+     * table with at most one group by column, creating an empty group if it
+     * has not been seen yet.
+     */
+    public int findOrInsertKey(int key) {
+        if (keyWidth > 0)
+            probe[0] = key;
+        return lookup(true);
+    }
+
+    // find the group whose key is in probe, inserting it if asked to
+    private int lookup(boolean insert) {
+        int slot = hash(probe) & mask;
+        while (true) {
+            int g = slots[slot];
+            if (g == EMPTY)
+                break;
+            if (keyEquals(g))
+                return g;
+            slot = (slot + 1) & mask;
+        }
+        if (!insert)
+            return -1;
+
+        if (numGroups == capacity)
+            growGroups();
+        int g = numGroups++;
+        System.arraycopy(probe, 0, keys, g * keyWidth, keyWidth);
+        for (int c = g * numColumns; c < (g + 1) * numColumns; c++) {
+            sums[c] = 0;
+            counts[c] = 0;
+            mins[c] = Integer.MAX_VALUE;
+            maxs[c] = Integer.MIN_VALUE;
+        }
+        slots[slot] = g;
+
+        // keep the load factor at or below one half
+        if (numGroups * 2 > slots.length)
+            rehash(slots.length * 2);
+        return g;
+    }
+
+    private boolean keyEquals(int group) {
+        int base = group * keyWidth;
+        for (int i = 0; i < keyWidth; i++)
+            if (keys[base + i] != probe[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Fold an integer value into the accumulators of a group.
+     */
+    public void merge(int group, int value) {
+        merge(group, 0, value);
+    }
+
+    /**
+     * Fold an integer value into the accumulators of one aggregated column
+     * of a group.
+     */
+    public void merge(int group, int column, int value) {
+        int c = group * numColumns + column;
+        sums[c] += value;
+        counts[c]++;
+        if (value < mins[c])
+            mins[c] = value;
+        if (value > maxs[c])
+            maxs[c] = value;
+    }
+
+    /**
+     * Count a tuple in a group without looking at its value; used for
+     * aggregates over non-integer fields, which only support COUNT.
+     */
+    public void increment(int group) {
+        increment(group, 0);
+    }
+
+    /**
+     * Count a tuple in one aggregated column of a group without looking at
+     * its value.
+     */
+    public void increment(int group, int column) {
+        counts[group * numColumns + column]++;
+    }
+
+    /**
+     * Fold all groups of another table into this one, as the final step of
+     * a two-phase aggregate. The other table must have the same group by
+     * types and number of columns; sums and counts add up, and mins and
+     * maxes are combined, so the result is the same as if every tuple had
+     * been merged into this table.
+     */
+    public void combine(AggregationTable other) {
+        for (int og = 0; og < other.numGroups; og++) {
+            for (int i = 0; i < keyWidth; i++) {
+                int key = other.keys[og * keyWidth + i];
+                if (gbfieldtypes[i] == Type.STRING_TYPE) // dictionaries differ
+                    key = encode(i, other.groupValue(og, i), true);
+                probe[i] = key;
+            }
+            int g = lookup(true);
+            for (int col = 0; col < numColumns; col++) {
+                int c = g * numColumns + col;
+                int oc = og * numColumns + col;
+                sums[c] += other.sums[oc];
+                counts[c] += other.counts[oc];
+                if (other.mins[oc] < mins[c])
+                    mins[c] = other.mins[oc];
+                if (other.maxs[oc] > maxs[c])
+                    maxs[c] = other.maxs[oc];
+            }
+        }
+    }
+
+    public int key(int group) {
+        return keys[group * keyWidth];
+    }
+
+    public long sum(int group) {
+        return sums[group * numColumns];
+    }
+
+    public long count(int group) {
+        return counts[group * numColumns];
+    }
+
+    public int min(int group) {
+        return mins[group * numColumns];
+    }
+
+    public int max(int group) {
+        return maxs[group * numColumns];
+    }
+
+    /**
+     * @return the value of the aggregate op over the specified group
+     */
+    public int aggregate(int group, Aggregator.Op op) {
+        return aggregate(group, 0, op);
+    }
+
+    /**
+     * @return the value of the aggregate op over one aggregated column of
+     *   the specified group
+     * @throws ArithmeticException if a SUM or COUNT does not fit in an int
+     */
+    public int aggregate(int group, int column, Aggregator.Op op) {
+        int c = group * numColumns + column;
+        switch (op) {
+        case MIN:
+            return mins[c];
+        case MAX:
+            return maxs[c];
+        case SUM:
+            return toInt(sums[c], op);
+        case AVG:
+            return (int) (sums[c] / counts[c]);
+        case COUNT:
+            return toInt(counts[c], op);
+        }
+        throw new IllegalArgumentException("unknown aggregate op " + op);
+    }
+
+    private static int toInt(long v, Aggregator.Op op) {
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+            throw new ArithmeticException(op + " " + v + " overflows an int");
+        return (int) v;
+    }
+
+    /**
+     * Decode the group by value of a group back into a Field.
+     *
+     * @return the group by value, or null if there is no grouping
+     */
+    public Field groupValue(int group) {
+        if (keyWidth == 0)
+            return null;
+        return groupValue(group, 0);
+    }
+
+    /**
+     * Decode the value of group by column i of a group back into a Field.
+     */
+    public Field groupValue(int group, int i) {
+        int key = keys[group * keyWidth + i];
+        if (gbfieldtypes[i] == Type.INT_TYPE)
+            return new IntField(key);
+        return new StringField(dictionaryValues.get(i).get(key), Type.STRING_LEN);
+    }
+
+    /**
+     * Build the result tuples, one per group, as (groupVal, aggregateVal)
+     * or a single (aggregateVal) if there is no grouping.
+     */
+    public ArrayList<Tuple> results(TupleDesc td, Aggregator.Op op) {
+        return results(td, new Aggregator.Op[] { op });
+    }
+
+    /**
+     * Build the result tuples, one per group. Each tuple holds the group by
+     * values followed by ops[i] over aggregated column i for every column.
+     */
+    public ArrayList<Tuple> results(TupleDesc td, Aggregator.Op[] ops) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < keyWidth; i++)
+                t.setField(i, groupValue(g, i));
+            for (int col = 0; col < ops.length; col++)
+                t.setField(keyWidth + col, new IntField(aggregate(g, col, ops[col])));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(int[] key) {
+        int h = 0;
+        for (int i = 0; i < key.length; i++)
+            h = hash(h * 31 + key[i]);
+        return h;
+    }
+
+    private void growGroups() {
+        capacity *= 2;
+        keys = Arrays.copyOf(keys, capacity * keyWidth);
+        sums = Arrays.copyOf(sums, capacity * numColumns);
+        counts = Arrays.copyOf(counts, capacity * numColumns);
+        mins = Arrays.copyOf(mins, capacity * numColumns);
+        maxs = Arrays.copyOf(maxs, capacity * numColumns);
+    }
+
+    private void rehash(int size) {
+        slots = new int[size];
+        Arrays.fill(slots, EMPTY);
+        mask = size - 1;
+        int[] key = new int[keyWidth];
+        for (int g = 0; g < numGroups; g++) {
+            System.arraycopy(keys, g * keyWidth, key, 0, keyWidth);
+            int slot = hash(key) & mask;
+            while (slots[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            slots[slot] = g;
+        }
+    }
+}
@@ -40,6 +40,39 @@ public interface Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate, as if each of
+     * them had been passed to mergeTupleIntoGroup.
+     *
+     * @param batch rows containing the aggregate field and group-by field
+     */
+    public void mergeBatch(TupleBatch batch);
+
+    /**
+     * Check whether the group of a tuple has already been created by an
+     * earlier call to mergeTupleIntoGroup.
+     *
+     * @param tup the Tuple containing a group-by field
+     * @return true if merging tup would not create a new group
+     */
+    public boolean hasGroup(Tuple tup);
+
+    /**
+     * @return an estimate of the number of bytes of memory held by the
+     *   groups of this aggregator
+     */
+    public long memoryUsage();
+
+    /**
+     * Fold the partial aggregate state of another aggregator into this one.
+     * Used to combine the results of aggregators that each saw a disjoint
+     * part of the input; both must have been constructed with the same
+     * arguments.
+     *
+     * @param partial an aggregator of the same class and configuration
+     */
+    public void combine(Aggregator partial);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,27 @@
+package simpledb;
+
+/**
+ * BatchIterator is a DbIterator that can also return its tuples a batch at
+ * a time, so that the per-tuple overhead of hasNext/next is paid once per
+ * batch. Every {@link Operator} is a BatchIterator; by default it builds
+ * its batches from its own rows, and operators that can work on whole
+ * batches override {@link #nextBatch}.
+ * <p>
+ * Between open and close a consumer should read an iterator either with
+ * next() or with nextBatch(), not both. To read any DbIterator in batches
+ * use {@link TupleBatch#read}; to read the batches of an iterator as rows
+ * wrap it in a {@link BatchRowIterator}.
+ */
+public interface BatchIterator extends DbIterator {
+
+    /**
+     * Returns the next batch of tuples. The batch may have no selected
+     * rows (e.g. if a filter rejected all of them); the iteration is only
+     * finished when null is returned. The returned batch may be reused by
+     * the iterator once nextBatch is called again.
+     *
+     * @return the next batch, or null if there are no more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
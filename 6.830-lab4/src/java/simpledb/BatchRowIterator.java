@@ -0,0 +1,68 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchRowIterator returns the selected rows of the batches of a child
+ * iterator one tuple at a time, so that a plan that works on batches can be
+ * consumed by code that expects rows.
+ */
+public class BatchRowIterator extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private transient TupleBatch batch;
+    private int pos;
+
+    /**
+     * @param child the iterator whose batches (see {@link TupleBatch#read})
+     *            are returned as rows
+     */
+    public BatchRowIterator(DbIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open()
+        throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        batch = null;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos == batch.numSelected()) {
+            batch = TupleBatch.read(child);
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.selected(pos++));
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return TupleBatch.read(child);
+    }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
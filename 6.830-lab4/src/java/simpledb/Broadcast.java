@@ -0,0 +1,38 @@
+package simpledb;
+
+/**
+ * Broadcast sends every tuple of its inputs to each of a number of
+ * outputs, e.g. to give a small table to every per-partition copy of a
+ * join. The outputs are created together with {@link #create}; they share
+ * the producer threads that read the inputs, which read each input once.
+ * The outputs return the same Tuple objects, so consumers must not modify
+ * them.
+ */
+public class Broadcast extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(String name, Channel channel, int output) {
+        super(name, channel, output);
+    }
+
+    /**
+     * Create the outputs of a broadcasting exchange.
+     *
+     * @param inputs the subtrees whose tuples are broadcast; they must all
+     *            return tuples of the same type
+     * @param outputs the number of outputs
+     * @return the outputs, each of which returns every tuple of the inputs
+     */
+    public static Broadcast[] create(DbIterator[] inputs, int outputs) {
+        Channel channel = new Channel(inputs, outputs) {
+            int route(Tuple t) {
+                return ALL;
+            }
+        };
+        Broadcast[] result = new Broadcast[outputs];
+        for (int i = 0; i < outputs; i++)
+            result[i] = new Broadcast("broadcast " + i + "/" + outputs, channel, i);
+        return result;
+    }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,6 +13,40 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Heap files insert and delete tuples under tuple locks instead (see
+ * {@link #getTuplePage} and {@link #lockTuple}), so several transactions
+ * may change one page at once. Such a page cannot be rolled back by
+ * reading it again from disk; the changes each transaction makes to it
+ * are logged, and undone one by one if it aborts. Pages are written with
+ * the logged changes of the transactions that have not committed undone,
+ * so the disk only holds committed data.
+ * <p>
+ * Pages are protected by two kinds of locks. Transaction locks (see
+ * {@link LockSet}) keep transactions apart and are held until they end;
+ * the latch of each page (see {@link HeapPage#latch}) only guards its
+ * contents while they are read or changed. A page that is pinned (see
+ * {@link #getTuplePage}) is not evicted until it is unpinned.
+ * <p>
+ * The page table is split into partitions by the hash of the page id, each
+ * with its own monitor and replacement order, so threads that use
+ * different pages do not contend. A page that is in the pool is found
+ * without taking any lock; reading a page in, evicting one and pinning
+ * take the monitor of its partition only. The partitions share the
+ * capacity of the pool: a partition that is full of pages that cannot be
+ * evicted evicts from the others.
+ * <p>
+ * A transaction may instead read a snapshot (see {@link #beginSnapshot}):
+ * it takes no locks, and reads the pages as of the last commit before it
+ * began, from the {@link VersionStore} or the before images of the
+ * pages. Snapshot readers neither wait for writers nor hold them up.
+ * <p>
+ * A transaction may also run optimistically (see {@link #beginOptimistic}):
+ * it takes no locks while it runs, reads the committed pages and writes
+ * private copies of them. At commit, {@link #validate} locks the pages it
+ * used, checks that no commit has changed the ones it read since, nor
+ * appended pages to the tables it scanned, and installs its copies in the
+ * pool; if the check fails, it must abort.
  * 
  * @Threadsafe, all fields are final
  */
@@ -24,35 +59,169 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    public ArrayList<Page> PageList;
-    public int MaxSize = DEFAULT_PAGES;
+    /** The default number of partitions of the page table, set by the
+    simpledb.BufferPoolPartitions property. */
+    public static final int DEFAULT_PARTITIONS =
+        Math.max(1, Integer.getInteger("simpledb.BufferPoolPartitions", 16));
+
+    private final int MaxSize;
+    private final Partition[] partitions;
+    // the number of pages in all partitions
+    private final AtomicInteger size = new AtomicInteger();
 
     private final LockSet lockset;
+    private final VersionStore versions;
     
-    private final Map<TransactionId,Set<PageId>> AffectedPageSetByTran;
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> AffectedPageSetByTran;
+    // pages changed under tuple locks, and the changes to undo on abort;
+    // each log is guarded by its own monitor
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> TuplePageSetByTran;
+    private final ConcurrentHashMap<TransactionId,List<TupleChange>> UndoLogByTran;
+    // the pages flushPages wrote for a committing transaction; their
+    // commit does not write them again, and the images written meanwhile
+    // count the transaction's tuple changes as committed
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> ForcedPageSetByTran;
+    // the pages optimistic transactions read and write
+    private final ConcurrentHashMap<TransactionId,Workspace> WorkspaceByTran;
+
+    /**
+     * The pages an optimistic transaction used: the last commit that had
+     * changed each page it read when it read it, its private copies of the
+     * pages it writes, the number of pages of each table it scanned when
+     * the scan began, and the pages it appended itself.
+     */
+    private static class Workspace {
+        final ConcurrentHashMap<PageId,Long> reads = new ConcurrentHashMap<PageId,Long>();
+        final ConcurrentHashMap<PageId,Page> writes = new ConcurrentHashMap<PageId,Page>();
+        final ConcurrentHashMap<Integer,Integer> sizes = new ConcurrentHashMap<Integer,Integer>();
+        final Set<PageId> appended = Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+    }
+
+    /**
+     * One partition of the page table. Its pages may be looked up without
+     * locking; everything else holds its monitor.
+     */
+    private static class Partition {
+        final ConcurrentHashMap<PageId,Page> pages = new ConcurrentHashMap<PageId,Page>();
+        // the pages in the order they were read in, oldest first
+        final LinkedHashSet<PageId> order = new LinkedHashSet<PageId>();
+        // the pages in use that must not be evicted, and how often each
+        // is pinned
+        final HashMap<PageId,Integer> pins = new HashMap<PageId,Integer>();
+    }
+
+    /** A tuple change of a transaction, as needed to undo it. */
+    private static class TupleChange {
+        final RecordId rid;
+        // the tuple the slot held before, or null if it was empty
+        final Tuple before;
+
+        TupleChange(RecordId rid, Tuple before) {
+            this.rid = rid;
+            this.before = before;
+        }
+    }
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        PageList = new ArrayList<Page>();
+        this(numPages, DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in up to the
+     * given number of partitions (but no more than numPages).
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions of the page table.
+     */
+    public BufferPool(int numPages, int numPartitions) {
         MaxSize = numPages; 
+        partitions = new Partition[Math.max(1, Math.min(numPartitions, numPages))];
+        for(int i=0; i<partitions.length; i++)
+            partitions[i] = new Partition();
 
         lockset = LockSet.create();
-        AffectedPageSetByTran = new HashMap<TransactionId,Set<PageId>>();
+        versions = new VersionStore();
+        AffectedPageSetByTran = new ConcurrentHashMap<TransactionId,Set<PageId>>();
+        TuplePageSetByTran = new ConcurrentHashMap<TransactionId,Set<PageId>>();
+        UndoLogByTran = new ConcurrentHashMap<TransactionId,List<TupleChange>>();
+        ForcedPageSetByTran = new ConcurrentHashMap<TransactionId,Set<PageId>>();
+        WorkspaceByTran = new ConcurrentHashMap<TransactionId,Workspace>();
     }
     
     private Set<PageId> getAffectedPageSet(TransactionId tid) {
-        if(AffectedPageSetByTran.get(tid)==null)
-        	AffectedPageSetByTran.put(tid, new HashSet<PageId>());
-    	return AffectedPageSetByTran.get(tid);
+    	return getPageSet(AffectedPageSetByTran, tid);
       }
+
+    private Set<PageId> getTuplePageSet(TransactionId tid) {
+    	return getPageSet(TuplePageSetByTran, tid);
+      }
+
+    private static Set<PageId> getPageSet(ConcurrentHashMap<TransactionId,Set<PageId>> sets, TransactionId tid) {
+        Set<PageId> set = sets.get(tid);
+        if(set==null)
+        {
+            Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+            set = sets.putIfAbsent(tid, fresh);
+            if(set==null)
+                set = fresh;
+        }
+        return set;
+    }
+
+    private Partition partition(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[(h & 0x7fffffff) % partitions.length];
+    }
+
+    /** @return the number of partitions of the page table */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
     
     public static int getPageSize() {
       return PAGE_SIZE;
     }
 
+    /** @return the lock manager of this buffer pool */
+    public LockSet getLockSet() {
+        return lockset;
+    }
+
+    /** @return the committed page versions kept for snapshot readers */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Make a transaction read a snapshot of the database as of the last
+     * commit, without taking locks. It must not write, and should begin
+     * the snapshot before it reads anything.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * Make a transaction run optimistically: it takes no locks until it
+     * commits, and must call {@link #validate} before it does. It should
+     * begin before it reads anything.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        versions.beginOptimistic(tid);
+        WorkspaceByTran.put(tid, new Workspace());
+    }
+
+    /** @return the workspace of tid, or null if it is not optimistic */
+    private Workspace workspace(TransactionId tid) {
+        return tid==null ? null : WorkspaceByTran.get(tid);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -71,33 +240,388 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException { 
     		
+    		if(versions.isSnapshot(tid))
+    			return getSnapshotPage(tid, pid, perm);
+    		Workspace ws = workspace(tid);
+    		if(ws!=null)
+    			return getOptimisticPage(ws, pid, perm);
     		lockset.acquireLock(tid, pid, perm);
-    		
-            getAffectedPageSet(tid).add(pid);
-            
-            for(Page page: PageList)
-            {
-                if(page.getId().equals(pid))
-                {
-                    return page;
-                }
-            }
-                
-            if(PageList.size()==MaxSize)
-            //    throw new DbException("PageList is full!");
-                evictPage();
+    		getAffectedPageSet(tid).add(pid);
+    		return fetchPage(pid, false);
+    }
 
+    /**
+     * Retrieve a page in which the transaction will lock single tuples,
+     * with {@link #lockTuple} or {@link #tryLockTuple}. Only takes the
+     * intention locks for that, which do not block other transactions
+     * that lock other tuples of the page; the page must only be changed
+     * while its latch is held exclusive, and every change must be logged
+     * with {@link #logTupleChange}. The page is pinned, so it stays in the
+     * pool until the caller is done with it and calls {@link #unpinPage}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the permissions the transaction needs on the tuples
+     */
+    public Page getTuplePage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    		if(versions.isSnapshot(tid))
+    			return getSnapshotPage(tid, pid, perm);
+    		Workspace ws = workspace(tid);
+    		if(ws!=null)
+    		{
+    			// the shared page is pinned, for the caller to unpin
+    			Page page = getOptimisticPage(ws, pid, perm);
+    			fetchPage(pid, true);
+    			return page;
+    		}
+    		lockset.acquireIntentionLock(tid, pid, perm);
+    		getTuplePageSet(tid).add(pid);
+    		return fetchPage(pid, true);
+    }
+
+    /**
+     * Unpin a page pinned by {@link #getTuplePage}; once it is unpinned as
+     * often as it was pinned, it may be evicted again.
+     */
+    public void unpinPage(PageId pid) {
+        Partition part = partition(pid);
+        synchronized(part) {
+            Integer n = part.pins.get(pid);
+            if(n==null)
+                return;
+            if(n<=1)
+                part.pins.remove(pid);
+            else
+                part.pins.put(pid, n-1);
+        }
+    }
+
+    /** @return the number of times a page is pinned */
+    public int getPinCount(PageId pid) {
+        Partition part = partition(pid);
+        synchronized(part) {
+            Integer n = part.pins.get(pid);
+            return n==null ? 0 : n;
+        }
+    }
+
+    // the caller holds the monitor of the partition of the page
+    private static Page pin(Partition part, Page page) {
+        Integer n = part.pins.get(page.getId());
+        part.pins.put(page.getId(), n==null ? 1 : n+1);
+        return page;
+    }
+
+    /**
+     * Lock a tuple for a transaction, READ_ONLY or READ_WRITE. Will block
+     * if the lock is held by another transaction.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if (workspace(tid) != null)
+            return;
+        lockset.acquireTupleLock(tid, rid, perm);
+    }
+
+    /**
+     * Lock a tuple for a transaction if that can be done without waiting.
+     *
+     * @return true if the transaction holds the lock
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if (workspace(tid) != null)
+            return true;
+        return lockset.tryAcquireTupleLock(tid, rid, perm);
+    }
+
+    /**
+     * Record that a transaction changed the tuple in a slot of a page
+     * retrieved with {@link #getTuplePage}, so the change can be undone if
+     * it aborts.
+     *
+     * @param before the tuple in the slot before the change, or null if
+     *            the slot was empty
+     */
+    void logTupleChange(TransactionId tid, RecordId rid, Tuple before) {
+        // an optimistic transaction only changes its private copies
+        if (WorkspaceByTran.containsKey(tid))
+            return;
+        List<TupleChange> log = UndoLogByTran.get(tid);
+        if (log == null) {
+            List<TupleChange> fresh = new ArrayList<TupleChange>();
+            log = UndoLogByTran.putIfAbsent(tid, fresh);
+            if (log == null)
+                log = fresh;
+        }
+        synchronized (log) {
+            log.add(new TupleChange(rid, before));
+        }
+    }
+
+    /**
+     * Record that a transaction appended a page to a table, so that
+     * {@link #validate} does not take it for a page another transaction
+     * appended to a table this one scanned.
+     */
+    void pageAppended(TransactionId tid, PageId pid) {
+        Workspace ws = workspace(tid);
+        if (ws != null)
+            ws.appended.add(pid);
+    }
+
+    /**
+     * Retrieve a page as the snapshot of tid sees it: a version from the
+     * version store or, if no commit has changed the page since the
+     * snapshot began, the before image of the page. The page is a copy,
+     * read without locks.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm)
+        throws DbException {
+    		if(perm!=Permissions.READ_ONLY)
+    			throw new DbException("snapshot transactions are read only");
+    		// no commit may come between the two reads
+    		synchronized(versions)
+    		{
+    			Page page = versions.read(tid, pid);
+    			if(page!=null)
+    				return page;
+    			page = fetchPage(pid, false);
+    			return page==null ? null : page.getBeforeImage();
+    		}
+    }
+
+    /**
+     * Retrieve a page for an optimistic transaction without locks: its
+     * private copy if it writes the page, else the before image of the
+     * page. Remembers the last commit that changed the page the first
+     * time the transaction reads it.
+     */
+    private Page getOptimisticPage(Workspace ws, PageId pid, Permissions perm)
+        throws DbException {
+    		Page page = ws.writes.get(pid);
+    		if(page!=null)
+    			return page;
+    		// no commit may come between the two reads
+    		synchronized(versions)
+    		{
+    			long ts = versions.lastChange(pid);
+    			page = fetchPage(pid, false);
+    			if(page==null)
+    				return null;
+    			page = page.getBeforeImage();
+    			if(!ws.reads.containsKey(pid))
+    				ws.reads.put(pid, ts);
+    		}
+    		if(perm==Permissions.READ_WRITE)
+    		{
+    			Page mine = ws.writes.putIfAbsent(pid, page);
+    			if(mine!=null)
+    				page = mine;
+    		}
+    		return page;
+    }
+
+    /**
+     * Validate an optimistic transaction before it commits, and install
+     * its writes. Locks the tables it scanned and the pages it read
+     * (READ_ONLY) and wrote (READ_WRITE) like any other transaction, so
+     * that none of them has changes that are not committed; then checks
+     * that no commit has changed a page it read since it read it, nor
+     * appended a page to a table it scanned (whose tuples the scan would
+     * have missed), and puts its copies of the pages it wrote in the
+     * pool, to be committed with {@link #transactionComplete}. Does
+     * nothing for other transactions.
+     *
+     * @throws TransactionAbortedException if a page the transaction read
+     *         has changed, a table it scanned has grown, or it was chosen
+     *         to abort while it waited for a lock; it must then abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+    	Workspace ws = workspace(tid);
+    	if(ws==null)
+    		return;
+    	// validating transactions lock their pages in the same order, so
+    	// they do not deadlock each other
+    	List<PageId> pids = new ArrayList<PageId>(ws.reads.keySet());
+    	Collections.sort(pids, new Comparator<PageId>() {
+    		public int compare(PageId a, PageId b) {
+    			if(a.getTableId()!=b.getTableId())
+    				return a.getTableId()<b.getTableId() ? -1 : 1;
+    			return a.pageNumber()-b.pageNumber();
+    		}
+    	});
+    	// table locks come before page locks, also in that order
+    	List<Integer> tables = new ArrayList<Integer>(ws.sizes.keySet());
+    	Collections.sort(tables);
+    	for(int tableId: tables)
+    		lockset.acquireTableLock(tid, tableId, Permissions.READ_ONLY);
+    	for(PageId pid: pids)
+    	{
+    		Permissions perm = ws.writes.containsKey(pid) ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+    		lockset.acquireLock(tid, pid, perm);
+    	}
+    	synchronized(versions)
+    	{
+    		for(Map.Entry<PageId,Long> read: ws.reads.entrySet())
+    		{
+    			if(versions.lastChange(read.getKey())!=read.getValue())
+    				throw new TransactionAbortedException();
+    		}
+    		for(Map.Entry<Integer,Integer> size: ws.sizes.entrySet())
+    		{
+    			int tableId = size.getKey();
+    			int own = 0;
+    			for(PageId pid: ws.appended)
+    				if(pid.getTableId()==tableId)
+    					own++;
+    			if(numPages(tableId)-own!=size.getValue())
+    				throw new TransactionAbortedException();
+    		}
+    		for(Page page: ws.writes.values())
+    			installPage(tid, page);
+    	}
+    }
+
+    /**
+     * Put the private copy of a page an optimistic transaction wrote in
+     * the pool, in place of the page. The transaction holds the page's
+     * write lock, so no other transaction uses the page it replaces. The
+     * pool may exceed its capacity until a page is evicted.
+     */
+    private void installPage(TransactionId tid, Page page) {
+    	PageId pid = page.getId();
+    	page.markDirty(true, tid);
+    	Partition part = partition(pid);
+    	synchronized(part)
+    	{
+    		if(part.pages.put(pid, page)==null)
+    		{
+    			part.order.add(pid);
+    			size.incrementAndGet();
+    		}
+    	}
+    	getAffectedPageSet(tid).add(pid);
+    }
+
+    /**
+     * Look a page up in the buffer pool, reading it from disk (and
+     * evicting a page if the pool is full) if it is not there.
+     *
+     * @param pin true to pin the page before it can be evicted
+     */
+    private Page fetchPage(PageId pid, boolean pin) throws DbException {
+    		Partition part = partition(pid);
+    		// a hit takes no lock, unless the page must be pinned before
+    		// it can be evicted; the disk read happens outside any monitor
+    		Page page = part.pages.get(pid);
+    		if(page!=null && !pin)
+    			return page;
+    		if(page!=null)
+    		{
+    			synchronized(part)
+    			{
+    				page = part.pages.get(pid);
+    				if(page!=null)
+    					return pin(part, page);
+    			}
+    		}
+
+    		Page diskpage = null;
             for(Table tab: Database.getCatalog().getTables())
             {
                 if(tab.file.getId()==pid.getTableId())
                 {
-                    Page page = tab.file.readPage(pid);
-                    PageList.add(page);
-                    return page;
+                    diskpage = tab.file.readPage(pid);
+                    break;
                 }
             }
+            if(diskpage==null)
+            	return null;
+
+            // make room first: evicting may take the monitors of other
+            // partitions, so it must not hold this one. Threads that read
+            // at the same time may overshoot the capacity by a page each
+            if(size.get()>=MaxSize && part.pages.get(pid)==null)
+            	evictPage(part);
+            synchronized(part)
+            {
+            	// another thread may have read the page in the meantime
+            	page = part.pages.get(pid);
+            	if(page==null)
+            	{
+            		page = diskpage;
+            		part.pages.put(pid, page);
+            		part.order.add(pid);
+            		size.incrementAndGet();
+            	}
+            	return pin ? pin(part, page) : page;
+            }
+    }
+
+    private Page findPage(PageId pid) {
+        return partition(pid).pages.get(pid);
+    }
 
-            return null;
+    /**
+     * Lock a whole table for a transaction, so that it can read
+     * (READ_ONLY) or write (READ_WRITE) any of its pages without locking
+     * them one by one. Will block if the lock is held by another
+     * transaction.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the ID of the table to lock
+     * @param perm the requested permissions on the table
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (!takesLocks(tid, tableId))
+            return;
+        lockset.acquireTableLock(tid, tableId, perm);
+    }
+
+    /**
+     * Take the intention lock on a table before reading (READ_ONLY) or
+     * writing (READ_WRITE) its pages one by one, as a scan does. Unlike
+     * {@link #lockTable} it does not block writers of other pages; the
+     * transaction still trades its page locks for a table lock once it
+     * holds the escalation threshold of them.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the ID of the table to lock
+     * @param perm the permissions the pages will be requested with
+     */
+    public void lockTableIntention(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (!takesLocks(tid, tableId))
+            return;
+        lockset.acquireTableIntentionLock(tid, tableId, perm);
+    }
+
+    /**
+     * @return false if tid reads a snapshot or runs optimistically, and so
+     *         takes no table locks; an optimistic transaction records the
+     *         size of the table instead
+     */
+    private boolean takesLocks(TransactionId tid, int tableId) {
+        if (versions.isSnapshot(tid))
+            return false;
+        Workspace ws = workspace(tid);
+        if (ws != null) {
+            // the pages appended after this are checked for in validate
+            int n = numPages(tableId);
+            if (n >= 0)
+                ws.sizes.putIfAbsent(tableId, n);
+            return false;
+        }
+        return true;
+    }
+
+    /** @return the number of pages of a table, or -1 if it is not a HeapFile */
+    private static int numPages(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        return file instanceof HeapFile ? ((HeapFile)file).numPages() : -1;
     }
 
     /**
@@ -137,22 +661,133 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
+    	versions.endSnapshot(tid);
     	if(commit)
-    		for(PageId pid: getAffectedPageSet(tid))
-    			flushPage(pid);
+    	{
+    		Set<PageId> pages = new HashSet<PageId>(getAffectedPageSet(tid));
+    		pages.addAll(getTuplePageSet(tid));
+    		// commits are serialized, so that snapshots see each one whole
+    		synchronized(versions)
+    		{
+    			if(tid!=null)
+    				UndoLogByTran.remove(tid);
+    			if(!pages.isEmpty())
+    			{
+    				Set<PageId> forced = ForcedPageSetByTran.get(tid);
+    				long ts = versions.nextTimestamp();
+    				for(PageId pid: pages)
+    					commitPage(pid, ts, forced==null || !forced.contains(pid));
+    				versions.publish(ts);
+    			}
+    		}
+    	}
     	else
     	{
+    		// other transactions may have changed the tuple pages too, so
+    		// only the changes of this one are undone; they never reached
+    		// the disk
+    		undoTupleChanges(tid);
     		for(PageId pid: getAffectedPageSet(tid))
     		{
     			readPage(pid);
     		}
     		
     	}
-    	getAffectedPageSet(tid).clear();
+    	if(tid!=null)
+    	{
+    		AffectedPageSetByTran.remove(tid);
+    		TuplePageSetByTran.remove(tid);
+    		UndoLogByTran.remove(tid);
+    		ForcedPageSetByTran.remove(tid);
+    		WorkspaceByTran.remove(tid);
+    	}
+    	versions.endOptimistic(tid);
     	lockset.releaseLock(tid);
     	
     }
 
+    /**
+     * Write a page changed by a committing transaction unless flushPages
+     * already has, make its committed image its before image, and keep that
+     * as a version for the snapshots that are active.
+     */
+    private void commitPage(PageId pid, long ts, boolean write) throws IOException {
+    	Page page = findPage(pid);
+    	if(page==null)
+    		return;
+    	Page image = committedImage(page);
+    	if(write)
+    		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+    	if(page.isDirty()==null || !(page instanceof HeapPage))
+    		return;
+    	byte[] data = image.getPageData();
+    	versions.addVersion(pid, page.getBeforeImage().getPageData(), data, ts);
+    	((HeapPage)page).setBeforeImage(data);
+    }
+
+    /**
+     * @return the page with the logged tuple changes of the transactions
+     *         that have not committed undone, or the page itself if it has
+     *         none; the changes of transactions whose pages flushPages has
+     *         written are kept
+     */
+    private Page committedImage(Page page) throws IOException {
+    	if(!(page instanceof HeapPage))
+    		return page;
+    	HeapPage hp = (HeapPage)page;
+    	hp.latch(Permissions.READ_ONLY);
+    	try
+    	{
+    		List<TupleChange> pending = new ArrayList<TupleChange>();
+    		for(Map.Entry<TransactionId,List<TupleChange>> e: UndoLogByTran.entrySet())
+    		{
+    			if(ForcedPageSetByTran.containsKey(e.getKey()))
+    				continue;
+    			List<TupleChange> log = e.getValue();
+    			synchronized(log)
+    			{
+    				for(TupleChange c: log)
+    				{
+    					if(c.rid.getPageId().equals(hp.getId()))
+    						pending.add(c);
+    				}
+    			}
+    		}
+    		if(pending.isEmpty())
+    			return page;
+    		// each slot is changed by one transaction that has not
+    		// committed at most, so undoing all changes latest first undoes
+    		// those of each transaction latest first
+    		HeapPage copy = new HeapPage(hp.getId(), hp.getPageData());
+    		for(int i=pending.size()-1; i>=0; i--)
+    			copy.restoreTuple(pending.get(i).rid.tupleno(), pending.get(i).before);
+    		return copy;
+    	}
+    	finally
+    	{
+    		hp.unlatch(Permissions.READ_ONLY);
+    	}
+    }
+
+    /** Undo the logged tuple changes of a transaction, latest first. */
+    private void undoTupleChanges(TransactionId tid) throws IOException {
+    	List<TupleChange> log = tid==null ? null : UndoLogByTran.get(tid);
+    	if(log==null)
+    		return;
+    	for(int i=log.size()-1; i>=0; i--)
+    	{
+    		TupleChange c = log.get(i);
+    		HeapPage page;
+    		try {
+    			page = (HeapPage)fetchPage(c.rid.getPageId(), true);
+    		} catch (DbException e) {
+    			throw new IOException("could not undo a change to " + c.rid.getPageId());
+    		}
+    		page.restoreTuple(c.rid.tupleno(), c.before);
+    		unpinPage(page.getId());
+    	}
+    }
+
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to(Lock 
@@ -204,15 +839,23 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        for(Page page: PageList)
+    public void flushAllPages() throws IOException {
+        for(Partition part: partitions)
         {
-        	if(page.isDirty()!=null) continue;
-        	
-            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-            file.writePage(page);
+            synchronized(part)
+            {
+                for(Page page: part.pages.values())
+                {
+                	if(page.isDirty()!=null) continue;
+                	
+                    DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+                    file.writePage(page);
+                }
+                size.addAndGet(-part.pages.size());
+                part.pages.clear();
+                part.order.clear();
+            }
         }
-        PageList.clear();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -220,7 +863,7 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // only necessary for lab5
     }
@@ -229,70 +872,102 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        for(Page page: PageList)
+    private void flushPage(PageId pid) throws IOException {
+        Page page = findPage(pid);
+        if(page!=null)
         {
-            if(page.getId().equals(pid))
-            {
-                DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                file.writePage(page);
-                //PageList.remove(page);
-                return;
-            }
+            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            file.writePage(committedImage(page));
         }
-
     }
     
-    private synchronized void readPage(PageId pid) throws IOException {
-        for(Page page: PageList)
+    private void readPage(PageId pid) throws IOException {
+        Partition part = partition(pid);
+        synchronized(part)
         {
-            if(page.getId().equals(pid))
+            if(!part.pages.containsKey(pid))
+                return;
+            for(Table tab: Database.getCatalog().getTables())
             {
-            	for(Table tab: Database.getCatalog().getTables())
+                if(tab.file.getId()==pid.getTableId())
                 {
-                    if(tab.file.getId()==pid.getTableId())
-                    {
-                        Page diskpage = tab.file.readPage(pid);
-                        PageList.remove(page);
-                        PageList.add(diskpage);
-                        return;
-                    }
+                    Page diskpage = tab.file.readPage(pid);
+                    part.pages.put(pid, diskpage);
+                    part.order.remove(pid);
+                    part.order.add(pid);
+                    return;
                 }
             }
         }
 
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /** Write all pages of the specified transaction to disk, as they will
+        be once it commits. Called when the transaction commits, before its
+        commit record is logged; transactionComplete then does not write
+        these pages again.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-    	for(PageId pid:getAffectedPageSet(tid))
+    public void flushPages(TransactionId tid) throws IOException {
+    	Set<PageId> pages = new HashSet<PageId>(getAffectedPageSet(tid));
+    	pages.addAll(getTuplePageSet(tid));
+    	// under the commit monitor, so that no commit writes one of these
+    	// pages without the changes of tid in between
+    	synchronized(versions)
     	{
-    		flushPage(pid);
+    		Set<PageId> forced = getPageSet(ForcedPageSetByTran, tid);
+    		for(PageId pid: pages)
+    		{
+    			flushPage(pid);
+    			forced.add(pid);
+    		}
     	}
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the buffer pool, from the given partition if it
+     * has one to evict, else from another.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Dirty and pinned pages are never evicted.
      */
-    private synchronized  void evictPage() throws DbException {
-    	for(Page discardPage: PageList)
-    	{
-    		if(discardPage.isDirty()!=null) continue;
-    		
-    		try{
-                flushPage(discardPage.getId());
-                PageList.remove(discardPage);
-            }
-            catch(IOException e)
-            {
-                throw new DbException("error occurs when evictPage");
-            }
+    private void evictPage(Partition first) throws DbException {
+    	if(evictFrom(first))
     		return;
+    	for(Partition part: partitions)
+    	{
+    		if(part!=first && evictFrom(part))
+    			return;
     	}
-    	throw new DbException("no clean page to evict");
+    	throw new DbException("no clean, unpinned page to evict");
         
     }
 
+    /** @return true if a page of part was evicted */
+    private boolean evictFrom(Partition part) throws DbException {
+    	synchronized(part)
+    	{
+    		for(Iterator<PageId> it = part.order.iterator(); it.hasNext();)
+    		{
+    			PageId pid = it.next();
+    			Page discardPage = part.pages.get(pid);
+    			if(discardPage.isDirty()!=null) continue;
+    			if(part.pins.containsKey(pid)) continue;
+    			
+    			try{
+    				// a clean page has no changes that are not committed
+    				DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    				file.writePage(discardPage);
+    			}
+    			catch(IOException e)
+    			{
+    				throw new DbException("error occurs when evictPage");
+    			}
+    			it.remove();
+    			part.pages.remove(pid);
+    			size.decrementAndGet();
+    			return true;
+    		}
+    		return false;
+    	}
+    }
+
 }
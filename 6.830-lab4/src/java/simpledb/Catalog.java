@@ -197,8 +197,16 @@ public class Catalog {
         }
     }
 
+    /**
+     * Same as {@link #getDatabaseFile}, but returns null if there is no
+     * table with the specified id.
+     */
     public DbFile getDbFile(int t) {
-        return null;
+        try {
+            return getDatabaseFile(t);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
     }
 
 
@@ -66,4 +66,12 @@ public class Delete extends Operator {
         return restup;
 
     }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
 }
@@ -0,0 +1,285 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Exchange is the base class of the operators that move tuples between
+ * threads. The subtrees below an exchange (its inputs) are each run by a
+ * producer thread, which routes every tuple to one or all of the exchange's
+ * outputs; each output is read by an {@link ExchangeConsumer} on the
+ * consumer side. Producers and consumers are decoupled by one bounded
+ * queue of tuple chunks per output, so a producer that gets ahead of its
+ * consumers waits for them instead of buffering its whole input.
+ * <p>
+ * The concrete exchanges differ in how tuples are routed:
+ * {@link Gather} merges all inputs into one output, {@link Repartition}
+ * splits them by the hash of a field, and {@link Broadcast} sends every
+ * tuple to every output. Together they let any subtree of a plan run in
+ * parallel with the rest of it, or as several copies over partitions of
+ * the data.
+ * <p>
+ * The producers start when the first output is opened, and run until their
+ * inputs are exhausted or every output has been closed. Every output of an
+ * exchange should be read or closed; an output that is never opened keeps
+ * its queue full and stalls the producers once they have filled it.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of chunks that can wait in the queue of each output, set with
+     * the system property simpledb.ExchangeQueueChunks.
+     */
+    public static final int DEFAULT_QUEUE_CHUNKS =
+        Math.max(1, Integer.getInteger("simpledb.ExchangeQueueChunks", 4));
+
+    /** Number of tuples a producer collects for an output before queueing them. */
+    public static final int CHUNK_SIZE = TupleBatch.DEFAULT_SIZE;
+
+    /** Route value meaning "every output". */
+    static final int ALL = -1;
+
+    private final String name;
+
+    protected Exchange(String name) {
+        this.name = name;
+    }
+
+    /** @return a short description of the exchange, e.g. for query plans */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The tuples a producer hands to a consumer in one go. A chunk with no
+     * tuples marks the end of one input, or carries the error that
+     * stopped it.
+     */
+    static final class Chunk {
+        final ArrayList<Tuple> tuples;
+        final Throwable error;
+
+        Chunk(ArrayList<Tuple> tuples, Throwable error) {
+            this.tuples = tuples;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The producer side of an exchange, shared by all of its outputs.
+     * Subclasses decide where each tuple goes.
+     */
+    static abstract class Channel {
+        private DbIterator[] inputs;
+        private final int outputs;
+        private final TupleDesc td;
+        private int queueChunks = DEFAULT_QUEUE_CHUNKS;
+        private Run run;
+        // the previous run, whose producers have to finish before the
+        // inputs are started again
+        private Run last;
+
+        /**
+         * @param inputs the subtrees to run in producer threads; they must
+         *            all return tuples of the same type
+         * @param outputs the number of outputs
+         */
+        Channel(DbIterator[] inputs, int outputs) {
+            if (inputs.length == 0)
+                throw new IllegalArgumentException("an exchange needs at least one input");
+            if (outputs < 1)
+                throw new IllegalArgumentException("an exchange needs at least one output");
+            this.inputs = inputs.clone();
+            this.outputs = outputs;
+            this.td = inputs[0].getTupleDesc();
+            checkInputs(this.inputs);
+        }
+
+        private void checkInputs(DbIterator[] inputs) {
+            for (DbIterator in : inputs) {
+                if (!in.getTupleDesc().equals(td))
+                    throw new IllegalArgumentException("exchange inputs must have the same TupleDesc");
+            }
+        }
+
+        /**
+         * @return the output t should go to, or {@link Exchange#ALL}
+         */
+        abstract int route(Tuple t);
+
+        TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        int numOutputs() {
+            return outputs;
+        }
+
+        int numInputs() {
+            return inputs.length;
+        }
+
+        synchronized DbIterator[] getInputs() {
+            return inputs.clone();
+        }
+
+        synchronized void setInputs(DbIterator[] inputs) {
+            if (run != null)
+                throw new IllegalStateException("cannot replace the inputs of a running exchange");
+            if (inputs.length != this.inputs.length)
+                throw new IllegalArgumentException("expected " + this.inputs.length + " inputs");
+            checkInputs(inputs);
+            this.inputs = inputs.clone();
+        }
+
+        synchronized void setQueueChunks(int chunks) {
+            queueChunks = Math.max(1, chunks);
+        }
+
+        /**
+         * Open an output, starting the producers if no run is in progress.
+         *
+         * @return the run the output reads from
+         */
+        synchronized Run open(int output) throws DbException {
+            if (run == null) {
+                run = new Run();
+                run.start();
+            }
+            if (run.opened[output])
+                throw new DbException("exchange output " + output
+                    + " reopened before the other outputs were closed");
+            run.opened[output] = true;
+            return run;
+        }
+
+        /**
+         * Close an output. Tuples routed to it from now on are discarded;
+         * once every output is closed the producers stop.
+         */
+        synchronized void close(Run r, int output) {
+            r.closed.set(output, 1);
+            r.queues.get(output).clear();
+            for (int i = 0; i < outputs; i++) {
+                if (r.closed.get(i) == 0)
+                    return;
+            }
+            r.stopped = true;
+            if (run == r)
+                run = null;
+        }
+
+        /**
+         * One execution of the inputs, from the first output being opened
+         * until the last one is closed.
+         */
+        final class Run {
+            final ArrayList<ArrayBlockingQueue<Chunk>> queues =
+                new ArrayList<ArrayBlockingQueue<Chunk>>();
+            final boolean[] opened = new boolean[outputs];
+            final AtomicIntegerArray closed = new AtomicIntegerArray(outputs);
+            final Thread[] producers = new Thread[inputs.length];
+            volatile boolean stopped = false;
+
+            Run() {
+                for (int i = 0; i < outputs; i++)
+                    queues.add(new ArrayBlockingQueue<Chunk>(queueChunks));
+            }
+
+            void start() throws DbException {
+                // the inputs may still be in use by the producers of the
+                // previous run, which stop at their next tuple
+                if (last != null) {
+                    for (Thread t : last.producers) {
+                        try {
+                            t.join();
+                        } catch (InterruptedException e) {
+                            throw new DbException("interrupted while waiting for exchange producers");
+                        }
+                    }
+                }
+                last = this;
+                for (int i = 0; i < inputs.length; i++) {
+                    final DbIterator in = inputs[i];
+                    producers[i] = new Thread(new Runnable() {
+                        public void run() {
+                            produce(in);
+                        }
+                    }, "simpledb-exchange-producer");
+                    producers[i].setDaemon(true);
+                    producers[i].start();
+                }
+            }
+
+            Chunk take(int output) throws DbException {
+                try {
+                    return queues.get(output).take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while waiting for exchange producers");
+                }
+            }
+
+            private void produce(DbIterator in) {
+                ArrayList<ArrayList<Tuple>> pending = new ArrayList<ArrayList<Tuple>>();
+                for (int o = 0; o < outputs; o++)
+                    pending.add(new ArrayList<Tuple>());
+                try {
+                    in.open();
+                    try {
+                        while (!stopped && in.hasNext()) {
+                            Tuple t = in.next();
+                            int r = route(t);
+                            if (r == ALL) {
+                                for (int o = 0; o < outputs; o++)
+                                    add(pending, o, t);
+                            } else {
+                                add(pending, r, t);
+                            }
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    for (int o = 0; o < outputs; o++) {
+                        if (!pending.get(o).isEmpty())
+                            send(o, new Chunk(pending.get(o), null));
+                        send(o, new Chunk(null, null));
+                    }
+                } catch (Throwable e) {
+                    for (int o = 0; o < outputs; o++)
+                        send(o, new Chunk(null, e));
+                }
+            }
+
+            private void add(ArrayList<ArrayList<Tuple>> pending, int output, Tuple t) {
+                if (closed.get(output) != 0)
+                    return;
+                ArrayList<Tuple> chunk = pending.get(output);
+                chunk.add(t);
+                if (chunk.size() >= CHUNK_SIZE) {
+                    send(output, new Chunk(chunk, null));
+                    pending.set(output, new ArrayList<Tuple>());
+                }
+            }
+
+            /**
+             * Queue a chunk for an output, waiting for room unless the
+             * output is closed in the meantime.
+             */
+            private void send(int output, Chunk c) {
+                ArrayBlockingQueue<Chunk> q = queues.get(output);
+                try {
+                    while (closed.get(output) == 0) {
+                        if (q.offer(c, 50, TimeUnit.MILLISECONDS))
+                            return;
+                    }
+                } catch (InterruptedException e) {
+                    // the consumer will not get this chunk; it is going away
+                }
+            }
+        }
+    }
+}
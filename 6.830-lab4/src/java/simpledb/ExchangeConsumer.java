@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExchangeConsumer is one output of an {@link Exchange}: the operator the
+ * consumer side of the plan reads. It returns the tuples the producers
+ * routed to its output, in the order they were queued.
+ * <p>
+ * If the exchange has a single output, rewinding the consumer runs the
+ * inputs again. Otherwise the other outputs may still be reading, so a
+ * consumer that will be rewound (e.g. the inner child of a nested loops
+ * join) must say so up front with {@link #setRewindable}; it then keeps
+ * the tuples it has returned and replays them. Other consumers keep
+ * nothing, so their memory stays bounded by the queues.
+ */
+public abstract class ExchangeConsumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Channel channel;
+    private final int output;
+    private boolean rewindable = false;
+
+    private transient Channel.Run run;
+    private transient Iterator<Tuple> current;
+    private transient int ended;
+    private transient ArrayList<Tuple> spool;
+    private transient int replayed;
+
+    /**
+     * @param name a short description of the exchange
+     * @param channel the producer side of the exchange
+     * @param output the output of the channel this consumer reads
+     */
+    ExchangeConsumer(String name, Channel channel, int output) {
+        super(name);
+        this.channel = channel;
+        this.output = output;
+    }
+
+    /** @return the number of outputs of the exchange this consumer reads from */
+    public int numOutputs() {
+        return channel.numOutputs();
+    }
+
+    /** @return the output of the exchange this consumer reads */
+    public int getOutput() {
+        return output;
+    }
+
+    /**
+     * Declare whether this consumer will be rewound. Only then does a
+     * consumer of an exchange with several outputs keep the tuples it
+     * returns, to replay them. Takes effect the next time it is opened.
+     */
+    public void setRewindable(boolean rewindable) {
+        this.rewindable = rewindable;
+    }
+
+    /**
+     * Set the number of tuple chunks that may wait in the queue of each
+     * output of the exchange. Takes effect the next time the inputs are
+     * started.
+     */
+    public void setQueueChunks(int chunks) {
+        channel.setQueueChunks(chunks);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return channel.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        run = channel.open(output);
+        current = null;
+        ended = 0;
+        spool = channel.numOutputs() > 1 && rewindable ? new ArrayList<Tuple>() : null;
+        replayed = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (run == null)
+            throw new IllegalStateException("exchange is not open");
+        if (spool != null && replayed < spool.size())
+            return spool.get(replayed++);
+
+        while (current == null || !current.hasNext()) {
+            current = null;
+            if (ended == channel.numInputs())
+                return null;
+            Chunk c = run.take(output);
+            if (c.error != null) {
+                if (c.error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException)c.error;
+                if (c.error instanceof DbException)
+                    throw (DbException)c.error;
+                throw new DbException("error in exchange producer: " + c.error);
+            }
+            if (c.tuples == null)
+                ended++;
+            else
+                current = c.tuples.iterator();
+        }
+        Tuple t = current.next();
+        if (spool != null) {
+            spool.add(t);
+            replayed++;
+        }
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (channel.numOutputs() == 1) {
+            close();
+            open();
+        } else if (spool == null) {
+            throw new DbException("exchange output " + output
+                + " was not declared rewindable before it was opened");
+        } else {
+            // drop the tuple hasNext may have read ahead; it is in the spool
+            super.close();
+            replayed = 0;
+        }
+    }
+
+    public void close() {
+        super.close();
+        if (run != null)
+            channel.close(run, output);
+        run = null;
+        current = null;
+        spool = null;
+    }
+
+    /**
+     * @return the inputs of the exchange, which are shared by all of its
+     *         outputs
+     */
+    public DbIterator[] getChildren() {
+        return channel.getInputs();
+    }
+
+    /**
+     * Replace the inputs of the exchange, for all of its outputs. The
+     * exchange must not be running.
+     */
+    public void setChildren(DbIterator[] children) {
+        channel.setInputs(children);
+    }
+}
@@ -2,11 +2,15 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. A Filter may
+ * test a conjunction of predicates; they are compiled into one
+ * {@link Predicate.Evaluator} when the Filter is opened.
  */
 public class Filter extends Operator {
-    private Predicate p; 
+    private Predicate[] preds; 
+    private transient Predicate.Evaluator eval;
     private DbIterator child; 
+    private transient int[] selection;
 
     /**
      * Constructor accepts a predicate to apply and a child
@@ -16,16 +20,53 @@ public class Filter extends Operator {
      * @param child The child operator
      */
     public Filter(Predicate p, DbIterator child) {
-        this.p = p;
+        this(new Predicate[] { p }, child);
+    }
+
+    /**
+     * Constructor for a filter that returns the tuples that pass all of
+     * the specified predicates.
+     *
+     * @param preds The predicates to filter tuples with
+     * @param child The child operator
+     */
+    public Filter(Predicate[] preds, DbIterator child) {
+        this.preds = preds;
         this.child = child;
     }
 
+    /**
+     * Return a Filter over the same child that also tests p, so that a
+     * conjunction is evaluated by one operator instead of a chain.
+     */
+    public Filter and(Predicate p) {
+        Predicate[] all = Arrays.copyOf(preds, preds.length + 1);
+        all[preds.length] = p;
+        return new Filter(all, child);
+    }
+
+    /** @return the first predicate of the filter */
+    public Predicate getPredicate() {
+        return preds[0];
+    }
+
+    /** @return all the predicates of the filter */
+    public Predicate[] getPredicates() {
+        return preds;
+    }
+
     public TupleDesc getTupleDesc() {
         return child.getTupleDesc();
     }
 
+    /** Filtering keeps the order of the child. */
+    public int getSortField() {
+        return sortField(child);
+    }
+
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
+        eval = Predicate.and(preds);
         child.open();
     }
 
@@ -52,9 +93,35 @@ public class Filter extends Operator {
         while (child.hasNext())
         {
             Tuple t = child.next();
-            if(p.filter(t))
+            if(eval.eval(t))
                 return t;
         }    
         return null;
     }
+
+    /**
+     * Returns the next batch of the child with its selection narrowed to
+     * the tuples that pass the predicates. Batches in which no tuple passes
+     * are skipped.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch b;
+        while ((b = TupleBatch.read(child)) != null) {
+            if (selection == null || selection.length < b.capacity())
+                selection = new int[b.capacity()];
+            for (int i = 0; i < preds.length && b.numSelected() > 0; i++)
+                preds[i].filter(b, selection);
+            if (b.numSelected() > 0)
+                return b;
+        }
+        return null;
+    }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
 }
@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * Gather runs each of its inputs in a producer thread and merges their
+ * tuples into one stream, in no particular order. With a single input it
+ * runs the subtree below it in parallel with the operators above it; with
+ * several, e.g. the per-partition pipelines below a {@link Repartition},
+ * it runs them all at once.
+ */
+public class Gather extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param inputs the subtrees to run in parallel; they must all return
+     *            tuples of the same type
+     */
+    public Gather(DbIterator[] inputs) {
+        super("gather", new Channel(inputs, 1) {
+            int route(Tuple t) {
+                return 0;
+            }
+        }, 0);
+    }
+
+    /**
+     * @param input the subtree to run in a thread of its own
+     */
+    public Gather(DbIterator input) {
+        this(new DbIterator[] { input });
+    }
+}
@@ -4,15 +4,33 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * child1 is the build side: its tuples are loaded into a hash table, and
+ * the tuples of child2 are probed into it. If child2 reads a SeqScan (see
+ * {@link JoinFilter#probeScan}) and the join key is an INT, the keys of
+ * the build side are also summarized in a {@link JoinFilter} that is
+ * pushed into that scan, so probe-side tuples without a match are dropped
+ * before they are built.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether hash joins push join filters into their probe-side scans;
+     * disabled with the system property simpledb.JoinFilters=false.
+     */
+    public static final boolean DEFAULT_JOIN_FILTER =
+        !"false".equals(System.getProperty("simpledb.JoinFilters"));
+
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    private boolean useJoinFilter = DEFAULT_JOIN_FILTER;
+    transient private JoinFilter joinFilter = null;
+    transient private SeqScan filteredScan = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -32,6 +50,22 @@ public class HashEquiJoin extends Operator {
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * Set whether this join pushes a join filter into its probe-side scan.
+     * Takes effect the next time the join is opened.
+     */
+    public void setJoinFilter(boolean enabled) {
+        useJoinFilter = enabled;
+    }
+
+    /**
+     * @return the filter this join pushed into its probe-side scan, or null
+     *         if it has none
+     */
+    public JoinFilter getJoinFilter() {
+        return joinFilter;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -53,8 +87,14 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    /**
+     * Load the next part of child1 into the hash table, and refill the join
+     * filter with its keys; child2 has to be rewound before it is probed
+     * with them.
+     */
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
+        boolean full = false;
         map.clear();
         while (child1.hasNext()) {
             t1 = child1.next();
@@ -64,34 +104,63 @@ public class HashEquiJoin extends Operator {
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            if (cnt++ == MAP_SIZE) {
+                full = true;
+                break;
+            }
         }
-        return cnt > 0;
+        if (joinFilter != null) {
+            joinFilter.reset(map.size());
+            for (Object key : map.keySet())
+                joinFilter.add(((IntField)key).getValue());
+        }
+        return full || cnt > 0;
+    }
 
+    /**
+     * Add a join filter to the scan child2 reads, if there is one.
+     */
+    private void pushJoinFilter() {
+        if (!useJoinFilter || pred.getOperator() != Predicate.Op.EQUALS
+            || child1.getTupleDesc().getFieldType(pred.getField1()) != Type.INT_TYPE)
+            return;
+        filteredScan = JoinFilter.probeScan(child2, pred.getField2());
+        if (filteredScan != null) {
+            joinFilter = new JoinFilter(pred.getField2());
+            filteredScan.addJoinFilter(joinFilter);
+        }
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        pushJoinFilter();
         child1.open();
-        child2.open();
         loadMap();
-        super.open();
+        child2.open();
+        resetBatches();
     }
 
     public void close() {
         super.close();
         child2.close();
         child1.close();
+        if (filteredScan != null)
+            filteredScan.removeJoinFilter(joinFilter);
+        filteredScan = null;
+        joinFilter = null;
         this.t1=null;
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        resetBatches();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
+        listIt = null;
+        loadMap();
         child2.rewind();
+        resetBatches();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -151,20 +220,72 @@ public class HashEquiJoin extends Operator {
         }
 
         // child2 is done: advance child1
-        child2.rewind();
         if (loadMap()) {
+            child2.rewind();
             return fetchNext();
         }
 
         return null;
     }
 
-    @Override
+    // state of the batch-at-a-time join: the current batch of child2, the
+    // position in its selection, and the child1 tuples matching that row
+    transient private TupleBatch out;
+    transient private TupleBatch probe;
+    private int probePos;
+    private int probeRow;
+    transient private ArrayList<Tuple> matches;
+    private int matchPos;
+    private boolean batchesDone;
+
+    private void resetBatches() {
+        probe = null;
+        matches = null;
+        batchesDone = false;
+    }
+
+    /**
+     * Returns the next batch of joined tuples. child2 is read a batch at a
+     * time and each selected row is probed into the hash table of child1
+     * tuples; the output has the same layout as {@link #fetchNext}.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (out == null)
+            out = new TupleBatch(comboTD);
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        int field2 = pred.getField2();
+
+        while (!out.isFull() && !batchesDone) {
+            if (matches != null && matchPos < matches.size()) {
+                int row = out.addRow();
+                out.copyTuple(matches.get(matchPos++), row, 0);
+                out.copyRow(probe, probeRow, row, td1n);
+                continue;
+            }
+            matches = null;
+            if (probe != null && probePos < probe.numSelected()) {
+                probeRow = probe.selected(probePos++);
+                matches = map.get(probe.getField(field2, probeRow));
+                matchPos = 0;
+                continue;
+            }
+            probe = TupleBatch.read(child2);
+            probePos = 0;
+            if (probe == null) {
+                // child2 is done: advance child1
+                batchesDone = !loadMap();
+                if (!batchesDone)
+                    child2.rewind();
+            }
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+
     public DbIterator[] getChildren() {
         return new DbIterator[]{this.child1, this.child2};
     }
 
-    @Override
     public void setChildren(DbIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
@@ -16,6 +16,7 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupledesc;
+    private volatile ZoneMap zoneMap;
     
 
     /**
@@ -61,6 +62,31 @@ public class HeapFile implements DbFile {
         return tupledesc;
     }
 
+    /**
+     * Keep a {@link ZoneMap} of this file, so that scans with pushed-down
+     * predicates can skip pages that cannot match. The zone map is read
+     * from its sidecar file, or built from the pages on disk if that is
+     * missing or out of date; it should be enabled before the file has any
+     * changes that have not been written. From then on it is updated when
+     * tuples are inserted and when pages are written.
+     */
+    public void enableZoneMap() throws DbException {
+        if (zoneMap != null)
+            return;
+        try {
+            zoneMap = ZoneMap.open(this);
+        } catch (IOException e) {
+            throw new DbException("could not read the zone map of " + file);
+        }
+    }
+
+    /**
+     * @return the zone map of this file, or null if it is not enabled
+     */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         try {
@@ -91,6 +117,10 @@ public class HeapFile implements DbFile {
          raf.seek(offset);
          raf.write(b, 0, Database.getBufferPool().getPageSize());
          raf.close();  
+         ZoneMap zm = zoneMap;
+         if (zm != null) {
+             zm.pageWritten(pid.pageNumber(), (HeapPage)page, b);
+         }
       } catch (IOException ex) {
          ex.printStackTrace();
       }
@@ -104,43 +134,82 @@ public class HeapFile implements DbFile {
         return (int)Math.ceil(file.length()/Database.getBufferPool().getPageSize());
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Inserts a tuple under a tuple lock on its slot, so that transactions
+     * inserting into the same page do not wait for each other; the page is
+     * only latched while the slot is picked and filled. A free slot
+     * whose lock is held by another transaction (e.g. one whose delete has
+     * not committed) is skipped.
+     *
+     * @see DbFile#insertTuple
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
-        ArrayList<Page> arr = new ArrayList<Page>();  
+        ArrayList<Page> arr = new ArrayList<Page>();
+        BufferPool bp = Database.getBufferPool();
         int tableid=this.getId();
-        for (int i=0; i<this.numPages();i++){
+        for (int i=0; arr.size()==0; i++){
+            if (i>=this.numPages()) {
+                // append an empty page, unless another transaction just did
+                synchronized (this) {
+                    if (i>=this.numPages()) {
+                        HeapPageId fresh = new HeapPageId(tableid, i);
+                        this.writePage(new HeapPage(fresh, HeapPage.createEmptyPageData()));
+                        bp.pageAppended(tid, fresh);
+                    }
+                }
+            }
             HeapPageId pid= new HeapPageId(tableid,i);
-            Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (((HeapPage)page).getNumEmptySlots()!=0){
-                arr.add(page);
-                break;
+            HeapPage page = (HeapPage)bp.getTuplePage(tid, pid, Permissions.READ_WRITE);
+            page.latch(Permissions.READ_WRITE);
+            try {
+                if (page.getNumEmptySlots()==0)
+                    continue;
+                for (int slot=0; slot<page.numSlots; slot++) {
+                    RecordId rid = new RecordId(pid, slot);
+                    if (page.isSlotUsed(slot) || !bp.tryLockTuple(tid, rid, Permissions.READ_WRITE))
+                        continue;
+                    page.insertTuple(t, slot);
+                    page.markDirty(true, tid);
+                    bp.logTupleChange(tid, rid, null);
+                    arr.add(page);
+                    break;
+                }
+            } finally {
+                page.unlatch(Permissions.READ_WRITE);
+                bp.unpinPage(pid);
             }
         }
-        
-        if(arr.size()==0)
-        {
-            HeapPageId hpid=new HeapPageId(this.getId(), this.numPages());
-            HeapPage hp=new HeapPage(hpid, HeapPage.createEmptyPageData());
-            hp.insertTuple(t);
-            this.writePage(hp);
-            arr.add(hp); 
-        }        
-        else
-        {
-            Page p = arr.get(0);
-            HeapPage hp=(HeapPage)p;
-            hp.insertTuple(t);
-            arr.add(hp);
-        }
 
+        ZoneMap zm = zoneMap;
+        if (zm != null)
+            zm.add(t.getRecordId().getPageId().pageNumber(), t);
         return arr;
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Deletes a tuple under a tuple lock on it, so that transactions
+     * deleting other tuples of the same page do not wait for each other.
+     *
+     * @see DbFile#deleteTuple
+     */
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        HeapPage heappage = (HeapPage)Database.getBufferPool().getPage(tid,t.getRecordId().getPageId(),Permissions.READ_WRITE);
-        heappage.deleteTuple(t);
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple is not stored in a table");
+        BufferPool bp = Database.getBufferPool();
+        bp.lockTuple(tid, rid, Permissions.READ_WRITE);
+        HeapPage heappage = (HeapPage)bp.getTuplePage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        heappage.latch(Permissions.READ_WRITE);
+        try {
+            Tuple old = heappage.getTuple(rid.tupleno());
+            heappage.deleteTuple(t);
+            heappage.markDirty(true, tid);
+            bp.logTupleChange(tid, rid, old);
+        } finally {
+            heappage.unlatch(Permissions.READ_WRITE);
+            bp.unpinPage(rid.getPageId());
+        }
         return heappage;
     }
 
@@ -150,5 +219,14 @@ public class HeapFile implements DbFile {
         return it;
     }
 
+    /**
+     * Returns an iterator over the tuples stored on pages
+     * [startPage, endPage) of this file. Used to split a scan into disjoint
+     * page ranges that can be read in parallel.
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return new HeapFileIterator(tid, this, startPage, endPage);
+    }
+
 }
 
@@ -4,18 +4,159 @@ import java.util.*;
 /**
  * DbFileIterator is the iterator interface that all SimpleDB Dbfile should
  * implement.
+ * <p>
+ * HeapFileIterator iterates over the tuples of a HeapFile, optionally
+ * restricted to a range of its pages.
  */
 public class HeapFileIterator implements DbFileIterator {
     private Iterator<Tuple> iterator=null;
     private int pageIndex = 0;
     private TransactionId tid;
     private HeapFile file;
+    private int startPage;
+    private int endPage;
+    private Predicate.Evaluator rowEval;
+    private Predicate.ByteEvaluator byteEval;
+    private boolean[] columns;
+    private Predicate[] preds;
+    private JoinFilter[] joinFilters;
 
     public HeapFileIterator(TransactionId tid, HeapFile f) {
+        this(tid, f, 0, -1);
+    }
+
+    /**
+     * Iterate over the tuples on pages [startPage, endPage) of the file.
+     *
+     * @param endPage one past the last page to read, or -1 to read up to the
+     *            end of the file
+     */
+    public HeapFileIterator(TransactionId tid, HeapFile f, int startPage, int endPage) {
         this.tid = tid;
         this.file = f;
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Only return the tuples that satisfy a predicate, testing them on the
+     * pages before they are decoded; see
+     * {@link HeapPage#iterator(Predicate.Evaluator, Predicate.ByteEvaluator)}.
+     * Must be called before the iterator is opened.
+     *
+     * @param preds the conjuncts of the predicate, or null to return every
+     *            tuple
+     */
+    public void setPredicates(Predicate[] preds) {
+        this.preds = preds == null || preds.length == 0 ? null : preds;
+        compileFilters();
+    }
+
+    /**
+     * Only return the tuples whose keys may be in all of the join filters,
+     * testing them like the predicates; see {@link #setPredicates}. Must
+     * be called before the iterator is opened.
+     *
+     * @param filters the join filters, or null to return every tuple
+     */
+    public void setJoinFilters(JoinFilter[] filters) {
+        this.joinFilters = filters == null || filters.length == 0 ? null : filters;
+        compileFilters();
+    }
+
+    private void compileFilters() {
+        int n = (preds == null ? 0 : 1) + (joinFilters == null ? 0 : joinFilters.length);
+        if (n == 0) {
+            rowEval = null;
+            byteEval = null;
+            return;
+        }
+        final Predicate.Evaluator[] rows = new Predicate.Evaluator[n];
+        final Predicate.ByteEvaluator[] bytes = new Predicate.ByteEvaluator[n];
+        int i = 0;
+        if (preds != null) {
+            rows[i] = Predicate.and(preds);
+            bytes[i++] = Predicate.and(preds, file.getTupleDesc());
+        }
+        if (joinFilters != null) {
+            for (JoinFilter f : joinFilters) {
+                rows[i] = f.compile();
+                bytes[i++] = f.compile(file.getTupleDesc());
+            }
+        }
+        if (n == 1) {
+            rowEval = rows[0];
+            byteEval = bytes[0];
+            return;
+        }
+        rowEval = new Predicate.Evaluator() {
+            public boolean eval(Tuple t) {
+                for (int i = 0; i < rows.length; i++)
+                    if (!rows[i].eval(t))
+                        return false;
+                return true;
+            }
+        };
+        byteEval = new Predicate.ByteEvaluator() {
+            public boolean eval(byte[] data, int offset) {
+                for (int i = 0; i < bytes.length; i++)
+                    if (!bytes[i].eval(data, offset))
+                        return false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Only decode some of the fields of the tuples that are read from disk;
+     * the other fields of the returned tuples may be null. Must be called
+     * before the iterator is opened.
+     *
+     * @param columns columns[i] is true if field i is needed, or null to
+     *            decode every field
+     */
+    public void setColumns(boolean[] columns) {
+        this.columns = columns;
     }
-    
+
+    private int lastPage() {
+        int n = file.numPages();
+        return endPage < 0 ? n : Math.min(endPage, n);
+    }
+
+    /**
+     * @return true if the zone map of the file shows that no tuple on the
+     *         page can satisfy the predicates or the join filters, so it
+     *         need not be read
+     */
+    private boolean skipPage(int pageNo) {
+        ZoneMap zm = file.getZoneMap();
+        if (zm == null)
+            return false;
+        if (preds != null && !zm.mayMatch(pageNo, preds))
+            return true;
+        if (joinFilters != null) {
+            for (JoinFilter f : joinFilters) {
+                int field = f.getField();
+                if (!f.mayContainRange(zm.getMin(pageNo, field), zm.getMax(pageNo, field)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private Iterator<Tuple> pageIterator(int pageNo)
+        throws DbException, TransactionAbortedException {
+        if (skipPage(pageNo))
+            return Collections.<Tuple>emptyList().iterator();
+        PageId pageId = new HeapPageId(file.getId(), pageNo);
+        Page page = Database.getBufferPool().getPage(tid,pageId,Permissions.READ_ONLY);
+        HeapPage heappage = (HeapPage)page;
+        if (rowEval != null || columns != null)
+            return heappage.iterator(rowEval, byteEval, columns);
+        return heappage.iterator();
+    }
+
     /**
      * Opens the iterator
      * @throws DbException when there are problems opening/accessing the database.
@@ -23,12 +164,14 @@ public class HeapFileIterator implements DbFileIterator {
     @Override
     public void open()
         throws DbException, TransactionAbortedException{
-        pageIndex = 0;
-        PageId pageId = new HeapPageId(file.getId(), pageIndex);
-        Page page = Database.getBufferPool().getPage(tid,pageId,Permissions.READ_ONLY);
-        HeapPage heappage = (HeapPage)page;
-        iterator = heappage.iterator();
-
+        // IS on the table and S on each page read, so that writers of other
+        // pages can go on; a long scan escalates to a table lock
+        Database.getBufferPool().lockTableIntention(tid, file.getId(), Permissions.READ_ONLY);
+        pageIndex = startPage;
+        if (pageIndex < lastPage())
+            iterator = pageIterator(pageIndex);
+        else
+            iterator = Collections.<Tuple>emptyList().iterator();
     }
 
     /** @return true if there are more tuples available. */
@@ -38,18 +181,14 @@ public class HeapFileIterator implements DbFileIterator {
         if(iterator==null)
             return false;
 
-        if(iterator.hasNext())
-            return true;
-        else{
-            if(pageIndex>=file.numPages()-1)
+        // skip over pages with no tuples on them
+        while (!iterator.hasNext()) {
+            if (pageIndex >= lastPage() - 1)
                 return false;
-            else{
-                PageId pageId = new HeapPageId(file.getId(), pageIndex+1);
-                Page page = Database.getBufferPool().getPage(tid,pageId,Permissions.READ_ONLY);
-                HeapPage heappage = (HeapPage)page;
-                return heappage.iterator().hasNext();
-            }
+            pageIndex++;
+            iterator = pageIterator(pageIndex);
         }
+        return true;
     }
 
     /**
@@ -62,29 +201,21 @@ public class HeapFileIterator implements DbFileIterator {
     @Override
     public Tuple next()
         throws DbException, TransactionAbortedException, NoSuchElementException{
-        if(iterator==null)
-            throw new NoSuchElementException();
-        
-        if (iterator.hasNext())
-            return iterator.next();
-        else
-        {
-            PageId pageId = new HeapPageId(file.getId(), pageIndex+1);
-            Page page = Database.getBufferPool().getPage(tid,pageId,Permissions.READ_ONLY);
-            HeapPage heappage = (HeapPage)page;
-            
-            if (page!=null)
-                if (heappage.iterator().hasNext())
-                {
-                    pageIndex++;
-                    iterator = heappage.iterator();
-                    return iterator.next();
-                }
+        if (!hasNext())
             throw new NoSuchElementException();
+        return iterator.next();
+    }
 
+    /**
+     * Append tuples to a batch until it is full or there are no more
+     * tuples, copying them a page at a time.
+     */
+    public void fill(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        while (!batch.isFull() && hasNext()) {
+            while (!batch.isFull() && iterator.hasNext())
+                batch.addTuple(iterator.next());
         }
-
-        
     }
 
     /**
@@ -1,11 +1,18 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The contents of a page are guarded by a reader/writer latch (see
+ * {@link #latch}), which is only held while they are read or changed;
+ * it is separate from the transaction locks of {@link LockSet}, which are
+ * held until a transaction ends.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,9 +23,17 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    // decoded by readers holding the latch shared, so several may store
+    // a slot at once
+    final AtomicReferenceArray<Tuple> tuples;
     final int numSlots;
+    // the page as read from disk; slots are only decoded into tuples[] on
+    // first use, so that scans with pushed-down predicates (see
+    // #iterator(Predicate.Evaluator, Predicate.ByteEvaluator)) only build
+    // the tuples they return
+    private final byte[] data;
     private TransactionId dirtyTid;
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
@@ -43,27 +58,45 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-            //System.out.println(header[i]);
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
+        System.arraycopy(data, 0, header, 0, header.length);
 
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        // the records themselves are decoded lazily, see tuple()
+        tuples = new AtomicReferenceArray<Tuple>(numSlots);
 
         setBeforeImage();
     }
 
+    /** Offset in the page data of the first byte of the given slot. */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Return the tuple in the given (used) slot, decoding it from the page
+     * data if this has not been done yet.
+     */
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples.get(slotId);
+        if (t == null) {
+            int off = slotOffset(slotId);
+            DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(data, off, td.getSize()));
+            try {
+                t = readNextTuple(dis, slotId);
+            } catch (NoSuchElementException e) {
+                e.printStackTrace();
+                return null;
+            }
+            // another reader may have decoded the slot in the meantime
+            if (!tuples.compareAndSet(slotId, null, t))
+                t = tuples.get(slotId);
+        }
+        return t;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -108,6 +141,38 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Set the before image to the given page data, e.g. the committed
+        image of a page that other transactions have changed too */
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = data;
+        }
+    }
+
+    /**
+     * Take the latch of this page: shared to read its contents
+     * (READ_ONLY), exclusive to change them (READ_WRITE). Latches are
+     * held only for the duration of the access and must be released with
+     * {@link #unlatch}; a thread holding the latch exclusive may also take
+     * it shared. The methods of this class take the latch themselves, so
+     * callers only need it to make several calls atomic.
+     */
+    public void latch(Permissions perm) {
+        if (perm == Permissions.READ_ONLY)
+            latch.readLock().lock();
+        else
+            latch.writeLock().lock();
+    }
+
+    /** Release the latch taken by {@link #latch} with the same perm. */
+    public void unlatch(Permissions perm) {
+        if (perm == Permissions.READ_ONLY)
+            latch.readLock().unlock();
+        else
+            latch.writeLock().unlock();
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -115,6 +180,34 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /**
+     * Decode only some of the fields of the tuple in the given (used) slot;
+     * the other fields of the returned tuple are null. The tuple is not
+     * kept by the page.
+     *
+     * @param columns columns[i] is true if field i should be decoded
+     */
+    private Tuple readTuple(int slotId, boolean[] columns) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int off = slotOffset(slotId);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                if (columns[j]) {
+                    DataInputStream dis = new DataInputStream(
+                        new ByteArrayInputStream(data, off, type.getLen()));
+                    t.setField(j, type.parse(dis));
+                }
+                off += type.getLen();
+            }
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
     /**
      * Suck up tuples from the source file.
      */
@@ -161,6 +254,15 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        latch(Permissions.READ_ONLY);
+        try {
+            return pageData();
+        } finally {
+            unlatch(Permissions.READ_ONLY);
+        }
+    }
+
+    private byte[] pageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -176,7 +278,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        for (int i=0; i<numSlots; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
@@ -191,9 +293,20 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: copy its bytes
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -204,7 +317,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * numSlots); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -248,18 +361,17 @@ public class HeapPage implements Page {
         int tupleno = recordid.tupleno();
         
         HeapPageId heappageid = (HeapPageId)pageid;
-        if(heappageid.equals(pid))
-        {
-            if(isSlotUsed(tupleno))
-            {
-               markSlotUsed(tupleno,false); 
-            }
-            else
+        if(!heappageid.equals(pid))
+            throw new DbException("this tuple is not on this page");
+        latch(Permissions.READ_WRITE);
+        try {
+            if(!isSlotUsed(tupleno))
                 throw new DbException("tuple slot is already empty");
+            markSlotUsed(tupleno,false);
+            tuples.set(tupleno, null);
+        } finally {
+            unlatch(Permissions.READ_WRITE);
         }
-        else
-            throw new DbException("this tuple is not on this page");
-        
     }
 
     /**
@@ -270,25 +382,71 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        if(getNumEmptySlots()==0)
-            throw new DbException("the page is full (no empty slots)");
+        latch(Permissions.READ_WRITE);
+        try {
+            if(getNumEmptySlots()==0)
+                throw new DbException("the page is full (no empty slots)");
+            for(int i=0;i<numSlots;++i)
+            {
+                if(!isSlotUsed(i))
+                {
+                    insertTuple(t,i);
+                    return;
+                }
+            }
+        } finally {
+            unlatch(Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page in the given slot;  the tuple is
+     *  updated to reflect that it is now stored there.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The (empty) slot to add it to.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
         if(!t.getTupleDesc().equals(td))
             throw new DbException("tupledesc is mismatch");
+        latch(Permissions.READ_WRITE);
+        try {
+            if(isSlotUsed(slot))
+                throw new DbException("tuple slot is already used");
+            tuples.set(slot, t);
+            markSlotUsed(slot,true);
+            t.setRecordId(new RecordId(pid,slot));
+        } finally {
+            unlatch(Permissions.READ_WRITE);
+        }
+    }
 
-        for(int i=0;i<tuples.length;++i)
-        {
-            if(!isSlotUsed(i))
-            {
-                tuples[i] = t;
-                markSlotUsed(i,true);
-                
-                RecordId recordid = new RecordId(pid,i);
-                t.setRecordId(recordid);
-                return;
-            }
+    /**
+     * @return the tuple in the given slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        latch(Permissions.READ_ONLY);
+        try {
+            return isSlotUsed(slot) ? tuple(slot) : null;
+        } finally {
+            unlatch(Permissions.READ_ONLY);
         }
+    }
 
-            
+    /**
+     * Put a slot back as it was before a change of an aborted transaction:
+     * holding t, or empty if t is null.
+     */
+    void restoreTuple(int slot, Tuple t) {
+        latch(Permissions.READ_WRITE);
+        try {
+            tuples.set(slot, t);
+            markSlotUsed(slot, t != null);
+            if (t != null)
+                t.setRecordId(new RecordId(pid, slot));
+        } finally {
+            unlatch(Permissions.READ_WRITE);
+        }
     }
 
     /**
@@ -314,7 +472,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         int count = 0;
-        for(int i=0;i<tuples.length;++i)
+        for(int i=0;i<numSlots;++i)
         {
             if(!isSlotUsed(i))
                 count++;
@@ -322,6 +480,17 @@ public class HeapPage implements Page {
         return count;
     }
 
+    /**
+     * Returns the number of tuples on this page, counted from the header
+     * without looking at the tuples.
+     */
+    public int getNumUsedSlots() {
+        int count = 0;
+        for (int i = 0; i < header.length; ++i)
+            count += Integer.bitCount(header[i] & 0xff);
+        return count;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -354,10 +523,69 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         ArrayList<Tuple> arr = new ArrayList<Tuple>();
-        for(int i=0;i<tuples.length;++i)
-            if(isSlotUsed(i))
-                arr.add(tuples[i]);
+        latch(Permissions.READ_ONLY);
+        try {
+            for(int i=0;i<numSlots;++i)
+                if(isSlotUsed(i))
+                    arr.add(tuple(i));
+        } finally {
+            unlatch(Permissions.READ_ONLY);
+        }
+
+        return arr.iterator();
+    }
 
+    /**
+     * Return an iterator over the tuples on this page that satisfy a
+     * predicate. Slots that have not been decoded yet are tested on their
+     * serialized bytes with byteEval, and only the slots that pass are
+     * decoded into tuples; slots that have already been decoded (e.g.
+     * because they were inserted or read before) are tested with rowEval.
+     *
+     * @param rowEval the predicate, compiled for tuples
+     * @param byteEval the same predicate, compiled for the serialized
+     *            tuples of this page's TupleDesc
+     * @see Predicate#and(Predicate[])
+     * @see Predicate#and(Predicate[], TupleDesc)
+     */
+    public Iterator<Tuple> iterator(Predicate.Evaluator rowEval,
+            Predicate.ByteEvaluator byteEval) {
+        return iterator(rowEval, byteEval, null);
+    }
+
+    /**
+     * Return an iterator over the tuples on this page that satisfy a
+     * predicate, decoding only some of their fields. Slots that have
+     * already been decoded are returned whole; the tuples built for the
+     * other slots have null in the fields that were not asked for, and are
+     * not kept by the page.
+     *
+     * @param rowEval the predicate compiled for tuples, or null to return
+     *            every tuple
+     * @param byteEval the same predicate compiled for serialized tuples,
+     *            or null to return every tuple
+     * @param columns columns[i] is true if field i is needed, or null to
+     *            decode every field
+     */
+    public Iterator<Tuple> iterator(Predicate.Evaluator rowEval,
+            Predicate.ByteEvaluator byteEval, boolean[] columns) {
+        ArrayList<Tuple> arr = new ArrayList<Tuple>();
+        latch(Permissions.READ_ONLY);
+        try {
+            for (int i = 0; i < numSlots; ++i) {
+                if (!isSlotUsed(i))
+                    continue;
+                Tuple t = tuples.get(i);
+                if (t != null) {
+                    if (rowEval == null || rowEval.eval(t))
+                        arr.add(t);
+                } else if (byteEval == null || byteEval.eval(data, slotOffset(i))) {
+                    arr.add(columns == null ? tuple(i) : readTuple(i, columns));
+                }
+            }
+        } finally {
+            unlatch(Permissions.READ_ONLY);
+        }
         return arr.iterator();
     }
 
@@ -91,4 +91,12 @@ public class Insert extends Operator {
 
         }
     }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
 }
@@ -10,9 +10,8 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what; 
-    private ArrayList<Tuple> TupleList; 
-    private ArrayList<Integer> CountList; 
-    private ArrayList<Integer> SumList; 
+    private AggregationTable table;
+    private int[] gbfields;
     private TupleDesc td;
     /**
      * Aggregate constructor
@@ -27,9 +26,8 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        TupleList = new ArrayList<Tuple>();
-        CountList = new ArrayList<Integer>();
-        SumList = new ArrayList<Integer>();
+        table = new AggregationTable(gbfield==Aggregator.NO_GROUPING ? null : gbfieldtype);
+        gbfields = gbfield==Aggregator.NO_GROUPING ? new int[0] : new int[] { gbfield };
 
         //set tupledesc
         if(gbfield==Aggregator.NO_GROUPING)
@@ -54,109 +52,29 @@ public class IntegerAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        if(gbfield==Aggregator.NO_GROUPING)
-        {
-            int tupValue = ((IntField)tup.getField(afield)).getValue();
-            if(TupleList.size()!=0)
-            {
-                Tuple t = TupleList.get(0);
-                int tValue = ((IntField)t.getField(0)).getValue();
-                if(what==Op.MIN)
-                {
-                    t.setField(0,new IntField(Math.min(tValue,tupValue)));
-                }
-                else if(what==Op.MAX)
-                {
-                    t.setField(0,new IntField(Math.max(tValue,tupValue)));
-                }
-                else if(what==Op.SUM)
-                {
-                    t.setField(0,new IntField(tValue+tupValue));
-                }
-                else if(what==Op.AVG)
-                {
-                    CountList.set(0,CountList.get(0)+1);
-                    SumList.set(0,SumList.get(0)+tupValue);
-                    int n = SumList.get(0)/CountList.get(0);
-                    t.setField(0,new IntField(n));
-                }
-                else if(what==Op.COUNT)
-                {
-                    t.setField(0,new IntField(tValue+1));
-                }
-            }
-            else
-            {
-                if(what==Op.AVG)
-                {
-                    CountList.add(1);
-                    SumList.add(tupValue);
-                }
-                else if(what==Op.COUNT)
-                {
-                    tupValue = 1;
-                }
+        int group = table.findOrInsert(gbfield==Aggregator.NO_GROUPING ? null : tup.getField(gbfield));
+        table.merge(group, ((IntField)tup.getField(afield)).getValue());
+    }
 
-                Tuple t = new Tuple(td);
-                t.setField(0,new IntField(tupValue));
-                TupleList.add(t);
-                
-            }
+    public void mergeBatch(TupleBatch batch) {
+        int[] values = batch.intColumn(afield);
+        int n = batch.numSelected();
+        for (int i = 0; i < n; i++) {
+            int row = batch.selected(i);
+            table.merge(table.findOrInsert(batch, row, gbfields), values[row]);
         }
-        else
-        {
-            for(int i=0;i<TupleList.size();++i)
-            {
-                Tuple t = TupleList.get(i);
-                if(t.getField(0).equals(tup.getField(gbfield)))
-                {
-                    int tupValue = ((IntField)tup.getField(afield)).getValue();
-                    int tValue = ((IntField)t.getField(1)).getValue();
-                    if(what==Op.MIN)
-                    {
-                        t.setField(1,new IntField(Math.min(tValue,tupValue)));
-                    }
-                    else if(what==Op.MAX)
-                    {
-                        t.setField(1,new IntField(Math.max(tValue,tupValue)));
-                    }
-                    else if(what==Op.SUM)
-                    {
-                        t.setField(1,new IntField(tValue+tupValue));
-                    }
-                    else if(what==Op.AVG)
-                    {
-                        CountList.set(i,CountList.get(i)+1);
-                        SumList.set(i,SumList.get(i)+tupValue);
-                        t.setField(1,new IntField(SumList.get(i)/CountList.get(i)));
-                    }
-                    else if(what==Op.COUNT)
-                    {
-                        t.setField(1,new IntField(tValue+1));
-                    }
-                    return;
-                }
-            }
+    }
 
-            Tuple t = new Tuple(td);
-            Field f0 = tup.getField(gbfield);
-            Field f1 = tup.getField(afield);
-            
+    public boolean hasGroup(Tuple tup) {
+        return table.find(gbfield==Aggregator.NO_GROUPING ? null : tup.getField(gbfield)) >= 0;
+    }
 
-            if(what==Op.AVG)
-            {
-                CountList.add(1);
-                SumList.add(((IntField)tup.getField(afield)).getValue());
-            }
-            else if(what==Op.COUNT)
-            {
-                f1 = new IntField(1);
-            }
-            t.setField(0,f0);
-            t.setField(1,f1);
-            TupleList.add(t);
+    public long memoryUsage() {
+        return table.memoryUsage();
+    }
 
-        }
+    public void combine(Aggregator partial) {
+        table.combine(((IntegerAggregator)partial).table);
     }
 
     /**
@@ -168,7 +86,7 @@ public class IntegerAggregator implements Aggregator {
      *   aggregate specified in the constructor.
      */
     public DbIterator iterator() {
-        Iterable<Tuple> it = TupleList;
+        Iterable<Tuple> it = table.results(td,what);
         return new TupleIterator(td,it);
     }
 
@@ -6,6 +6,7 @@ import java.util.*;
  */
 public class Join extends Operator {
     private JoinPredicate p; 
+    private transient JoinPredicate.Evaluator eval;
     private DbIterator child1; 
     private DbIterator child2; 
     private Tuple t1; 
@@ -25,6 +26,21 @@ public class Join extends Operator {
         this.child2 = child2;
     }
 
+    /** @return the predicate the children are joined on */
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /** @return the name of the join field of the outer (left) child */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /** @return the name of the join field of the inner (right) child */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
     /**
      * @see simpledb.TupleDesc#merge(TupleDesc, TupleDesc) for possible implementation logic.
      */
@@ -32,8 +48,17 @@ public class Join extends Operator {
         return TupleDesc.merge(child1.getTupleDesc(),child2.getTupleDesc());
     }
 
+    /**
+     * The nested loops return the tuples in the order of the outer child,
+     * whose fields come first in the output.
+     */
+    public int getSortField() {
+        return sortField(child1);
+    }
+
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
+        eval = p.compile(child1.getTupleDesc().getFieldType(p.getField1()));
         child1.open();
         child2.open();
         t1 = child1.next();
@@ -76,7 +101,7 @@ public class Join extends Operator {
             while(child2.hasNext())
             {
                 t2 = child2.next();
-                if(p.filter(t1,t2))
+                if(eval.eval(t1,t2))
                 {
                     Tuple t = new Tuple(getTupleDesc());
                     int index=0,index2=0;
@@ -97,4 +122,13 @@ public class Join extends Operator {
                 return null;
         }
     }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
 }
@@ -0,0 +1,158 @@
+package simpledb;
+
+/**
+ * JoinFilter summarizes the join keys on the build side of a hash join,
+ * so that the probe side can drop the tuples that cannot find a match
+ * before they are built. It holds the range of the keys and a Bloom
+ * filter over them: a key outside the range, or whose bits are not all
+ * set, is certainly not a key of the build side; any other key may be.
+ * <p>
+ * A HashEquiJoin fills its filter once it has read the build side and
+ * adds it to the probe-side SeqScan with {@link SeqScan#addJoinFilter}.
+ * The scan then tests the filter on the bytes of each slot, like its
+ * predicates, and uses the range of the filter to skip pages with the
+ * table's zone map. The evaluators returned by compile read the current
+ * contents of the filter, so it can be refilled between scans without
+ * being added again.
+ * <p>
+ * Only INT keys are supported.
+ */
+public class JoinFilter {
+    // number of bits set per key
+    private static final int HASHES = 3;
+    // bits per expected key; with 3 hashes about 3% false positives
+    private static final int BITS_PER_KEY = 8;
+
+    private final int field;
+    private long[] bits = new long[1];
+    private int mask = 63;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * @param field the index of the key field in the probe-side tuples
+     */
+    public JoinFilter(int field) {
+        this.field = field;
+    }
+
+    /** @return the index of the key field in the probe-side tuples */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Empty the filter and size it for a number of keys.
+     */
+    public void reset(int expectedKeys) {
+        int n = 64;
+        while (n < expectedKeys * BITS_PER_KEY && n < (1 << 30))
+            n <<= 1;
+        bits = new long[n / 64];
+        mask = n - 1;
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+    }
+
+    /** Add a key of the build side. */
+    public void add(int key) {
+        if (key < min)
+            min = key;
+        if (key > max)
+            max = key;
+        long h = hash(key);
+        int h1 = (int)h, h2 = (int)(h >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            bits[b >>> 6] |= 1L << b;
+        }
+    }
+
+    /** @return false if key is certainly not a key of the build side */
+    public boolean mayContain(int key) {
+        if (key < min || key > max)
+            return false;
+        long h = hash(key);
+        int h1 = (int)h, h2 = (int)(h >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if no key in [lo, hi] can be a key of the build side
+     */
+    public boolean mayContainRange(int lo, int hi) {
+        return min <= max && lo <= max && hi >= min;
+    }
+
+    // the finalizer of MurmurHash3, spreading the bits of the key over
+    // both halves of the result
+    private static long hash(int key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Compile the filter to test tuples of the probe side.
+     */
+    public Predicate.Evaluator compile() {
+        return new Predicate.Evaluator() {
+            public boolean eval(Tuple t) {
+                return mayContain(((IntField)t.getField(field)).getValue());
+            }
+        };
+    }
+
+    /**
+     * Compile the filter to test serialized tuples of the specified
+     * TupleDesc without decoding them.
+     */
+    public Predicate.ByteEvaluator compile(TupleDesc td) {
+        int off = 0;
+        for (int i = 0; i < field; i++)
+            off += td.getFieldType(i).getLen();
+        final int fieldOffset = off;
+        return new Predicate.ByteEvaluator() {
+            public boolean eval(byte[] data, int offset) {
+                return mayContain(Predicate.readInt(data, offset + fieldOffset));
+            }
+        };
+    }
+
+    /**
+     * Find the scan a join filter on the given field of a probe-side plan
+     * can be pushed into: a SeqScan of a HeapFile, possibly below Filters
+     * or in a ParallelScan without a pipeline, none of which move fields.
+     *
+     * @return the scan, or null if there is none or the field is not INT
+     */
+    public static SeqScan probeScan(DbIterator probe, int field) {
+        if (probe.getTupleDesc().getFieldType(field) != Type.INT_TYPE)
+            return null;
+        while (true) {
+            if (probe instanceof Filter) {
+                probe = ((Filter)probe).getChildren()[0];
+            } else if (probe instanceof ParallelScan
+                       && ((ParallelScan)probe).getPipeline() == null) {
+                probe = ((ParallelScan)probe).getScan();
+            } else {
+                break;
+            }
+        }
+        if (!(probe instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan)probe;
+        if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+            return null;
+        return scan;
+    }
+}
@@ -8,8 +8,26 @@ import javax.swing.tree.*;
  *    join for a given logical plan.
 */
 public class JoinOptimizer {
+    /**
+     * Whether star joins are run as one {@link StarJoin}; disabled with the
+     * system property simpledb.StarJoins=false.
+     */
+    public static final boolean STAR_JOINS =
+        !"false".equals(System.getProperty("simpledb.StarJoins"));
+
+    /**
+     * Default limit on the estimated number of dimension tuples a
+     * {@link StarJoin} holds in memory, over all of its dimensions; set with
+     * the system property simpledb.StarJoinMaxTuples. A star with larger
+     * dimensions is ordered as binary joins instead. The default is the
+     * number of tuples a {@link HashEquiJoin} holds at once.
+     */
+    public static final int DEFAULT_STAR_JOIN_MAX_TUPLES =
+        Integer.getInteger("simpledb.StarJoinMaxTuples", HashEquiJoin.MAP_SIZE);
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    private int starJoinMaxTuples = DEFAULT_STAR_JOIN_MAX_TUPLES;
 
     /** Constructor
         @param p the logical plan being optimized
@@ -327,6 +345,121 @@ public class JoinOptimizer {
 		return plan;
     } 
  
+    /**
+     * Decide whether the joins form a star that should be run as one
+     * {@link StarJoin}: every join is an equality join between one table
+     * (the fact table) and a different other table (a dimension), there
+     * are at least two of them, no dimension is expected to be larger
+     * than the fact table after its filters, and the dimensions together
+     * are expected to fit in the limit set by
+     * {@link #setStarJoinMaxTuples}.
+     *
+     * @param stats table stats for all of the base tables (see
+     *        {@link #orderJoins})
+     * @param filterSelectivities the selectivities of the filters over
+     *        each of the tables
+     * @return the alias of the fact table, or null if the joins are not a
+     *         star join
+     */
+    public String findStarJoin(HashMap<String, TableStats> stats,
+                               HashMap<String, Double> filterSelectivities) {
+        if (!STAR_JOINS || joins.size() < 2)
+            return null;
+        LogicalJoinNode first = joins.get(0);
+        if (first instanceof LogicalSubplanJoinNode)
+            return null;
+        String[] candidates = { first.t1Alias, first.t2Alias };
+        for (String fact : candidates) {
+            HashSet<String> dims = new HashSet<String>();
+            boolean star = true;
+            for (LogicalJoinNode j : joins) {
+                if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS) {
+                    star = false;
+                    break;
+                }
+                String dim = j.t1Alias.equals(fact) ? j.t2Alias
+                    : j.t2Alias.equals(fact) ? j.t1Alias : null;
+                if (dim == null || dim.equals(fact) || !dims.add(dim)) {
+                    star = false;
+                    break;
+                }
+            }
+            if (!star)
+                continue;
+            int factCard = estimateCardinality(fact, stats, filterSelectivities);
+            long dimTuples = 0;
+            for (String dim : dims) {
+                int dimCard = estimateCardinality(dim, stats, filterSelectivities);
+                if (dimCard > factCard)
+                    return null;
+                dimTuples += dimCard;
+            }
+            // StarJoin loads every dimension whole; orderJoins' hash joins
+            // build in chunks
+            if (dimTuples > starJoinMaxTuples)
+                return null;
+            return fact;
+        }
+        return null;
+    }
+
+    /**
+     * Set the largest estimated number of tuples the dimensions of a star
+     * join may have together for it to run as one {@link StarJoin}.
+     */
+    public void setStarJoinMaxTuples(int tuples) {
+        starJoinMaxTuples = tuples;
+    }
+
+    private int estimateCardinality(String alias, HashMap<String, TableStats> stats,
+                                    HashMap<String, Double> filterSelectivities) {
+        TableStats s = stats.get(alias);
+        Double sel = filterSelectivities.get(alias);
+        if (s == null)
+            return 0;
+        return s.estimateTableCardinality(sel == null ? 1.0 : sel);
+    }
+
+    /**
+     * Build the StarJoin of a star of joins found by
+     * {@link #findStarJoin}.
+     *
+     * @param fact the alias of the fact table
+     * @param subplans the plan of each table, by alias
+     * @return the star join, whose output has the fields of the fact table
+     *         followed by those of each dimension, in the order of the joins
+     */
+    public DbIterator instantiateStarJoin(String fact, Map<String, DbIterator> subplans)
+            throws ParsingException {
+        DbIterator factPlan = subplans.get(fact);
+        if (factPlan == null)
+            throw new ParsingException("Unknown table in WHERE clause " + fact);
+        DbIterator[] dims = new DbIterator[joins.size()];
+        int[] factFields = new int[joins.size()];
+        int[] dimFields = new int[joins.size()];
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode j = joins.get(i);
+            boolean factFirst = j.t1Alias.equals(fact);
+            String dim = factFirst ? j.t2Alias : j.t1Alias;
+            String factField = factFirst ? j.f1 : j.f2;
+            String dimField = factFirst ? j.f2 : j.f1;
+            dims[i] = subplans.get(dim);
+            if (dims[i] == null)
+                throw new ParsingException("Unknown table in WHERE clause " + dim);
+            try {
+                factFields[i] = factPlan.getTupleDesc().fieldNameToIndex(p.disambiguateName(factField));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + factField);
+            }
+            try {
+                dimFields[i] = dims[i].getTupleDesc().fieldNameToIndex(p.disambiguateName(dimField));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + dimField);
+            }
+        }
+        return new StarJoin(factPlan, dims, factFields, dimFields);
+    }
+
     //===================== Private Methods =================================
 
     /** This is a helper method that computes the cost and cardinality
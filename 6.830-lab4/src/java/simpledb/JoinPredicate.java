@@ -6,6 +6,15 @@ package simpledb;
  */
 public class JoinPredicate {
 
+    /**
+     * A join predicate compiled for the type of the joined fields; see
+     * {@link JoinPredicate#compile}.
+     */
+    public interface Evaluator {
+        /** @return true if the tuples satisfy the predicate */
+        public boolean eval(Tuple t1, Tuple t2);
+    }
+
     private int field1;
     private int field2;
     private Predicate.Op op;
@@ -26,6 +35,21 @@ public class JoinPredicate {
         this.op = op;
     }
 
+    /** @return the field index into the first tuple of the predicate */
+    public int getField1() {
+        return field1;
+    }
+
+    /** @return the field index into the second tuple of the predicate */
+    public int getField2() {
+        return field2;
+    }
+
+    /** @return the comparison applied by the predicate */
+    public Predicate.Op getOperator() {
+        return op;
+    }
+
     /**
      * Apply the predicate to the two specified tuples.
      * The comparison can be made through Field's compare method.
@@ -36,4 +60,65 @@ public class JoinPredicate {
         Field t2Field=t2.getField(field2);
         return t1Field.compare(op, t2Field);
     }
+
+    /**
+     * Compile the predicate into an Evaluator specialized for the operation
+     * and for the type of the joined fields, so that integer joins compare
+     * two ints instead of calling Field.compare. Compile once per join, not
+     * once per pair of tuples.
+     *
+     * @param type the type of field1 (and field2)
+     */
+    public Evaluator compile(Type type) {
+        final int f1 = field1;
+        final int f2 = field2;
+        if (type == Type.INT_TYPE) {
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return new Evaluator() {
+                    public boolean eval(Tuple t1, Tuple t2) {
+                        return ((IntField) t1.getField(f1)).getValue() == ((IntField) t2.getField(f2)).getValue();
+                    }
+                };
+            case NOT_EQUALS:
+                return new Evaluator() {
+                    public boolean eval(Tuple t1, Tuple t2) {
+                        return ((IntField) t1.getField(f1)).getValue() != ((IntField) t2.getField(f2)).getValue();
+                    }
+                };
+            case GREATER_THAN:
+                return new Evaluator() {
+                    public boolean eval(Tuple t1, Tuple t2) {
+                        return ((IntField) t1.getField(f1)).getValue() > ((IntField) t2.getField(f2)).getValue();
+                    }
+                };
+            case GREATER_THAN_OR_EQ:
+                return new Evaluator() {
+                    public boolean eval(Tuple t1, Tuple t2) {
+                        return ((IntField) t1.getField(f1)).getValue() >= ((IntField) t2.getField(f2)).getValue();
+                    }
+                };
+            case LESS_THAN:
+                return new Evaluator() {
+                    public boolean eval(Tuple t1, Tuple t2) {
+                        return ((IntField) t1.getField(f1)).getValue() < ((IntField) t2.getField(f2)).getValue();
+                    }
+                };
+            case LESS_THAN_OR_EQ:
+                return new Evaluator() {
+                    public boolean eval(Tuple t1, Tuple t2) {
+                        return ((IntField) t1.getField(f1)).getValue() <= ((IntField) t2.getField(f2)).getValue();
+                    }
+                };
+            }
+        }
+
+        final Predicate.Op o = op;
+        return new Evaluator() {
+            public boolean eval(Tuple t1, Tuple t2) {
+                return t1.getField(f1).compare(o, t2.getField(f2));
+            }
+        };
+    }
 }
@@ -1,204 +1,1078 @@
 package simpledb;
 
-import java.io.*;
-
+import java.io.PrintStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * LockSet is used to implement locks needed by transactions
+ * <p>
+ * Locks are taken on three levels: tables, their pages and the tuples of
+ * the pages, keyed by RecordId. Before a page is locked S or X, its table
+ * is locked in the intention mode IS or IX, and before a tuple is, its
+ * page and table are; a transaction that holds S (or SIX) or X on a table
+ * or page needs no locks below it to read (or write). A scan holds IS on
+ * its table and S on each page it reads, so writers of other pages are
+ * not blocked, while writers that lock single tuples only hold IX on the
+ * page, so several of them can change different tuples of one page at
+ * once. A transaction that has taken {@link #getEscalationThreshold} page
+ * and tuple locks on a table trades them for one table lock, if it can be
+ * granted at once, so the number of locks a transaction holds stays
+ * bounded. See {@link Mode}.
+ * <p>
+ * Each table and page has a queue of lock requests. A request that is
+ * compatible with the locks held on it is granted at once if nobody is
+ * queued before it; otherwise it waits in the queue, parked on a condition
+ * of its own, until a release grants it. Releasing a lock grants the
+ * queued requests in order, up to the first that is still blocked, so a
+ * writer is not starved by a stream of readers. A request to strengthen a
+ * lock the transaction holds is queued ahead of the requests of other
+ * transactions.
+ * <p>
+ * The lock table is guarded by one mutex, which is only held while it is
+ * read or changed, never while a request waits.
+ * <p>
+ * Deadlocks are found in the waits-for graph of the transactions. A
+ * waiting request waits for the holders of its table, page or tuple and the
+ * requests queued before it that it conflicts with; the edges are read off
+ * the lock table, so the graph is always current. Only a request that
+ * starts to wait adds edges, and they all leave its transaction, so a new
+ * cycle always runs through that transaction and is found by a search from
+ * it when it blocks. One transaction of each cycle is chosen as the victim
+ * (see {@link Victim}) and its waiting requests are aborted.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them with
+ * one of the timestamp schemes of {@link Policy}, taking the order of the
+ * transaction ids as the order of the transactions. These only let the
+ * waits-for edges run one way, which holds as long as every edge is added
+ * when its request blocks, so under them upgrades are queued at the end
+ * like any other request.
+ * <p>
+ * The requests are counted per table and page in {@link LockStats}, and
+ * the holders and waiters of a lock can be listed, to find the tables and
+ * pages transactions contend for; see {@link #getStats},
+ * {@link #getHolders} and {@link #startStatsDump}.
  */
 public class LockSet {
-    private final ConcurrentMap<PageId, Object> lockRegistry;
-    private final Map<PageId, Set<TransactionId>> sharedLocks;
-    private final Map<PageId, TransactionId> exclusiveLocks;
-    private final Map<TransactionId, Set<PageId>> relatedPages;
-    
-    private final Map<TransactionId, PageId> wishLock;
-    
+
+    /** How the transaction to abort in a deadlock is chosen. */
+    public enum Victim
+    {
+        /** the transaction that started last */
+        YOUNGEST,
+        /** the transaction holding the fewest locks, then the youngest */
+        LEAST_WORK
+    }
+
+    /** The default victim policy, set by the simpledb.DeadlockVictim property. */
+    public static final Victim DEFAULT_VICTIM =
+        Victim.valueOf(System.getProperty("simpledb.DeadlockVictim", "YOUNGEST").toUpperCase());
+
+    /** How deadlocks are handled. */
+    public enum Policy
+    {
+        /** requests wait; cycles in the waits-for graph are broken */
+        DETECT,
+        /**
+         * a request that would wait for an older transaction aborts
+         * ("dies"); older transactions wait for younger ones
+         */
+        WAIT_DIE,
+        /**
+         * a request aborts ("wounds") the younger transactions it would
+         * wait for, then waits; younger transactions wait for older ones.
+         * A wounded transaction that is not waiting aborts at its next lock
+         * request.
+         */
+        WOUND_WAIT
+    }
+
+    /** The default deadlock policy, set by the simpledb.LockPolicy property. */
+    public static final Policy DEFAULT_POLICY =
+        Policy.valueOf(System.getProperty("simpledb.LockPolicy", "DETECT").toUpperCase());
+
+    /**
+     * The number of page and tuple locks of one table after which a
+     * transaction tries to escalate to a table lock, set by the
+     * simpledb.LockEscalationPages property.
+     */
+    public static final int DEFAULT_ESCALATION =
+        Math.max(1, Integer.getInteger("simpledb.LockEscalationPages", 1000));
+
+    /**
+     * The period of the dump of the lock statistics to standard output, in
+     * ms, set by the simpledb.LockStatsInterval property; 0 (the default)
+     * for no dump.
+     */
+    public static final long DEFAULT_STATS_INTERVAL =
+        Math.max(0, Long.getLong("simpledb.LockStatsInterval", 0));
+
+    /** The number of most contended pages each dump lists. */
+    public static final int DUMP_PAGES = 10;
+
+    /**
+     * Lock modes. Tuples are only locked S or X. Tables and pages may be
+     * locked in any mode: IS and IX announce S and X locks on some of the
+     * pages or tuples below them, SIX is S on all of them together with
+     * IX.
+     */
+    public enum Mode
+    {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //         IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+        };
+
+        /** @return true if two transactions may hold this mode and other at once */
+        public boolean compatible(Mode other)
+        {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both this mode and other */
+        public Mode join(Mode other)
+        {
+            if (this == other || other == IS)
+                return this;
+            if (this == IS)
+                return other;
+            if (this == X || other == X)
+                return X;
+            return SIX;
+        }
+
+        /** @return true if holding this mode grants other */
+        public boolean covers(Mode other)
+        {
+            return join(other) == this;
+        }
+
+        /**
+         * @return true if holding this mode on a table or page makes a
+         *         lock in mode child on a page or tuple below it
+         *         unnecessary
+         */
+        public boolean grants(Mode child)
+        {
+            if (this == X)
+                return true;
+            return (child == S || child == IS) && covers(S);
+        }
+    }
+
+    /** A lock request of a transaction on a table, page or tuple. */
+    private static class Request
+    {
+        final TransactionId tid;
+        final Object key;
+        final Mode mode;
+        // queued ahead of the requests that are not upgrades
+        final boolean upgrade;
+        final Condition done;
+        boolean granted;
+        boolean aborted;
+
+        Request(TransactionId tid, Object key, Mode mode, boolean upgrade, Condition done)
+        {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.done = done;
+        }
+    }
+
+    /** The locks held on a table, page or tuple and the requests waiting for it. */
+    private static class LockQueue
+    {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+        final LinkedList<Request> waiters = new LinkedList<Request>();
+
+        /** @return true if r can be granted with the locks held now */
+        boolean compatible(Request r)
+        {
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet())
+            {
+                if (!e.getKey().equals(r.tid) && !r.mode.compatible(e.getValue()))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private final ReentrantLock mutex = new ReentrantLock();
+    // keyed by RecordId for tuples, PageId for pages and by the Integer id
+    // for tables
+    private final HashMap<Object, LockQueue> queues;
+    // the tables, pages and tuples each transaction holds locks on
+    private final HashMap<TransactionId, Set<Object>> relatedLocks;
+    // the number of page and tuple locks each transaction holds per table
+    private final HashMap<TransactionId, HashMap<Integer, Integer>> lockCounts;
+    // the requests each transaction is waiting on; several threads of one
+    // transaction may wait at once
+    private final HashMap<TransactionId, List<Request>> waiting;
+    // transactions wounded by older ones under WOUND_WAIT, until they end
+    private final HashSet<TransactionId> wounded;
+    private volatile Victim victim = DEFAULT_VICTIM;
+    private volatile Policy policy = DEFAULT_POLICY;
+    private volatile int escalation = DEFAULT_ESCALATION;
+    private final LockStats stats;
+    // dumps the statistics periodically, if started
+    private Timer dumper;
+
     public LockSet()
     {
-        lockRegistry = new ConcurrentHashMap<PageId, Object>();   
-        sharedLocks = new HashMap<PageId, Set<TransactionId>>();   
-        exclusiveLocks = new HashMap<PageId, TransactionId>();   
-        relatedPages = new HashMap<TransactionId, Set<PageId>>(); 
-        wishLock = new HashMap<TransactionId, PageId>();
-        
+        queues = new HashMap<Object, LockQueue>();
+        relatedLocks = new HashMap<TransactionId, Set<Object>>();
+        lockCounts = new HashMap<TransactionId, HashMap<Integer, Integer>>();
+        waiting = new HashMap<TransactionId, List<Request>>();
+        wounded = new HashSet<TransactionId>();
+        stats = new LockStats(mutex, LockStats.DEFAULT_MAX_PAGES);
+        if (DEFAULT_STATS_INTERVAL > 0)
+            startStatsDump(DEFAULT_STATS_INTERVAL, System.out);
     }
 
     public static LockSet create()
     {
-    	return new LockSet();
-    }
-    
-    private Object getLock(PageId pageId) {
-    	lockRegistry.putIfAbsent(pageId, new Object());
-		return lockRegistry.get(pageId);
-	}
-    
-    private Set<TransactionId> getSharedLockList(PageId pageId) {
-		if(sharedLocks.get(pageId)==null)
-			sharedLocks.put(pageId,new HashSet<TransactionId>());
-		return sharedLocks.get(pageId);
-	}
-    
-    private Set<PageId> getReplatedPageList(TransactionId tid) {
-    	if(relatedPages.get(tid)==null)
-    		relatedPages.put(tid, new HashSet<PageId>());
-		return relatedPages.get(tid);
-	}
-    
+        return new LockSet();
+    }
+
+    /** Set how the transaction to abort in a deadlock is chosen. */
+    public void setVictim(Victim victim)
+    {
+        this.victim = victim;
+    }
+
+    public Victim getVictim()
+    {
+        return victim;
+    }
+
+    /**
+     * Set how deadlocks are handled. Should only be changed while no
+     * transaction holds locks.
+     */
+    public void setPolicy(Policy policy)
+    {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Set the number of page and tuple locks of one table after which a
+     * transaction tries to escalate to a table lock; it tries again after
+     * each further threshold locks.
+     */
+    public void setEscalationThreshold(int pages)
+    {
+        escalation = Math.max(1, pages);
+    }
+
+    public int getEscalationThreshold()
+    {
+        return escalation;
+    }
+
+    /** @return the statistics of the lock requests */
+    public LockStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Print the statistics of the lock requests, with the holders and
+     * waiters of the most contended pages.
+     */
+    public void dumpStats(PrintStream out)
+    {
+        out.println("lock statistics:");
+        Map<Integer, LockStats.Counters> tables = stats.getTableStats();
+        for (Integer table : new TreeSet<Integer>(tables.keySet()))
+            out.println("table " + table + ": " + tables.get(table));
+        for (PageId pid : stats.mostContended(DUMP_PAGES))
+        {
+            out.println("  page " + pid.pageNumber() + " of table " + pid.getTableId()
+                        + ": " + stats.getPageStats(pid)
+                        + "; held by " + ids(getHolders(pid).keySet())
+                        + ", waited on by " + ids(getWaiters(pid)));
+        }
+    }
+
+    private static List<Long> ids(Collection<TransactionId> tids)
+    {
+        List<Long> result = new ArrayList<Long>();
+        for (TransactionId tid : tids)
+            result.add(tid.getId());
+        return result;
+    }
+
+    /**
+     * Dump the statistics every period ms, from a daemon thread, until
+     * {@link #stopStatsDump} is called. Replaces a dump started before.
+     */
+    public synchronized void startStatsDump(long period, final PrintStream out)
+    {
+        stopStatsDump();
+        dumper = new Timer("simpledb-lock-stats", true);
+        dumper.schedule(new TimerTask() {
+            public void run()
+            {
+                dumpStats(out);
+            }
+        }, period, period);
+    }
+
+    public synchronized void stopStatsDump()
+    {
+        if (dumper != null)
+            dumper.cancel();
+        dumper = null;
+    }
+
+    /**
+     * @return the transactions holding a lock on key and their modes; key
+     *         is the Integer id of a table, a PageId or a RecordId
+     */
+    public Map<TransactionId, Mode> getHolders(Object key)
+    {
+        mutex.lock();
+        try
+        {
+            LockQueue q = queues.get(key);
+            if (q == null)
+                return Collections.emptyMap();
+            return new HashMap<TransactionId, Mode>(q.holders);
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * @return the transactions waiting for a lock on key, in the order
+     *         they are queued; key is as for {@link #getHolders}
+     */
+    public List<TransactionId> getWaiters(Object key)
+    {
+        mutex.lock();
+        try
+        {
+            List<TransactionId> result = new ArrayList<TransactionId>();
+            LockQueue q = queues.get(key);
+            if (q != null)
+            {
+                for (Request r : q.waiters)
+                    result.add(r.tid);
+            }
+            return result;
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    private LockQueue getQueue(Object key)
+    {
+        LockQueue q = queues.get(key);
+        if (q == null)
+        {
+            q = new LockQueue();
+            queues.put(key, q);
+        }
+        return q;
+    }
+
+    private Set<Object> getRelatedLocks(TransactionId tid)
+    {
+        Set<Object> keys = relatedLocks.get(tid);
+        if (keys == null)
+        {
+            keys = new HashSet<Object>();
+            relatedLocks.put(tid, keys);
+        }
+        return keys;
+    }
+
+    /** @return the mode tid holds on key, or null */
+    private Mode heldMode(TransactionId tid, Object key)
+    {
+        LockQueue q = queues.get(key);
+        return q == null ? null : q.holders.get(tid);
+    }
+
     public void acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException
     {
-        if(perm==Permissions.READ_ONLY)
+        checkTransaction(tid);
+
+        if (perm == Permissions.READ_ONLY)
         {
-            acquireSharedLock(tid,pid);
+            acquireSharedLock(tid, pid);
         }
-        else if(perm==Permissions.READ_WRITE)
+        else if (perm == Permissions.READ_WRITE)
         {
-            acquireExclusiveLock(tid,pid);
+            acquireExclusiveLock(tid, pid);
         }
+    }
 
+    public void acquireSharedLock(TransactionId tid, PageId pid) throws TransactionAbortedException
+    {
+        acquirePage(tid, pid, Mode.S);
     }
 
-    public void releaseLock(TransactionId tid)
+    public void acquireExclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException
     {
-    	Set<PageId> pageset = new HashSet<PageId>(getReplatedPageList(tid)); 
-    	for(PageId pid: pageset)
-    	{
-    		releaseLock(tid,pid);
-    	}
+        acquirePage(tid, pid, Mode.X);
     }
-    
-    public void releaseLock(TransactionId tid, PageId pid)
+
+    /**
+     * Lock a whole table, S for READ_ONLY or X for READ_WRITE. The page
+     * and tuple locks of the table the transaction holds that the table
+     * lock covers are released.
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, Permissions perm) throws TransactionAbortedException
+    {
+        checkTransaction(tid);
+        mutex.lock();
+        try
+        {
+            checkWounded(tid);
+            Integer table = tableId;
+            lock(tid, table, perm == Permissions.READ_ONLY ? Mode.S : Mode.X);
+            dropCoveredLocks(tid, table);
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Take the intention lock on a table that locking its pages one by one
+     * needs: IS for READ_ONLY, IX for READ_WRITE, unless the lock tid holds
+     * on the table already covers it.
+     */
+    public void acquireTableIntentionLock(TransactionId tid, int tableId, Permissions perm) throws TransactionAbortedException
+    {
+        checkTransaction(tid);
+        mutex.lock();
+        try
+        {
+            checkWounded(tid);
+            Integer table = tableId;
+            Mode intention = perm == Permissions.READ_ONLY ? Mode.IS : Mode.IX;
+            Mode held = heldMode(tid, table);
+            if (held == null || !held.covers(intention))
+                lock(tid, table, intention);
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Take the intention locks needed to lock single tuples of a page: IS
+     * on the page and its table for READ_ONLY, IX for READ_WRITE.
+     */
+    public void acquireIntentionLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException
+    {
+        checkTransaction(tid);
+        acquirePage(tid, pid, perm == Permissions.READ_ONLY ? Mode.IS : Mode.IX);
+    }
+
+    /**
+     * Lock a tuple, S for READ_ONLY or X for READ_WRITE, after the
+     * intention locks on its page and table.
+     */
+    public void acquireTupleLock(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException
+    {
+        checkTransaction(tid);
+        acquireTuple(tid, rid, perm == Permissions.READ_ONLY ? Mode.S : Mode.X, true);
+    }
+
+    /**
+     * Lock a tuple like {@link #acquireTupleLock}, but only if the tuple
+     * lock can be granted at once. The intention locks are taken (and
+     * waited for) even if it cannot.
+     *
+     * @return true if tid holds the lock
+     */
+    public boolean tryAcquireTupleLock(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException
+    {
+        checkTransaction(tid);
+        return acquireTuple(tid, rid, perm == Permissions.READ_ONLY ? Mode.S : Mode.X, false);
+    }
+
+    /** Locks are held by transactions; a request without one is a bug. */
+    private static void checkTransaction(TransactionId tid)
+    {
+        if (tid == null)
+            throw new IllegalArgumentException("a lock request needs a transaction");
+    }
+
+    private void acquirePage(TransactionId tid, PageId pid, Mode mode) throws TransactionAbortedException
+    {
+        mutex.lock();
+        try
+        {
+            checkWounded(tid);
+            Integer table = pid.getTableId();
+            Mode tableMode = heldMode(tid, table);
+            if (tableMode != null && tableMode.grants(mode))
+                return;
+            Mode intention = intention(mode);
+            if (tableMode == null || !tableMode.covers(intention))
+                lock(tid, table, intention);
+            if (lock(tid, pid, mode))
+                countLock(tid, table);
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    private boolean acquireTuple(TransactionId tid, RecordId rid, Mode mode, boolean wait) throws TransactionAbortedException
     {
-    	Object lock = getLock(pid);
-    	while(true)
+        mutex.lock();
+        try
         {
-            synchronized(lock)
+            PageId pid = rid.getPageId();
+            Integer table = pid.getTableId();
+            acquirePage(tid, pid, intention(mode));
+            // the page or table lock may cover the tuple, possibly after an
+            // escalation
+            Mode tableMode = heldMode(tid, table);
+            Mode pageMode = heldMode(tid, pid);
+            if ((tableMode != null && tableMode.grants(mode))
+                || (pageMode != null && pageMode.grants(mode)))
+                return true;
+            if (wait)
             {
-            	if(exclusiveLocks.get(pid)!=null)
-            		if(exclusiveLocks.get(pid).equals(tid))
-            			exclusiveLocks.put(pid,null);
-
-          
-            	Set<TransactionId> arrTran = getSharedLockList(pid);
-            	arrTran.remove(tid);
-            	
-            	Set<PageId> arrPage = getReplatedPageList(tid);
-            	arrPage.remove(pid);
-            	return;
+                if (lock(tid, rid, mode))
+                    countLock(tid, table);
+                return true;
             }
+            boolean held = heldMode(tid, rid) != null;
+            if (!tryLock(tid, rid, mode))
+                return false;
+            if (!held)
+                countLock(tid, table);
+            return true;
+        }
+        finally
+        {
+            mutex.unlock();
         }
     }
 
-    public void acquireSharedLock(TransactionId tid, PageId pid) throws TransactionAbortedException
+    /** @return the intention mode to take above a lock in mode */
+    private static Mode intention(Mode mode)
     {
-    	Object lock = getLock(pid);
-    	wishLock.put(tid, pid);
-        while(true)
+        return mode == Mode.S || mode == Mode.IS ? Mode.IS : Mode.IX;
+    }
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException
+    {
+        if (wounded.contains(tid))
+            throw new TransactionAbortedException();
+    }
+
+    /**
+     * Lock key in mode, strengthening a lock tid already holds on it, and
+     * wait until the lock is granted.
+     *
+     * @return true if tid did not hold a lock on key before
+     */
+    private boolean lock(TransactionId tid, Object key, Mode mode) throws TransactionAbortedException
+    {
+        LockQueue q = getQueue(key);
+        Mode held = q.holders.get(tid);
+        if (held != null && held.covers(mode))
+            return false;
+
+        Policy p = policy;
+        Request r = new Request(tid, key, held == null ? mode : held.join(mode),
+                                held != null && p == Policy.DETECT, mutex.newCondition());
+        if (q.compatible(r) && (r.upgrade || q.waiters.isEmpty()))
+        {
+            grant(q, r);
+            stats.acquired(key, held != null);
+            return held == null;
+        }
+
+        if (p == Policy.WAIT_DIE)
         {
-            synchronized(lock)
+            for (TransactionId b : blockers(r))
             {
-            	deadlockTest(tid,pid,false);
-            	
-            	if(exclusiveLocks.get(pid)!=null)
-            		if(!exclusiveLocks.get(pid).equals(tid))
-            			continue;
-            		else
-            		{
-            			wishLock.remove(tid);
-            			return;
-            		}
-        			
-
-            	//get shared lock
-            	Set<TransactionId> arrTran = getSharedLockList(pid);
-            	arrTran.add(tid);
-            	//System.out.println(arrTran);
-
-            	//record list
-            	Set<PageId> arrPage = getReplatedPageList(tid);
-            	arrPage.add(pid);
-            	//System.out.println("end shared");
-            	
-            	wishLock.remove(tid);
-            	return;
+                if (b.getId() < tid.getId())
+                {
+                    prune(key, q);
+                    stats.aborted(key);
+                    throw new TransactionAbortedException();
+                }
             }
         }
+        else if (p == Policy.WOUND_WAIT)
+        {
+            for (TransactionId b : blockers(r))
+            {
+                if (b.getId() > tid.getId())
+                    wound(b);
+            }
+        }
+
+        enqueue(q, r);
+        long start = System.nanoTime();
+        try
+        {
+            if (p == Policy.DETECT)
+                resolveDeadlocks(r);
+            else
+                grantWaiters(q);
+            while (!r.granted && !r.aborted)
+                r.done.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // a thread stopped while it waits may not have the mutex back
+            if (!mutex.isHeldByCurrentThread())
+                mutex.lock();
+            if (!r.granted)
+            {
+                dequeue(q, r);
+                grantWaiters(q);
+                prune(key, q);
+            }
+            stats.waited(key, System.nanoTime() - start);
+        }
+        if (!r.granted)
+        {
+            stats.aborted(key);
+            throw new TransactionAbortedException();
+        }
+        stats.acquired(key, held != null);
+        return held == null;
     }
 
-    public void acquireExclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException
+    /**
+     * Lock key in mode if the lock can be granted at once.
+     *
+     * @return true if tid holds the lock
+     */
+    private boolean tryLock(TransactionId tid, Object key, Mode mode)
+    {
+        LockQueue q = getQueue(key);
+        Mode held = q.holders.get(tid);
+        if (held != null && held.covers(mode))
+            return true;
+        Request r = new Request(tid, key, held == null ? mode : held.join(mode),
+                                held != null && policy == Policy.DETECT, null);
+        if (!q.compatible(r) || !(r.upgrade || q.waiters.isEmpty()))
+        {
+            prune(key, q);
+            return false;
+        }
+        grant(q, r);
+        stats.acquired(key, held != null);
+        return true;
+    }
+
+    /**
+     * Count a new page or tuple lock of tid on a table, and escalate to a
+     * table lock every escalation threshold locks.
+     */
+    private void countLock(TransactionId tid, Integer table)
+    {
+        HashMap<Integer, Integer> counts = lockCounts.get(tid);
+        if (counts == null)
+        {
+            counts = new HashMap<Integer, Integer>();
+            lockCounts.put(tid, counts);
+        }
+        Integer n = counts.get(table);
+        n = n == null ? 1 : n + 1;
+        counts.put(table, n);
+        if (n % escalation == 0)
+            escalate(tid, table);
+    }
+
+    private void uncountLock(TransactionId tid, Integer table)
+    {
+        HashMap<Integer, Integer> counts = lockCounts.get(tid);
+        if (counts == null)
+            return;
+        Integer n = counts.get(table);
+        if (n == null || n <= 1)
+            counts.remove(table);
+        else
+            counts.put(table, n - 1);
+    }
+
+    /**
+     * Replace the page and tuple locks of tid on a table by one table
+     * lock: S if it only read the table, X if it wrote it. Escalation
+     * never waits, so it is skipped if the table lock cannot be granted at
+     * once.
+     */
+    private void escalate(TransactionId tid, Integer table)
+    {
+        LockQueue q = queues.get(table);
+        Mode held = q.holders.get(tid);
+        Request r = new Request(tid, table, held.join(held == Mode.IS ? Mode.S : Mode.X), true, null);
+        if (!q.waiters.isEmpty() || !q.compatible(r))
+            return;
+        grant(q, r);
+        stats.acquired(table, true);
+        dropCoveredLocks(tid, table);
+    }
+
+    /**
+     * Release the page and tuple locks of tid on a table that its table
+     * lock makes unnecessary.
+     */
+    private void dropCoveredLocks(TransactionId tid, Integer table)
+    {
+        Mode tableMode = heldMode(tid, table);
+        Set<Object> keys = relatedLocks.get(tid);
+        if (tableMode == null || keys == null)
+            return;
+        for (Object key : new ArrayList<Object>(keys))
+        {
+            PageId pid;
+            if (key instanceof PageId)
+                pid = (PageId)key;
+            else if (key instanceof RecordId)
+                pid = ((RecordId)key).getPageId();
+            else
+                continue;
+            if (pid.getTableId() == table && tableMode.grants(heldMode(tid, key)))
+            {
+                keys.remove(key);
+                release(tid, key);
+                uncountLock(tid, table);
+            }
+        }
+    }
+
+    /**
+     * Queue a request: an upgrade after the other upgrades, anything else
+     * at the end.
+     */
+    private void enqueue(LockQueue q, Request r)
+    {
+        if (r.upgrade)
+        {
+            ListIterator<Request> it = q.waiters.listIterator();
+            while (it.hasNext())
+            {
+                if (!it.next().upgrade)
+                {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(r);
+        }
+        else
+        {
+            q.waiters.add(r);
+        }
+        List<Request> list = waiting.get(r.tid);
+        if (list == null)
+        {
+            list = new ArrayList<Request>(1);
+            waiting.put(r.tid, list);
+        }
+        list.add(r);
+    }
+
+    private void dequeue(LockQueue q, Request r)
+    {
+        q.waiters.remove(r);
+        List<Request> list = waiting.get(r.tid);
+        if (list != null)
+        {
+            list.remove(r);
+            if (list.isEmpty())
+                waiting.remove(r.tid);
+        }
+    }
+
+    private void grant(LockQueue q, Request r)
     {
-    	Object lock = getLock(pid);
-    	wishLock.put(tid, pid);
-    	while(true)
+        q.holders.put(r.tid, r.mode);
+        getRelatedLocks(r.tid).add(r.key);
+        r.granted = true;
+    }
+
+    /**
+     * Grant the waiters of a table, page or tuple in order, up to the first
+     * one that is still blocked.
+     */
+    private void grantWaiters(LockQueue q)
+    {
+        while (!q.waiters.isEmpty())
+        {
+            Request r = q.waiters.getFirst();
+            if (!q.compatible(r))
+                break;
+            dequeue(q, r);
+            grant(q, r);
+            r.done.signal();
+        }
+    }
+
+    public void releaseLock(TransactionId tid)
+    {
+        checkTransaction(tid);
+        mutex.lock();
+        try
         {
-            synchronized(lock)
+            // requests other threads of the transaction are still waiting
+            // on would never be released; abort them
+            abortWaits(tid);
+            wounded.remove(tid);
+            lockCounts.remove(tid);
+            Set<Object> keys = relatedLocks.remove(tid);
+            if (keys == null)
+                return;
+            for (Object key : keys)
+                release(tid, key);
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Release the lock of tid on a page. The lock of tid on the table of
+     * the page is kept, so if it covers the page, the page stays locked.
+     */
+    public void releaseLock(TransactionId tid, PageId pid)
+    {
+        checkTransaction(tid);
+        mutex.lock();
+        try
+        {
+            Set<Object> keys = relatedLocks.get(tid);
+            if (keys != null && keys.remove(pid))
             {
-            	deadlockTest(tid,pid,true);
-            	
-            	if(exclusiveLocks.get(pid)!=null)
-            		if(!exclusiveLocks.get(pid).equals(tid))
-            			//ex-lock is acquired by others
-            			continue;
-            		else
-            		{
-            			//already have ex-lock
-            			wishLock.remove(tid);
-            			return;
-            		}
-
-            	if(getSharedLockList(pid).isEmpty())
-            	{
-            		//no one has shared lock, so get ex-lock
-            		exclusiveLocks.put(pid, tid);
-
-            		Set<PageId> arrPage = getReplatedPageList(tid);
-            		arrPage.add(pid);
-            		
-            		wishLock.remove(tid);
-            		return;
-            	}
-            	else if(getSharedLockList(pid).size()==1 & getSharedLockList(pid).iterator().next().equals(tid))
-            	{
-            		//update lock
-            		getSharedLockList(pid).clear();
-            		exclusiveLocks.put(pid, tid);
-            		getReplatedPageList(tid).add(pid);
-            		
-            		wishLock.remove(tid);
-            		return;
-
-            	}    	
+                release(tid, pid);
+                uncountLock(tid, pid.getTableId());
+                if (keys.isEmpty())
+                    relatedLocks.remove(tid);
             }
         }
+        finally
+        {
+            mutex.unlock();
+        }
     }
-    
+
+    private void release(TransactionId tid, Object key)
+    {
+        LockQueue q = queues.get(key);
+        if (q == null || q.holders.remove(tid) == null)
+            return;
+        grantWaiters(q);
+        prune(key, q);
+    }
+
+    private void prune(Object key, LockQueue q)
+    {
+        if (q.holders.isEmpty() && q.waiters.isEmpty())
+            queues.remove(key);
+    }
+
+    /** @return true if tid holds a lock on the page or one covering its table */
     public boolean holdsLock(TransactionId tid, PageId pid)
     {
-    	return getReplatedPageList(tid).contains(pid);
+        checkTransaction(tid);
+        mutex.lock();
+        try
+        {
+            Set<Object> keys = relatedLocks.get(tid);
+            if (keys != null && keys.contains(pid))
+                return true;
+            Mode tableMode = heldMode(tid, Integer.valueOf(pid.getTableId()));
+            return tableMode != null && tableMode.grants(Mode.S);
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    /** @return the mode tid holds on a table, or null if it holds none */
+    public Mode getTableLock(TransactionId tid, int tableId)
+    {
+        mutex.lock();
+        try
+        {
+            return heldMode(tid, Integer.valueOf(tableId));
+        }
+        finally
+        {
+            mutex.unlock();
+        }
+    }
+
+    /** @return the number of table, page and tuple locks tid holds */
+    public int numLocks(TransactionId tid)
+    {
+        mutex.lock();
+        try
+        {
+            Set<Object> keys = relatedLocks.get(tid);
+            return keys == null ? 0 : keys.size();
+        }
+        finally
+        {
+            mutex.unlock();
+        }
     }
-    
-    public void deadlockTest(TransactionId tid, PageId pid, boolean ifExclusive) throws TransactionAbortedException
+
+    /** Abort the requests a transaction is waiting on. */
+    private void abortWaits(TransactionId tid)
     {
+        List<Request> list = waiting.get(tid);
+        if (list == null)
+            return;
+        for (Request r : new ArrayList<Request>(list))
+        {
+            LockQueue q = queues.get(r.key);
+            dequeue(q, r);
+            r.aborted = true;
+            r.done.signal();
+            grantWaiters(q);
+            prune(r.key, q);
+        }
+    }
 
-    	ArrayList<TransactionId> lockholders = new ArrayList<TransactionId>(getSharedLockList(pid));
-    	if(exclusiveLocks.get(pid)!=null)
-    		lockholders.add(exclusiveLocks.get(pid));
+    /**
+     * Abort a younger transaction an older one would wait for: its waits
+     * now, and its next lock request if it is not waiting.
+     */
+    private void wound(TransactionId tid)
+    {
+        wounded.add(tid);
+        abortWaits(tid);
+    }
 
-    	for(TransactionId holder: lockholders)
-    	{
-    		if (holder==null)
-    			continue;
-    		if (tid.equals(holder))
-    			continue;
-    		if (getReplatedPageList(tid).contains(wishLock.get(holder)))
-    			throw new TransactionAbortedException();
-    			
-    	}
+    /**
+     * @return the transactions a request waits for: the holders of its
+     *         table, page or tuple and the requests queued before it (or all
+     *         queued requests, if it is not queued yet) that conflict with
+     *         it
+     */
+    private Set<TransactionId> blockers(Request r)
+    {
+        Set<TransactionId> result = new HashSet<TransactionId>();
+        LockQueue q = queues.get(r.key);
+        for (Map.Entry<TransactionId, Mode> e : q.holders.entrySet())
+        {
+            if (!e.getKey().equals(r.tid) && !r.mode.compatible(e.getValue()))
+                result.add(e.getKey());
+        }
+        for (Request w : q.waiters)
+        {
+            if (w == r)
+                break;
+            if (!w.tid.equals(r.tid) && !r.mode.compatible(w.mode))
+                result.add(w.tid);
+        }
+        return result;
+    }
 
-    	
-   
+    /** @return the transactions tid waits for, in the waits-for graph */
+    private Set<TransactionId> waitsFor(TransactionId tid)
+    {
+        List<Request> list = waiting.get(tid);
+        if (list == null)
+            return Collections.emptySet();
+        Set<TransactionId> result = new HashSet<TransactionId>();
+        for (Request r : list)
+            result.addAll(blockers(r));
+        return result;
+    }
+
+    /**
+     * Search the waits-for graph for a path from start back to itself.
+     *
+     * @param path the path from start to tid; holds the cycle on return
+     * @return true if a cycle was found
+     */
+    private boolean findCycle(TransactionId tid, TransactionId start,
+                              LinkedList<TransactionId> path, Set<TransactionId> visited)
+    {
+        path.addLast(tid);
+        for (TransactionId next : waitsFor(tid))
+        {
+            if (next.equals(start))
+                return true;
+            if (visited.add(next) && findCycle(next, start, path, visited))
+                return true;
+        }
+        path.removeLast();
+        return false;
+    }
+
+    /**
+     * Break the deadlocks a request that has just been queued closes, by
+     * aborting the waits of one victim per cycle. The request itself is
+     * aborted if its transaction is chosen.
+     */
+    private void resolveDeadlocks(Request r)
+    {
+        while (!r.granted && !r.aborted)
+        {
+            LinkedList<TransactionId> cycle = new LinkedList<TransactionId>();
+            if (!findCycle(r.tid, r.tid, cycle, new HashSet<TransactionId>()))
+                return;
+            abortWaits(chooseVictim(cycle));
+        }
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle)
+    {
+        TransactionId best = null;
+        int bestLocks = 0;
+        for (TransactionId t : cycle)
+        {
+            Set<Object> keys = relatedLocks.get(t);
+            int locks = keys == null ? 0 : keys.size();
+            boolean better;
+            if (best == null)
+                better = true;
+            else if (victim == Victim.LEAST_WORK && locks != bestLocks)
+                better = locks < bestLocks;
+            else
+                better = t.getId() > best.getId();
+            if (better)
+            {
+                best = t;
+                bestLocks = locks;
+            }
+        }
+        return best;
     }
 }
@@ -0,0 +1,336 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * LockStats counts the lock requests of a {@link LockSet}, per table and
+ * per page, so that the tables and pages transactions contend for can be
+ * found: how many locks were granted, how many of those strengthened a
+ * lock the transaction held (e.g. S to X), how many requests had to wait
+ * and for how long, and how many were aborted to break or prevent a
+ * deadlock.
+ * <p>
+ * The counters of a page count the requests on the page and on its
+ * tuples; those of a table count the requests on the table, its pages and
+ * their tuples. Requests a transaction does not have to make because it
+ * holds a lock that covers them are not counted.
+ * <p>
+ * The counts are updated by the LockSet while it holds its mutex, so they
+ * take no lock of their own; reading them takes the mutex too.
+ * <p>
+ * At most {@link #DEFAULT_MAX_PAGES} pages are counted. When there are
+ * more, the pages without waits or aborts are forgotten, and then the
+ * least recently requested ones.
+ */
+public class LockStats {
+
+    /**
+     * Default number of pages whose counters are kept, set with the
+     * system property simpledb.LockStatsPages.
+     */
+    public static final int DEFAULT_MAX_PAGES =
+        Math.max(1, Integer.getInteger("simpledb.LockStatsPages", 10000));
+
+    /**
+     * The number of buckets of the wait time histograms: bucket i counts
+     * the waits shorter than 10^i ms, and not shorter than 10^(i-1) ms, up
+     * to the last bucket, which counts the waits of 10 s or more.
+     */
+    public static final int WAIT_BUCKETS = 6;
+
+    /** The counters of one table or page. */
+    public static class Counters
+    {
+        private long acquisitions;
+        private long upgrades;
+        private long waits;
+        private long waitNanos;
+        private long aborts;
+        private final long[] waitHistogram = new long[WAIT_BUCKETS];
+
+        /** @return the number of locks granted, upgrades included */
+        public long getAcquisitions()
+        {
+            return acquisitions;
+        }
+
+        /** @return the number of locks granted that strengthened a lock */
+        public long getUpgrades()
+        {
+            return upgrades;
+        }
+
+        /** @return the number of requests that waited */
+        public long getWaits()
+        {
+            return waits;
+        }
+
+        /** @return the time requests waited, in total, in ms */
+        public double getWaitMillis()
+        {
+            return waitNanos / 1e6;
+        }
+
+        /** @return the number of requests aborted for a deadlock */
+        public long getAborts()
+        {
+            return aborts;
+        }
+
+        /** @return the histogram of wait times (see {@link #WAIT_BUCKETS}) */
+        public long[] getWaitHistogram()
+        {
+            return waitHistogram.clone();
+        }
+
+        private Counters copy()
+        {
+            Counters c = new Counters();
+            c.acquisitions = acquisitions;
+            c.upgrades = upgrades;
+            c.waits = waits;
+            c.waitNanos = waitNanos;
+            c.aborts = aborts;
+            System.arraycopy(waitHistogram, 0, c.waitHistogram, 0, WAIT_BUCKETS);
+            return c;
+        }
+
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("acquired %d (upgrades %d), waited %d (%.1f ms), aborted %d; waits",
+                                    acquisitions, upgrades, waits, getWaitMillis(), aborts));
+            long bound = 1;
+            for (int i = 0; i < WAIT_BUCKETS; i++)
+            {
+                if (i < WAIT_BUCKETS - 1)
+                    sb.append(String.format(" <%dms %d", bound, waitHistogram[i]));
+                else
+                    sb.append(String.format(" >=%dms %d", bound / 10, waitHistogram[i]));
+                bound *= 10;
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Lock guard;
+    private final int maxPages;
+    private final HashMap<Integer, Counters> tables = new HashMap<Integer, Counters>();
+    // in the order the pages were last requested, least recent first
+    private final LinkedHashMap<PageId, Counters> pages =
+        new LinkedHashMap<PageId, Counters>(16, 0.75f, true);
+
+    /**
+     * @param guard the lock held while the counts are updated
+     * @param maxPages the number of pages whose counters are kept
+     */
+    LockStats(Lock guard, int maxPages)
+    {
+        this.guard = guard;
+        this.maxPages = Math.max(1, maxPages);
+    }
+
+    /** @return the counters of a table, or null if no lock on it was requested */
+    public Counters getTableStats(int tableId)
+    {
+        guard.lock();
+        try
+        {
+            Counters c = tables.get(tableId);
+            return c == null ? null : c.copy();
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * @return the counters of a page, or null if no lock on it was
+     *         requested, or its counters were forgotten
+     */
+    public Counters getPageStats(PageId pid)
+    {
+        guard.lock();
+        try
+        {
+            Counters c = pages.get(pid);
+            return c == null ? null : c.copy();
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    /** @return the counters of every table a lock was requested on */
+    public Map<Integer, Counters> getTableStats()
+    {
+        guard.lock();
+        try
+        {
+            Map<Integer, Counters> result = new HashMap<Integer, Counters>();
+            for (Map.Entry<Integer, Counters> e : tables.entrySet())
+                result.put(e.getKey(), e.getValue().copy());
+            return result;
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    /** @return the counters of every page whose counters are kept */
+    public Map<PageId, Counters> getPageStats()
+    {
+        guard.lock();
+        try
+        {
+            Map<PageId, Counters> result = new HashMap<PageId, Counters>();
+            for (Map.Entry<PageId, Counters> e : pages.entrySet())
+                result.put(e.getKey(), e.getValue().copy());
+            return result;
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    /** Forget all counts. */
+    public void reset()
+    {
+        guard.lock();
+        try
+        {
+            tables.clear();
+            pages.clear();
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * @return the pages with the most waits and aborts, those with neither
+     *         left out, most contended first
+     */
+    public List<PageId> mostContended(int n)
+    {
+        final Map<PageId, Counters> counts = getPageStats();
+        List<PageId> result = new ArrayList<PageId>();
+        for (Map.Entry<PageId, Counters> e : counts.entrySet())
+        {
+            if (contention(e.getValue()) > 0)
+                result.add(e.getKey());
+        }
+        Collections.sort(result, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b)
+            {
+                long ca = contention(counts.get(a)), cb = contention(counts.get(b));
+                return ca == cb ? 0 : (ca > cb ? -1 : 1);
+            }
+        });
+        return result.size() > n ? new ArrayList<PageId>(result.subList(0, n)) : result;
+    }
+
+    private static long contention(Counters c)
+    {
+        return c.waits + c.aborts;
+    }
+
+    // the methods below are called with the guard held
+
+    /** Count a lock granted on key; upgrade if it strengthened one. */
+    void acquired(Object key, boolean upgrade)
+    {
+        for (Counters c : countersOf(key))
+        {
+            c.acquisitions++;
+            if (upgrade)
+                c.upgrades++;
+        }
+    }
+
+    /** Count a request on key that waited for the given time. */
+    void waited(Object key, long nanos)
+    {
+        int bucket = 0;
+        for (long bound = 1000000; bucket < WAIT_BUCKETS - 1 && nanos >= bound; bound *= 10)
+            bucket++;
+        for (Counters c : countersOf(key))
+        {
+            c.waits++;
+            c.waitNanos += nanos;
+            c.waitHistogram[bucket]++;
+        }
+    }
+
+    /** Count a request on key aborted for a deadlock. */
+    void aborted(Object key)
+    {
+        for (Counters c : countersOf(key))
+            c.aborts++;
+    }
+
+    /** @return the counters a request on key counts in */
+    private List<Counters> countersOf(Object key)
+    {
+        PageId pid = null;
+        Integer table;
+        if (key instanceof RecordId)
+            pid = ((RecordId)key).getPageId();
+        else if (key instanceof PageId)
+            pid = (PageId)key;
+        if (pid != null)
+            table = pid.getTableId();
+        else
+            table = (Integer)key;
+
+        List<Counters> result = new ArrayList<Counters>(2);
+        result.add(counters(tables, table));
+        if (pid != null)
+        {
+            result.add(counters(pages, pid));
+            if (pages.size() > maxPages)
+                forgetPages();
+        }
+        return result;
+    }
+
+    /**
+     * Forget the pages without waits or aborts and, if that leaves more
+     * than three quarters of maxPages, the least recently requested ones,
+     * so that this is not needed again for a while.
+     */
+    private void forgetPages()
+    {
+        Iterator<Counters> it = pages.values().iterator();
+        while (it.hasNext())
+        {
+            if (contention(it.next()) == 0)
+                it.remove();
+        }
+        int keep = maxPages - maxPages / 4;
+        it = pages.values().iterator();
+        while (pages.size() > keep)
+        {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static <K> Counters counters(HashMap<K, Counters> map, K key)
+    {
+        Counters c = map.get(key);
+        if (c == null)
+        {
+            c = new Counters();
+            map.put(key, c);
+        }
+        return c;
+    }
+}
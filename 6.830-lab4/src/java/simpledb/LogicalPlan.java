@@ -16,9 +16,9 @@ import java.awt.*;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query share the group by fields and are computed
+ * in one pass by a single {@link Aggregate} operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -34,10 +34,10 @@ public  class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
@@ -51,6 +51,9 @@ public  class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
         this.query = "";
     }
 
@@ -178,19 +181,29 @@ public  class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of a query are computed in one pass
+        and share the same GROUP BY fields.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
     */
     public void addAggregate(String op, String afield, String gfield) {
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
+        if (gfield != null)
+            addGroupBy(gfield);
         hasAgg = true;
     }
 
+    /** Add a GROUP BY field to the query.  Fields are grouped by in the
+        order they are added; adding a field twice has no effect.
+        @param gfield the field to group by
+    */
+    public void addGroupBy(String gfield) {
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -256,6 +269,70 @@ public  class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Tell the SeqScan of each table which of its fields the rest of the
+     *  plan reads (the select list, the aggregates, GROUP BY, ORDER BY and
+     *  the joins), so that it only decodes those.  Filters are pushed into
+     *  the scans, which test them on the page bytes, so their fields need
+     *  not be decoded.  Tables whose fields cannot all be resolved, and
+     *  queries that select *, read every field.
+     */
+    private void pruneColumns() throws ParsingException {
+        Vector<String> used = new Vector<String>();
+        for (LogicalSelectListNode si : selectList)
+            used.addElement(si.fname);
+        used.addAll(aggFields);
+        used.addAll(groupByFields);
+        if (hasOrderBy)
+            used.addElement(oByField);
+        for (LogicalJoinNode lj : joins) {
+            if (lj.f1 != null)
+                used.addElement(lj.f1);
+            if (lj.f2 != null && lj.t2Alias != null)
+                used.addElement(lj.f2);
+        }
+        for (String name : used) {
+            if (name.endsWith("*"))
+                return;
+        }
+
+        for (LogicalScanNode table : tables) {
+            SeqScan ss = (SeqScan)subplanMap.get(table.alias);
+            TupleDesc td = ss.getTupleDesc();
+            boolean[] needed = new boolean[td.numFields()];
+            int n = 0;
+            boolean resolved = true;
+            for (String name : used) {
+                String qualified = disambiguateName(name);
+                String[] parts = qualified.split("[.]");
+                if (!parts[0].equals(table.alias))
+                    continue;
+                int id;
+                try {
+                    id = td.fieldNameToIndex(qualified);
+                } catch (NoSuchElementException e) {
+                    try {
+                        id = td.fieldNameToIndex(parts[1]);
+                    } catch (NoSuchElementException e2) {
+                        resolved = false;
+                        break;
+                    }
+                }
+                if (!needed[id]) {
+                    needed[id] = true;
+                    n++;
+                }
+            }
+            if (!resolved || n == needed.length)
+                continue;
+            int[] columns = new int[n];
+            for (int i = 0, j = 0; i < needed.length; i++) {
+                if (needed[i])
+                    columns[j++] = i;
+            }
+            ss.setColumns(columns);
+        }
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -290,6 +367,7 @@ public  class LogicalPlan {
             filterSelectivities.put(table.alias, 1.0);
 
         }
+        pruneColumns();
 
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
@@ -319,7 +397,15 @@ public  class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.f);
             }
-            subplanMap.put(lf.t, new Filter(p, subplan));
+            if (subplan instanceof SeqScan) {
+                // test the predicate on the pages, before tuples are built
+                ((SeqScan)subplan).addPredicate(p);
+            } else if (subplan instanceof Filter) {
+                // fuse all the filters of a table into one operator
+                subplanMap.put(lf.t, ((Filter)subplan).and(p));
+            } else {
+                subplanMap.put(lf.t, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(lf.t);
             
@@ -329,9 +415,33 @@ public  class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // read the tables with several workers each; a lone table under an
+        // aggregate is left to the Aggregate, which parallelizes (or skips)
+        // its scan itself
+        if (ParallelScan.DEFAULT_PARALLELISM > 1 && !(hasAgg && tables.size() == 1)) {
+            for (java.util.Map.Entry<String, DbIterator> e : subplanMap.entrySet()) {
+                if (e.getValue() instanceof SeqScan)
+                    e.setValue(new ParallelScan((SeqScan)e.getValue(), ParallelScan.DEFAULT_PARALLELISM));
+            }
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        String fact = jo.findStarJoin(statsMap, filterSelectivities);
+        if (fact != null) {
+            // one operator joins all the tables of the star; nothing is left to order
+            DbIterator star = jo.instantiateStarJoin(fact, subplanMap);
+            if (explain)
+                System.out.println("Star join of " + fact + " with " + joins.size() + " dimensions");
+            for (LogicalJoinNode lj : joins) {
+                subplanMap.remove(lj.t1Alias);
+                subplanMap.remove(lj.t2Alias);
+            }
+            subplanMap.put(fact, star);
+            joins = new Vector<LogicalJoinNode>();
+        } else {
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        }
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
@@ -399,7 +509,19 @@ public  class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // the aggregate output has the group by fields first, then
+                // one field per aggregate
+                int agg = -1;
+                for (int j = 0; j < aggOps.size(); j++) {
+                    if (aggOps.elementAt(j).equals(si.aggOp) && aggFields.elementAt(j).equals(si.fname)) {
+                        agg = j;
+                        break;
+                    }
+                }
+                if (agg == -1) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
                 int  id;
                 try {
@@ -410,16 +532,24 @@ public  class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    String fname = disambiguateName(si.fname);
+                    int gb = -1;
+                    for (int j = 0; j < groupByFields.size(); j++) {
+                        if (disambiguateName(groupByFields.elementAt(j)).equals(fname)) {
+                            gb = j;
+                            break;
+                        }
+                    }
+                    if (gb == -1) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(gb);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(disambiguateName(groupByField));
+                        id = td.fieldNameToIndex(fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -444,12 +574,27 @@ public  class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(disambiguateName(aggField)),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(disambiguateName(groupByField)),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(disambiguateName(aggFields.elementAt(j)));
+                    aops[j] = getAggOp(aggOps.elementAt(j));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int j = 0; j < gfields.length; j++)
+                    gfields[j] = td.fieldNameToIndex(disambiguateName(groupByFields.elementAt(j)));
+
+                // stream the groups only if the input already comes sorted
+                // on the group key; sorting the whole input for it would
+                // materialize it, while the hash aggregate's output (one
+                // tuple per group) is much cheaper to sort for ORDER BY
+                if (gfields.length == 1 && Operator.sortField(node) == gfields[0]) {
+                    aggNode = new StreamAggregate(node, afields, gfields, aops);
+                } else {
+                    aggNode = new Aggregate(node, afields, gfields, aops);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
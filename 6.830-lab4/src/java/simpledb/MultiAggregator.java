@@ -0,0 +1,124 @@
+package simpledb;
+import java.util.*;
+
+/**
+ * Computes several aggregates at once, grouped by zero or more columns, in a
+ * single pass over the input. Aggregates over IntFields support every Op;
+ * aggregates over StringFields only support COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private int[] gbfields;
+    private int[] afields;
+    private Op[] what;
+    private boolean[] countOnly;
+    private AggregationTable table;
+    private int[] groups = new int[0];
+    private TupleDesc td;
+
+    /**
+     * Aggregate constructor
+     * @param childTd the TupleDesc of the tuples to aggregate
+     * @param gbfields the 0-based indexes of the group-by fields in the tuple; empty if there is no grouping
+     * @param afields the 0-based indexes of the aggregate fields in the tuple
+     * @param what the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException if an aggregate over a string field is not COUNT
+     */
+    public MultiAggregator(TupleDesc childTd, int[] gbfields, int[] afields, Op[] what) {
+        this.gbfields = gbfields;
+        this.afields = afields;
+        this.what = what;
+        countOnly = new boolean[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            if (childTd.getFieldType(afields[i]) == Type.STRING_TYPE) {
+                if (what[i] != Op.COUNT)
+                    throw new IllegalArgumentException("only COUNT is supported over string fields");
+                countOnly[i] = true;
+            }
+        }
+        td = resultTupleDesc(childTd, gbfields, afields, what);
+        Type[] gbfieldtypes = new Type[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            gbfieldtypes[i] = td.getFieldType(i);
+        table = new AggregationTable(gbfieldtypes, afields.length);
+    }
+
+    /**
+     * The TupleDesc of the results: the group by fields, with their names,
+     * then one INT per aggregate, named aggName(field) (e.g. sum(t.c2)).
+     */
+    public static TupleDesc resultTupleDesc(TupleDesc childTd, int[] gbfields, int[] afields, Op[] what) {
+        Type[] typeAr = new Type[gbfields.length + afields.length];
+        String[] fieldAr = new String[typeAr.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            typeAr[i] = childTd.getFieldType(gbfields[i]);
+            fieldAr[i] = childTd.getFieldName(gbfields[i]);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            typeAr[gbfields.length + i] = Type.INT_TYPE;
+            fieldAr[gbfields.length + i] = Aggregate.nameOfAggregatorOp(what[i])
+                + "(" + childTd.getFieldName(afields[i]) + ")";
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the constructor
+     * @param tup the Tuple containing the aggregate fields and the group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int group = table.findOrInsert(tup, gbfields);
+        for (int i = 0; i < afields.length; i++) {
+            if (countOnly[i])
+                table.increment(group, i);
+            else
+                table.merge(group, i, ((IntField)tup.getField(afields[i])).getValue());
+        }
+    }
+
+    /**
+     * Merge the selected rows of a batch: first look up the group of every
+     * row, then fold each aggregate column into those groups.
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.numSelected();
+        if (groups.length < n)
+            groups = new int[batch.capacity()];
+        for (int i = 0; i < n; i++)
+            groups[i] = table.findOrInsert(batch, batch.selected(i), gbfields);
+
+        for (int a = 0; a < afields.length; a++) {
+            if (countOnly[a]) {
+                for (int i = 0; i < n; i++)
+                    table.increment(groups[i], a);
+            } else {
+                int[] values = batch.intColumn(afields[a]);
+                for (int i = 0; i < n; i++)
+                    table.merge(groups[i], a, values[batch.selected(i)]);
+            }
+        }
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return table.find(tup, gbfields) >= 0;
+    }
+
+    public long memoryUsage() {
+        return table.memoryUsage();
+    }
+
+    public void combine(Aggregator partial) {
+        table.combine(((MultiAggregator)partial).table);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples hold the group by values followed
+     *   by one value per aggregate, in the order given to the constructor.
+     */
+    public DbIterator iterator() {
+        return new TupleIterator(td, table.results(td, what));
+    }
+
+}
@@ -5,7 +5,7 @@ import java.util.NoSuchElementException;
 /** Abstract class for implementing operators. It handles <code>close</code>, <code>next</code> and
 <code>hasNext</code>. Subclasses only need to implement <code>open</code> and
 <code>readNext</code>. */
-public abstract class Operator implements DbIterator {
+public abstract class Operator implements BatchIterator {
     public boolean hasNext() throws DbException, TransactionAbortedException {
         if (next == null) next = fetchNext();
         return next != null;
@@ -29,6 +29,16 @@ public abstract class Operator implements DbIterator {
     @return the next Tuple in the iterator, or null if the iteration is finished. */
     protected abstract Tuple fetchNext() throws DbException, TransactionAbortedException;
 
+    /** Returns the next batch of tuples. The default implementation builds
+    the batch from the rows returned by <code>next</code>; operators that
+    can work on whole batches override it.
+    @return the next batch, or null if the iteration is finished. */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc());
+        return TupleBatch.fill(this, batch);
+    }
+
     /** Closes this iterator. If overridden by a subclass, they should call
      super.close() in order for Operator's internal state to be
     consistent. */
@@ -37,5 +47,42 @@ public abstract class Operator implements DbIterator {
         next = null;
     }
 
+    /** @return the children of this operator, in the order they were
+    given to the constructor. Operators with no children return an empty
+    array. */
+    public abstract DbIterator[] getChildren();
+
+    /** Replace the children of this operator, e.g. when the plan is
+    rewritten. The array must hold as many children as getChildren
+    returns, in the same order. */
+    public abstract void setChildren(DbIterator[] children);
+
+    /** @return the number of tuples the optimizer expects this operator
+    to return, or 0 if it has not estimated it. */
+    public int getEstimatedCardinality() {
+        return estimatedCardinality;
+    }
+
+    /** Record the number of tuples the optimizer expects this operator to
+    return. */
+    public void setEstimatedCardinality(int card) {
+        estimatedCardinality = card;
+    }
+
+    /** @return the index of the field the output of this operator is
+    sorted on (ascending or descending), or -1 if it is not known to be
+    sorted. Operators that keep the order of a child pass it on. */
+    public int getSortField() {
+        return -1;
+    }
+
+    /** @return the field it is sorted on, if it is an Operator that knows;
+    -1 otherwise. */
+    static int sortField(DbIterator it) {
+        return it instanceof Operator ? ((Operator)it).getSortField() : -1;
+    }
+
     private Tuple next = null;
+    private transient TupleBatch batch = null;
+    private int estimatedCardinality = 0;
 }
@@ -30,10 +30,25 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    /** @return the index of the field the tuples are sorted on */
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    /** @return true if the sort order is ascending */
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getSortField() {
+        return orderByField;
+    }
+
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
         child.open();
         //load all the tuples in a collection, and sort it
+        childTups.clear();
         while (child.hasNext())
             childTups.add((Tuple)child.next());
         Collections.sort(childTups, new TupleComparator(orderByField, asc));
@@ -61,6 +76,14 @@ public class OrderBy extends Operator {
         } else
             return null;
     }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
 }
 
  class TupleComparator implements Comparator<Tuple> {
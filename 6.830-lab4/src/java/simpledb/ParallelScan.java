@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelScan reads a {@link SeqScan} with a pool of worker threads. The
+ * pages of the table are split into morsels of a few pages each; every
+ * worker repeatedly takes the next morsel, scans it (with the predicates
+ * and columns of the SeqScan), optionally runs it through a
+ * {@link Pipeline} of further operators such as Filter and Project, and
+ * hands the resulting tuples back to the consumer. Because workers take
+ * morsels as they become free, a slow morsel does not hold up the others.
+ * <p>
+ * The results of at most a fixed number of morsels are buffered between
+ * the workers and the consumer; once the buffer is full, workers wait for
+ * the consumer to catch up. Tuples are returned either in the order in
+ * which morsels finish, or, if requested, in the same order as the
+ * SeqScan would return them.
+ * <p>
+ * The workers of all ParallelScans run on one shared pool of daemon
+ * threads, which grows with the number of workers running at once and
+ * lets idle threads exit; opening a scan does not start threads of its
+ * own.
+ */
+public class ParallelScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of worker threads the planner gives each scan, set with the
+     * system property simpledb.ScanParallelism (e.g.
+     * -Dsimpledb.ScanParallelism=4). With 1 scans are not parallelized.
+     */
+    public static final int DEFAULT_PARALLELISM =
+        Integer.getInteger("simpledb.ScanParallelism", 1);
+
+    /**
+     * Number of pages in a morsel, set with the system property
+     * simpledb.MorselPages.
+     */
+    public static final int DEFAULT_MORSEL_PAGES =
+        Math.max(1, Integer.getInteger("simpledb.MorselPages", 16));
+
+    /**
+     * The threads the workers of every scan run on. The pool is not
+     * bounded: a worker waiting for its consumer holds its thread, and a
+     * fixed number of threads could all be held by scans whose consumer
+     * is waiting for another scan.
+     */
+    private static final ExecutorService WORKERS =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-scan-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Builds the operators each worker runs on top of the scan of a morsel.
+     * build is called once per morsel, so the operators it returns must not
+     * be shared between calls.
+     */
+    public interface Pipeline {
+        /**
+         * @param morsel the scan of one morsel of the table
+         * @return the operators to run on the tuples of the morsel
+         */
+        public DbIterator build(DbIterator morsel);
+    }
+
+    // the tuples of one morsel, or the error that stopped it
+    private static class Morsel {
+        final int index;
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        Throwable error;
+
+        Morsel(int index) {
+            this.index = index;
+        }
+    }
+
+    private final SeqScan scan;
+    private final Pipeline pipeline;
+    private final int workers;
+    private final boolean ordered;
+    private final TupleDesc td;
+    private int morselPages = DEFAULT_MORSEL_PAGES;
+    private int bufferedMorsels;
+
+    // the workers of the current open, cancelled when it is closed
+    private transient ArrayList<Future<?>> tasks;
+    private transient LinkedBlockingQueue<Morsel> finished;
+    private transient HashMap<Integer, Morsel> early;
+    private transient Semaphore window;
+    private transient int numMorsels;
+    private transient int consumed;
+    private transient Iterator<Tuple> current;
+
+    /**
+     * Read a scan with the given number of workers, returning tuples in no
+     * particular order.
+     */
+    public ParallelScan(SeqScan scan, int workers) {
+        this(scan, null, workers, false);
+    }
+
+    /**
+     * @param scan the scan to parallelize; its table must be a HeapFile
+     * @param pipeline the operators to run on each morsel inside the
+     *            workers, or null to return the tuples of the scan
+     * @param workers the number of worker threads
+     * @param ordered if true, tuples are returned in the order the scan
+     *            (and pipeline) would return them; otherwise in the order
+     *            in which morsels finish
+     */
+    public ParallelScan(SeqScan scan, Pipeline pipeline, int workers, boolean ordered) {
+        this.scan = scan;
+        this.pipeline = pipeline;
+        this.workers = Math.max(1, workers);
+        this.ordered = ordered;
+        this.bufferedMorsels = 2 * this.workers;
+        td = pipeline == null ? scan.getTupleDesc() : pipeline.build(scan).getTupleDesc();
+    }
+
+    /**
+     * Set the number of pages in a morsel. Takes effect the next time the
+     * scan is opened.
+     */
+    public void setMorselPages(int pages) {
+        morselPages = Math.max(1, pages);
+    }
+
+    /**
+     * Set the number of morsels whose tuples may be buffered before the
+     * consumer reads them. Takes effect the next time the scan is opened.
+     */
+    public void setBufferedMorsels(int morsels) {
+        bufferedMorsels = Math.max(1, morsels);
+    }
+
+    /** @return the scan this operator parallelizes */
+    public SeqScan getScan() {
+        return scan;
+    }
+
+    /**
+     * @return the operators run on each morsel, or null if the scan's
+     *         tuples are returned as they are
+     */
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    /** @return the number of worker threads */
+    public int getWorkers() {
+        return workers;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * The scan is driven by the workers rather than read as a child, so a
+     * ParallelScan is a leaf of the operator tree.
+     */
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    public void setChildren(DbIterator[] children) {
+        if (children.length != 0)
+            throw new IllegalArgumentException("ParallelScan has no children");
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(scan.getTableId());
+        final int start = scan.getStartPage();
+        final int end = scan.getEndPage() < 0 ? file.numPages()
+            : Math.min(scan.getEndPage(), file.numPages());
+        final int pages = morselPages;
+        final int total = Math.max(0, (end - start + pages - 1) / pages);
+        numMorsels = total;
+        consumed = 0;
+        current = null;
+        finished = new LinkedBlockingQueue<Morsel>();
+        early = new HashMap<Integer, Morsel>();
+        final Semaphore window = new Semaphore(bufferedMorsels);
+        this.window = window;
+        final LinkedBlockingQueue<Morsel> finished = this.finished;
+        final AtomicInteger nextMorsel = new AtomicInteger();
+
+        tasks = new ArrayList<Future<?>>();
+        for (int w = 0; w < Math.min(workers, total); w++) {
+            tasks.add(WORKERS.submit(new Runnable() {
+                public void run() {
+                    while (true) {
+                        // take a buffer slot before a morsel, so that in
+                        // ordered mode the next morsel the consumer needs
+                        // is always one that holds a slot
+                        try {
+                            window.acquire();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        int m = nextMorsel.getAndIncrement();
+                        if (m >= total) {
+                            window.release();
+                            return;
+                        }
+                        int first = start + m * pages;
+                        finished.add(scanMorsel(m, scan.morsel(first, Math.min(end, first + pages))));
+                    }
+                }
+            }));
+        }
+    }
+
+    private Morsel scanMorsel(int index, SeqScan morselScan) {
+        Morsel result = new Morsel(index);
+        try {
+            DbIterator it = pipeline == null ? morselScan : pipeline.build(morselScan);
+            it.open();
+            try {
+                while (it.hasNext())
+                    result.tuples.add(it.next());
+            } finally {
+                it.close();
+            }
+        } catch (Throwable e) {
+            result.error = e;
+        }
+        return result;
+    }
+
+    /**
+     * Wait for the next morsel the consumer should read.
+     */
+    private Morsel takeMorsel() throws DbException, TransactionAbortedException {
+        Morsel m;
+        try {
+            if (!ordered) {
+                m = finished.take();
+            } else {
+                while (!early.containsKey(consumed)) {
+                    Morsel f = finished.take();
+                    early.put(f.index, f);
+                }
+                m = early.remove(consumed);
+            }
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while waiting for scan workers");
+        }
+        consumed++;
+        if (m.error != null) {
+            if (m.error instanceof TransactionAbortedException)
+                throw (TransactionAbortedException)m.error;
+            if (m.error instanceof DbException)
+                throw (DbException)m.error;
+            throw new DbException("error in scan worker: " + m.error);
+        }
+        return m;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (tasks == null)
+            throw new IllegalStateException("scan is not open");
+        while (current == null || !current.hasNext()) {
+            if (current != null) {
+                // the consumer is done with a morsel: free its buffer slot
+                current = null;
+                window.release();
+            }
+            if (consumed == numMorsels)
+                return null;
+            current = takeMorsel().tuples.iterator();
+        }
+        return current.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        if (tasks != null) {
+            // interrupts the workers waiting for a buffer slot
+            for (Future<?> f : tasks)
+                f.cancel(true);
+        }
+        tasks = null;
+        finished = null;
+        early = null;
+        current = null;
+    }
+}
@@ -150,20 +150,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException("At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (int i = 0; i < gbs.size(); i++) {
+                ZExp gbe = gbs.elementAt(i);
                 if (! (gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException("Complex grouping expressions (" + gbe + ") not supported.");
                 }
-                groupByField = ((ZConstant)gbe).getValue();
-                System.out.println ("GROUP BY FIELD : " + groupByField);
+                String groupByField = ((ZConstant)gbe).getValue();
+                if (explain)
+                    System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -171,8 +170,7 @@ public class Parser {
         // walk the select list, pick out aggregates, and check for query validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -180,27 +178,27 @@ public class Parser {
                 throw new simpledb.ParsingException("Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException("Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant)((ZExpression)si.getExpression()).getOperand(0)).getValue();
-                aggFun = si.getAggregate();
-                System.out.println ("Aggregate field is " + aggField + ", agg fun is : " + aggFun);
+                String aggField = ((ZConstant)((ZExpression)si.getExpression()).getOperand(0)).getValue();
+                String aggFun = si.getAggregate();
+                if (explain)
+                    System.out.println("Aggregate field is " + aggField + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null && ! (groupByField.equals(si.getTable() + "." + si.getColumn()) || groupByField.equals(si.getColumn()))) {
+                if (!groupByFields.isEmpty() && ! (groupByFields.contains(si.getTable() + "." + si.getColumn()) || groupByFields.contains(si.getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field " + si.getColumn() + " does not appear in GROUP BY list.");
                 }
                 lp.addProjectField(si.getTable() + "." + si.getColumn(), null);
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
         
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (int i = 0; i < groupByFields.size(); i++) {
+            lp.addGroupBy(groupByFields.elementAt(i));
         }
         // sort the data
 
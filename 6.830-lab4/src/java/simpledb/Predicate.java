@@ -29,6 +29,29 @@ public class Predicate {
         }
     }
     
+    /**
+     * A predicate compiled for the type of its operand and its operation;
+     * see {@link Predicate#compile}.
+     */
+    public interface Evaluator {
+        /** @return true if the tuple satisfies the predicate */
+        public boolean eval(Tuple t);
+    }
+
+    /**
+     * A predicate compiled to test tuples in their serialized form, as
+     * stored in a slot of a {@link HeapPage}; see
+     * {@link Predicate#compile(TupleDesc)}.
+     */
+    public interface ByteEvaluator {
+        /**
+         * @param data the bytes of a page
+         * @param offset the offset in data of the first byte of the tuple
+         * @return true if the tuple satisfies the predicate
+         */
+        public boolean eval(byte[] data, int offset);
+    }
+
     private int field;
     private Op op;
     private Field operand;
@@ -46,6 +69,21 @@ public class Predicate {
         this.operand = operand;
     }
 
+    /** @return the field number of the tuples that is compared */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the comparison of the predicate */
+    public Op getOp() {
+        return op;
+    }
+
+    /** @return the value the field is compared to */
+    public Field getOperand() {
+        return operand;
+    }
+
     /**
      * Compares the field number of t specified in the constructor to the
      * operand field specified in the constructor using the operator specific
@@ -59,6 +97,274 @@ public class Predicate {
         return t.getField(field).compare(op,operand);
     }
 
+    /**
+     * Compile the predicate into an Evaluator specialized for the type of
+     * the operand and for the operation, so that evaluating it on a tuple
+     * is one comparison of an int (or String) rather than a call to
+     * Field.compare and a switch on the operation. Compile a predicate once
+     * per query, not once per tuple.
+     */
+    public Evaluator compile() {
+        final int f = field;
+        if (operand instanceof IntField) {
+            final int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((IntField) t.getField(f)).getValue() == v;
+                    }
+                };
+            case NOT_EQUALS:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((IntField) t.getField(f)).getValue() != v;
+                    }
+                };
+            case GREATER_THAN:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((IntField) t.getField(f)).getValue() > v;
+                    }
+                };
+            case GREATER_THAN_OR_EQ:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((IntField) t.getField(f)).getValue() >= v;
+                    }
+                };
+            case LESS_THAN:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((IntField) t.getField(f)).getValue() < v;
+                    }
+                };
+            case LESS_THAN_OR_EQ:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((IntField) t.getField(f)).getValue() <= v;
+                    }
+                };
+            }
+        } else if (operand instanceof StringField) {
+            final String v = ((StringField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((StringField) t.getField(f)).getValue().equals(v);
+                    }
+                };
+            case LIKE:
+                return new Evaluator() {
+                    public boolean eval(Tuple t) {
+                        return ((StringField) t.getField(f)).getValue().indexOf(v) >= 0;
+                    }
+                };
+            }
+        }
+
+        // anything else goes through Field.compare
+        final Op o = op;
+        final Field c = operand;
+        return new Evaluator() {
+            public boolean eval(Tuple t) {
+                return t.getField(f).compare(o, c);
+            }
+        };
+    }
+
+    /**
+     * Compile a conjunction of predicates into a single Evaluator that is
+     * true if all of them are true. The predicates are tested in order and
+     * evaluation stops at the first one that fails.
+     */
+    public static Evaluator and(Predicate[] preds) {
+        if (preds.length == 1)
+            return preds[0].compile();
+        if (preds.length == 2) {
+            final Evaluator a = preds[0].compile();
+            final Evaluator b = preds[1].compile();
+            return new Evaluator() {
+                public boolean eval(Tuple t) {
+                    return a.eval(t) && b.eval(t);
+                }
+            };
+        }
+        final Evaluator[] es = new Evaluator[preds.length];
+        for (int i = 0; i < es.length; i++)
+            es[i] = preds[i].compile();
+        return new Evaluator() {
+            public boolean eval(Tuple t) {
+                for (int i = 0; i < es.length; i++)
+                    if (!es[i].eval(t))
+                        return false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Compile the predicate to test serialized tuples of the specified
+     * TupleDesc without decoding them. Integer fields are read straight
+     * from the bytes; string fields are decoded on their own, not as part
+     * of a Tuple.
+     *
+     * @param td the TupleDesc of the serialized tuples
+     */
+    public ByteEvaluator compile(TupleDesc td) {
+        int off = 0;
+        for (int i = 0; i < field; i++)
+            off += td.getFieldType(i).getLen();
+        final int fieldOffset = off;
+
+        if (operand instanceof IntField) {
+            final int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return new ByteEvaluator() {
+                    public boolean eval(byte[] data, int offset) {
+                        return readInt(data, offset + fieldOffset) == v;
+                    }
+                };
+            case NOT_EQUALS:
+                return new ByteEvaluator() {
+                    public boolean eval(byte[] data, int offset) {
+                        return readInt(data, offset + fieldOffset) != v;
+                    }
+                };
+            case GREATER_THAN:
+                return new ByteEvaluator() {
+                    public boolean eval(byte[] data, int offset) {
+                        return readInt(data, offset + fieldOffset) > v;
+                    }
+                };
+            case GREATER_THAN_OR_EQ:
+                return new ByteEvaluator() {
+                    public boolean eval(byte[] data, int offset) {
+                        return readInt(data, offset + fieldOffset) >= v;
+                    }
+                };
+            case LESS_THAN:
+                return new ByteEvaluator() {
+                    public boolean eval(byte[] data, int offset) {
+                        return readInt(data, offset + fieldOffset) < v;
+                    }
+                };
+            case LESS_THAN_OR_EQ:
+                return new ByteEvaluator() {
+                    public boolean eval(byte[] data, int offset) {
+                        return readInt(data, offset + fieldOffset) <= v;
+                    }
+                };
+            }
+        }
+
+        // strings: a 4 byte length followed by the characters, as written
+        // by StringField.serialize
+        final Op o = op;
+        final Field c = operand;
+        return new ByteEvaluator() {
+            public boolean eval(byte[] data, int offset) {
+                int p = offset + fieldOffset;
+                String s = new String(data, p + 4, readInt(data, p));
+                return new StringField(s, Type.STRING_LEN).compare(o, c);
+            }
+        };
+    }
+
+    /**
+     * Compile a conjunction of predicates into a single ByteEvaluator over
+     * serialized tuples of the specified TupleDesc.
+     */
+    public static ByteEvaluator and(Predicate[] preds, TupleDesc td) {
+        if (preds.length == 1)
+            return preds[0].compile(td);
+        final ByteEvaluator[] es = new ByteEvaluator[preds.length];
+        for (int i = 0; i < es.length; i++)
+            es[i] = preds[i].compile(td);
+        return new ByteEvaluator() {
+            public boolean eval(byte[] data, int offset) {
+                for (int i = 0; i < es.length; i++)
+                    if (!es[i].eval(data, offset))
+                        return false;
+                return true;
+            }
+        };
+    }
+
+    // read a big-endian int, as written by DataOutputStream.writeInt
+    static int readInt(byte[] data, int p) {
+        return ((data[p] & 0xff) << 24) | ((data[p + 1] & 0xff) << 16)
+            | ((data[p + 2] & 0xff) << 8) | (data[p + 3] & 0xff);
+    }
+
+    /**
+     * Applies the predicate to the selected rows of a batch, narrowing the
+     * selection of the batch to the rows for which it is true. Integer
+     * comparisons are evaluated directly on the int column, with the
+     * comparison chosen once per batch rather than once per row.
+     *
+     * @param b the batch to filter
+     * @param out buffer that receives the new selection; must be at least
+     *            b.capacity() long, and is kept by the batch
+     */
+    public void filter(TupleBatch b, int[] out) {
+        int n = b.numSelected();
+        int k = 0;
+        if (operand instanceof IntField) {
+            int[] col = b.intColumn(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    if (col[r] == v) out[k++] = r;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    if (col[r] != v) out[k++] = r;
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    if (col[r] > v) out[k++] = r;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    if (col[r] >= v) out[k++] = r;
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    if (col[r] < v) out[k++] = r;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    if (col[r] <= v) out[k++] = r;
+                }
+                break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int r = b.selected(i);
+                if (b.getField(field, r).compare(op, operand)) out[k++] = r;
+            }
+        }
+        b.select(out, k);
+    }
+
     /**
      * Returns something useful, like
      * "f = field_id op = op_string operand = operand_string
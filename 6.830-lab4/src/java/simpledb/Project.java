@@ -65,4 +65,26 @@ public class Project extends Operator {
         }
         return null;
     }
+
+    /**
+     * Returns the next batch of the child restricted to the projected
+     * columns. The columns are shared with the child's batch, not copied.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch b = TupleBatch.read(child);
+        if (b == null)
+            return null;
+        int[] cols = new int[outFieldIds.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = outFieldIds.get(i);
+        return b.project(cols, td);
+    }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
 }
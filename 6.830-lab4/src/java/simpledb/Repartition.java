@@ -0,0 +1,54 @@
+package simpledb;
+
+/**
+ * Repartition splits the tuples of its inputs into a number of outputs by
+ * the hash of one field, so that all tuples with the same value of the
+ * field go to the same output. Operators such as grouped aggregates and
+ * equi-joins on that field can then run as one copy per output, each
+ * over its own partition, and be merged again with a {@link Gather}.
+ * <p>
+ * The outputs are created together with {@link #create}; each is an
+ * operator of its own, and they share the producer threads that read the
+ * inputs.
+ */
+public class Repartition extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+
+    private Repartition(String name, Channel channel, int output, int field) {
+        super(name, channel, output);
+        this.field = field;
+    }
+
+    /**
+     * Create the outputs of a repartitioning exchange.
+     *
+     * @param inputs the subtrees whose tuples are split; they must all
+     *            return tuples of the same type
+     * @param field the index of the field to partition on
+     * @param partitions the number of outputs
+     * @return the outputs, one per partition
+     */
+    public static Repartition[] create(DbIterator[] inputs, final int field,
+            final int partitions) {
+        Channel channel = new Channel(inputs, partitions) {
+            int route(Tuple t) {
+                return (t.getField(field).hashCode() & 0x7fffffff) % partitions;
+            }
+        };
+        String fieldName = channel.getTupleDesc().getFieldName(field);
+        Repartition[] outputs = new Repartition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            String name = "repartition(" + fieldName + ") " + i + "/" + partitions;
+            outputs[i] = new Repartition(name, channel, i, field);
+        }
+        return outputs;
+    }
+
+    /** @return the index of the field the tuples are partitioned on */
+    public int getPartitionField() {
+        return field;
+    }
+}
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -15,6 +15,12 @@ public class SeqScan implements DbIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator iterator;
+    private int startPage = 0;
+    private int endPage = -1;
+    private ArrayList<Predicate> preds = new ArrayList<Predicate>();
+    private ArrayList<JoinFilter> joinFilters = new ArrayList<JoinFilter>();
+    private int[] columns;
+    private transient TupleBatch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -76,8 +82,152 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * Restrict this scan to pages [startPage, endPage) of the table, which
+     * must be a HeapFile. Takes effect the next time the scan is opened.
+     *
+     * @param endPage one past the last page to scan, or -1 to scan to the
+     *            end of the table
+     */
+    public void setPageRange(int startPage, int endPage) {
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Return a new scan of pages [startPage, endPage) of the same table, in
+     * the same transaction, with the same predicates and columns as this
+     * scan. Used to split a scan into morsels that are read in parallel.
+     */
+    public SeqScan morsel(int startPage, int endPage) {
+        SeqScan s = new SeqScan(tid, tableid, tableAlias);
+        s.setPageRange(startPage, endPage);
+        s.preds = new ArrayList<Predicate>(preds);
+        s.joinFilters = new ArrayList<JoinFilter>(joinFilters);
+        s.columns = columns;
+        return s;
+    }
+
+    /** @return the first page this scan reads; see {@link #setPageRange} */
+    public int getStartPage() {
+        return startPage;
+    }
+
+    /**
+     * @return one past the last page this scan reads, or -1 if it reads to
+     *         the end of the table; see {@link #setPageRange}
+     */
+    public int getEndPage() {
+        return endPage;
+    }
+
+    /**
+     * Only return the tuples of the table that satisfy p, in addition to any
+     * predicates added before. The predicates are tested against the bytes
+     * of each slot of a page, so the tuples that fail them are never built,
+     * and if the table has a zone map (see {@link HeapFile#enableZoneMap})
+     * pages that cannot hold a matching tuple are not read at all.
+     * The table must be a HeapFile. Takes effect the next time the scan is
+     * opened.
+     *
+     * @param p a predicate over the fields of the table
+     */
+    public void addPredicate(Predicate p) {
+        preds.add(p);
+    }
+
+    /**
+     * Replace the predicates of this scan (see {@link #addPredicate}).
+     *
+     * @param ps the predicates, all of which a tuple must satisfy
+     */
+    public void setPredicates(Predicate[] ps) {
+        preds = new ArrayList<Predicate>(Arrays.asList(ps));
+    }
+
+    /**
+     * @return the predicates pushed down into this scan; empty if every
+     *         tuple of the table is returned
+     */
+    public Predicate[] getPredicates() {
+        return preds.toArray(new Predicate[preds.size()]);
+    }
+
+    /**
+     * Only return the tuples whose key may be in a join filter, in addition
+     * to any predicates. The filter is tested like the predicates (see
+     * {@link #addPredicate}), and its range is used to skip pages with the
+     * zone map of the table. Takes effect the next time the scan is
+     * opened.
+     */
+    public void addJoinFilter(JoinFilter f) {
+        joinFilters.add(f);
+    }
+
+    /**
+     * Stop testing a join filter added with {@link #addJoinFilter}. Takes
+     * effect the next time the scan is opened.
+     */
+    public void removeJoinFilter(JoinFilter f) {
+        joinFilters.remove(f);
+    }
+
+    /** @return the join filters of this scan; empty if there are none */
+    public JoinFilter[] getJoinFilters() {
+        return joinFilters.toArray(new JoinFilter[joinFilters.size()]);
+    }
+
+    /**
+     * Only decode the given fields of the tuples of the table; the other
+     * fields of the returned tuples may be null. The TupleDesc of the scan
+     * is unchanged. Pushed-down predicates may test any field. The table
+     * must be a HeapFile. Takes effect the next time the scan is opened.
+     *
+     * @param columns the indexes of the fields the consumers of this scan
+     *            read, or null to decode every field
+     */
+    public void setColumns(int[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @return the fields this scan decodes, or null if it decodes every
+     *         field
+     */
+    public int[] getColumns() {
+        return columns;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
-        iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (startPage != 0 || endPage >= 0)
+            iterator = ((HeapFile)file).iterator(tid, startPage, endPage);
+        else
+            iterator = file.iterator(tid);
+        if (!preds.isEmpty())
+            ((HeapFileIterator)iterator).setPredicates(getPredicates());
+        if (!joinFilters.isEmpty())
+            ((HeapFileIterator)iterator).setJoinFilters(getJoinFilters());
+        if (columns != null) {
+            boolean[] needed = new boolean[getTupleDesc().numFields()];
+            for (int c : columns)
+                needed[c] = true;
+            ((HeapFileIterator)iterator).setColumns(needed);
+        }
         iterator.open();
         //HeapFile hf = (HeapFile)Database.getCatalog().getDatabaseFile(tableid);
         //System.out.println(hf.numPages());
@@ -113,6 +263,21 @@ public class SeqScan implements DbIterator {
         return t;
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (iterator == null)
+            return null;
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc());
+        batch.clear();
+        if (iterator instanceof HeapFileIterator) {
+            ((HeapFileIterator)iterator).fill(batch);
+        } else {
+            while (!batch.isFull() && iterator.hasNext())
+                batch.addTuple(iterator.next());
+        }
+        return batch.numRows() == 0 ? null : batch;
+    }
+
     public void close() {
         iterator = null;
     }
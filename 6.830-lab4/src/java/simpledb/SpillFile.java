@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary file of tuples that all share one TupleDesc.
+ * Operators that run out of their memory budget write tuples to it and read
+ * them back later. Tuples are stored in the same fixed-size format that
+ * HeapPage uses for a slot.
+ * <p>
+ * The file is written with {@link #add} and then read with
+ * {@link #iterator}; once reading has started no more tuples can be added.
+ * Call {@link #delete} when the tuples are no longer needed, also when the
+ * operator fails; the file is not removed when the JVM exits.
+ */
+public class SpillFile {
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Create a new, empty spill file in the default temporary directory.
+     *
+     * @param td the TupleDesc of the tuples that will be stored
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        file = File.createTempFile("simpledb-spill", ".tmp");
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a tuple to the file.
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is already being read");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        numTuples++;
+    }
+
+    /**
+     * @return the number of tuples written to this file
+     */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the TupleDesc of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Finish writing and return an iterator over the tuples in the order
+     * they were added.
+     */
+    public DbIterator iterator() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new SpillFileIterator();
+    }
+
+    /** Remove the file from disk. */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            // the file is going away anyway
+        }
+        out = null;
+        file.delete();
+    }
+
+    private class SpillFileIterator extends Operator {
+        private static final long serialVersionUID = 1L;
+        private transient DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("error opening spill file: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[0];
+        }
+
+        public void setChildren(DbIterator[] children) {
+            throw new UnsupportedOperationException("a spill file has no children");
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do, the stream is dropped below
+                }
+            }
+            in = null;
+        }
+
+        protected Tuple fetchNext() throws DbException {
+            if (in == null)
+                throw new IllegalStateException("spill file iterator is not open");
+            if (read == numTuples)
+                return null;
+
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new DbException("error reading spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StarJoin joins a fact table with several dimension tables on equality
+ * of one field each, in one pass over the fact table. When it is opened it
+ * loads every dimension into a hash table on its join field; each tuple of
+ * the fact table is then probed into the hash tables one after the other,
+ * and dropped as soon as one of them has no match. The output tuples,
+ * which hold the fields of the fact tuple followed by those of the
+ * matching tuple of each dimension, are built once, rather than copied
+ * into a new tuple at every level of a chain of binary joins.
+ * <p>
+ * If the fact table is read by a SeqScan (see
+ * {@link JoinFilter#probeScan}), the keys of each dimension with an INT
+ * join field are also pushed into that scan as a {@link JoinFilter}, so
+ * most fact tuples without a match are not built at all.
+ * <p>
+ * The dimensions are held in memory, so they should be the small side of
+ * the joins; the optimizer only plans a StarJoin if they fit in
+ * {@link JoinOptimizer#setStarJoinMaxTuples}.
+ */
+public class StarJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator fact;
+    private DbIterator[] dims;
+    private final int[] factFields;
+    private final int[] dimFields;
+    private final TupleDesc td;
+    private boolean useJoinFilters = HashEquiJoin.DEFAULT_JOIN_FILTER;
+
+    private transient ArrayList<HashMap<Field, ArrayList<Tuple>>> tables;
+    private transient ArrayList<JoinFilter> joinFilters;
+    private transient SeqScan filteredScan;
+    // the fact tuple being joined, the matches of each dimension for it,
+    // and the next combination of matches to return
+    private transient Tuple current;
+    private transient ArrayList<ArrayList<Tuple>> matches;
+    private transient int[] pos;
+
+    /**
+     * @param fact the fact table
+     * @param dims the dimension tables
+     * @param factFields factFields[i] is the field of the fact table that
+     *            is joined with dimension i
+     * @param dimFields dimFields[i] is the field of dimension i that is
+     *            joined with the fact table
+     */
+    public StarJoin(DbIterator fact, DbIterator[] dims, int[] factFields, int[] dimFields) {
+        if (dims.length == 0 || dims.length != factFields.length
+            || dims.length != dimFields.length)
+            throw new IllegalArgumentException("need one fact field and one dimension field per dimension");
+        this.fact = fact;
+        this.dims = dims.clone();
+        this.factFields = factFields;
+        this.dimFields = dimFields;
+        TupleDesc merged = fact.getTupleDesc();
+        for (DbIterator d : dims)
+            merged = TupleDesc.merge(merged, d.getTupleDesc());
+        td = merged;
+    }
+
+    /**
+     * Set whether the join pushes join filters into the scan of the fact
+     * table. Takes effect the next time the join is opened.
+     */
+    public void setJoinFilters(boolean enabled) {
+        useJoinFilters = enabled;
+    }
+
+    /** @return the number of dimension tables */
+    public int numDimensions() {
+        return dims.length;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>();
+        for (int i = 0; i < dims.length; i++) {
+            HashMap<Field, ArrayList<Tuple>> table = new HashMap<Field, ArrayList<Tuple>>();
+            dims[i].open();
+            while (dims[i].hasNext()) {
+                Tuple t = dims[i].next();
+                Field key = t.getField(dimFields[i]);
+                ArrayList<Tuple> list = table.get(key);
+                if (list == null) {
+                    list = new ArrayList<Tuple>(1);
+                    table.put(key, list);
+                }
+                list.add(t);
+            }
+            dims[i].close();
+            tables.add(table);
+        }
+        pushJoinFilters();
+        fact.open();
+        current = null;
+        matches = new ArrayList<ArrayList<Tuple>>();
+        for (int i = 0; i < dims.length; i++)
+            matches.add(null);
+        pos = new int[dims.length];
+    }
+
+    /**
+     * Add a join filter with the keys of each dimension to the scan of the
+     * fact table, if there is one.
+     */
+    private void pushJoinFilters() {
+        joinFilters = new ArrayList<JoinFilter>();
+        if (!useJoinFilters)
+            return;
+        for (int i = 0; i < dims.length; i++) {
+            if (dims[i].getTupleDesc().getFieldType(dimFields[i]) != Type.INT_TYPE)
+                continue;
+            SeqScan scan = JoinFilter.probeScan(fact, factFields[i]);
+            if (scan == null)
+                continue;
+            JoinFilter f = new JoinFilter(factFields[i]);
+            f.reset(tables.get(i).size());
+            for (Field key : tables.get(i).keySet())
+                f.add(((IntField)key).getValue());
+            scan.addJoinFilter(f);
+            filteredScan = scan;
+            joinFilters.add(f);
+        }
+    }
+
+    public void close() {
+        super.close();
+        fact.close();
+        if (filteredScan != null) {
+            for (JoinFilter f : joinFilters)
+                filteredScan.removeJoinFilter(f);
+        }
+        filteredScan = null;
+        joinFilters = null;
+        tables = null;
+        current = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        fact.rewind();
+        current = null;
+    }
+
+    /**
+     * Probe a fact tuple into the hash tables of the dimensions.
+     *
+     * @return false as soon as a dimension has no match for it
+     */
+    private boolean probe(Tuple t) {
+        for (int i = 0; i < dims.length; i++) {
+            ArrayList<Tuple> m = tables.get(i).get(t.getField(factFields[i]));
+            if (m == null)
+                return false;
+            matches.set(i, m);
+            pos[i] = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Advance to the next combination of matches for the current fact
+     * tuple, like an odometer over the dimensions.
+     *
+     * @return false if all combinations have been returned
+     */
+    private boolean advance() {
+        for (int i = dims.length - 1; i >= 0; i--) {
+            if (++pos[i] < matches.get(i).size())
+                return true;
+            pos[i] = 0;
+        }
+        return false;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (current == null) {
+            while (true) {
+                if (!fact.hasNext())
+                    return null;
+                Tuple t = fact.next();
+                if (probe(t)) {
+                    current = t;
+                    break;
+                }
+            }
+        }
+
+        Tuple out = new Tuple(td);
+        int n = 0;
+        for (int f = 0; f < fact.getTupleDesc().numFields(); f++)
+            out.setField(n++, current.getField(f));
+        for (int i = 0; i < dims.length; i++) {
+            Tuple d = matches.get(i).get(pos[i]);
+            for (int f = 0; f < dims[i].getTupleDesc().numFields(); f++)
+                out.setField(n++, d.getField(f));
+        }
+        if (!advance())
+            current = null;
+        return out;
+    }
+
+    /** @return the fact table followed by the dimension tables */
+    public DbIterator[] getChildren() {
+        DbIterator[] children = new DbIterator[dims.length + 1];
+        children[0] = fact;
+        System.arraycopy(dims, 0, children, 1, dims.length);
+        return children;
+    }
+
+    public void setChildren(DbIterator[] children) {
+        fact = children[0];
+        dims = Arrays.copyOfRange(children, 1, children.length);
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamAggregate computes the same aggregates as {@link Aggregate}, but
+ * requires its child to deliver the tuples of each group next to each other,
+ * e.g. because the child is an {@link OrderBy} on the group by field. It then
+ * only keeps the accumulators of the current group: a group is returned as
+ * soon as the first tuple of the next group (or the end of the input) is
+ * seen, so results start flowing before the whole child has been read and
+ * memory use does not depend on the number of groups.
+ * <p>
+ * Groups are returned in the order they appear in the child. If the child is
+ * not grouped, a group that appears in several runs is returned once per run.
+ */
+public class StreamAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private boolean[] countOnly;
+    private TupleDesc td;
+
+    // accumulators of the group being read; a table with a single group
+    private AggregationTable current;
+    // first tuple of the next group, already read from the child
+    private Tuple pending;
+
+    /**
+     * Constructor.
+     *
+     * @param child The DbIterator that is feeding us tuples, grouped on gfields.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result; empty if there is no grouping
+     * @param aops The aggregation operator to use for each of afields
+     * @throws IllegalArgumentException if an aggregate over a string field is not COUNT
+     */
+    public StreamAggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one aggregation operator per aggregate field");
+        this.child = child;
+        this.afields = afields;
+        this.gfields = gfields;
+        this.aops = aops;
+
+        TupleDesc childTd = child.getTupleDesc();
+        countOnly = new boolean[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            if (childTd.getFieldType(afields[i]) == Type.STRING_TYPE) {
+                if (aops[i] != Aggregator.Op.COUNT)
+                    throw new IllegalArgumentException("only COUNT is supported over string fields");
+                countOnly[i] = true;
+            }
+        }
+
+        td = MultiAggregator.resultTupleDesc(childTd, gfields, afields, aops);
+
+        current = new AggregationTable(new Type[0], afields.length);
+    }
+
+    /**
+     * Convenience constructor for a single aggregate.
+     *
+     * @param gfield The column over which we are grouping the result, or -1 if there is no grouping
+     */
+    public StreamAggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[] { afield },
+             gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+             new Aggregator.Op[] { aop });
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open()
+        throws NoSuchElementException, DbException, TransactionAbortedException {
+        child.open();
+        pending = null;
+    }
+
+    private boolean sameGroup(Tuple a, Tuple b) {
+        for (int i = 0; i < gfields.length; i++)
+            if (!a.getField(gfields[i]).equals(b.getField(gfields[i])))
+                return false;
+        return true;
+    }
+
+    private void merge(int group, Tuple t) {
+        for (int i = 0; i < afields.length; i++) {
+            if (countOnly[i])
+                current.increment(group, i);
+            else
+                current.merge(group, i, ((IntField)t.getField(afields[i])).getValue());
+        }
+    }
+
+    /**
+     * Returns the next group: the group by fields, followed by the result of
+     * each aggregate in the order given to the constructor. Reads the child
+     * up to and including the first tuple of the following group.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Tuple first = pending;
+        pending = null;
+        if (first == null) {
+            if (!child.hasNext())
+                return null;
+            first = child.next();
+        }
+
+        current.clear();
+        int g = current.findOrInsertKey(0);
+        merge(g, first);
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (!sameGroup(first, t)) {
+                pending = t;
+                break;
+            }
+            merge(g, t);
+        }
+
+        Tuple result = new Tuple(td);
+        for (int i = 0; i < gfields.length; i++)
+            result.setField(i, first.getField(gfields[i]));
+        for (int i = 0; i < afields.length; i++)
+            result.setField(gfields.length + i, new IntField(current.aggregate(g, i, aops[i])));
+        return result;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        pending = null;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        pending = null;
+    }
+
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
@@ -7,9 +7,9 @@ public class StringAggregator implements Aggregator {
 
     private int gbfield;
     private Type gbfieldtype;
-    private int afield;
     private Op what; 
-    private ArrayList<Tuple> TupleList; 
+    private AggregationTable table;
+    private int[] gbfields;
     private TupleDesc td;
 
     /**
@@ -24,9 +24,11 @@ public class StringAggregator implements Aggregator {
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
-        this.afield = afield;
         this.what = what;
-        TupleList = new ArrayList<Tuple>();
+        if(what!=Op.COUNT)
+            throw new IllegalArgumentException("StringAggregator only supports COUNT");
+        table = new AggregationTable(gbfield==Aggregator.NO_GROUPING ? null : gbfieldtype);
+        gbfields = gbfield==Aggregator.NO_GROUPING ? new int[0] : new int[] { gbfield };
 
         //set tupledesc
         if(gbfield==Aggregator.NO_GROUPING)
@@ -52,60 +54,26 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        if(gbfield==Aggregator.NO_GROUPING)
-        {
-            int tupValue = ((IntField)tup.getField(afield)).getValue();
-            if(TupleList.size()!=0)
-            {
-                Tuple t = TupleList.get(0);
-                int tValue = ((IntField)t.getField(0)).getValue();
-                if(what==Op.COUNT)
-                {
-                    t.setField(0,new IntField(tValue+1));
-                }
-            }
-            else
-            {
-                if(what==Op.COUNT)
-                {
-                    tupValue = 1;
-                }
+        int group = table.findOrInsert(gbfield==Aggregator.NO_GROUPING ? null : tup.getField(gbfield));
+        table.increment(group);
+    }
 
-                Tuple t = new Tuple(td);
-                t.setField(0,new IntField(tupValue));
-                TupleList.add(t);
-                
-            }
-        }
-        else
-        {
-            for(int i=0;i<TupleList.size();++i)
-            {
-                Tuple t = TupleList.get(i);
-                if(t.getField(0).equals(tup.getField(gbfield)))
-                {
-                    int tValue = ((IntField)t.getField(1)).getValue();
-                    if(what==Op.COUNT)
-                    {
-                        t.setField(1,new IntField(tValue+1));
-                    }
-                    return;
-                }
-            }
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.numSelected();
+        for (int i = 0; i < n; i++)
+            table.increment(table.findOrInsert(batch, batch.selected(i), gbfields));
+    }
 
-            Tuple t = new Tuple(td);
-            Field f0 = tup.getField(gbfield);
-            Field f1 = tup.getField(afield);
+    public boolean hasGroup(Tuple tup) {
+        return table.find(gbfield==Aggregator.NO_GROUPING ? null : tup.getField(gbfield)) >= 0;
+    }
 
-            if(what==Op.COUNT)
-            {
-                f1 = new IntField(1);
-            }
-            t.setField(0,f0);
-            t.setField(1,f1);
-            TupleList.add(t);
+    public long memoryUsage() {
+        return table.memoryUsage();
+    }
 
-        }
+    public void combine(Aggregator partial) {
+        table.combine(((StringAggregator)partial).table);
     }
 
     /**
@@ -117,7 +85,7 @@ public class StringAggregator implements Aggregator {
      *   aggregate specified in the constructor.
      */
     public DbIterator iterator() {
-        Iterable<Tuple> it = TupleList;
+        Iterable<Tuple> it = table.results(td,what);
         return new TupleIterator(td,it);
     }
 
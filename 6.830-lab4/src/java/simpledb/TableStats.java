@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 /** TableStats represents statistics (e.g., histograms) about base tables in a query */
@@ -82,7 +84,8 @@ public class TableStats {
     public int estimateTableCardinality(double selectivityFactor) {
     	// some code goes here
     	
-    	HeapFileIterator it = (HeapFileIterator)this.file.iterator(new TransactionId());
+    	TransactionId tid = new TransactionId();
+    	HeapFileIterator it = (HeapFileIterator)this.file.iterator(tid);
 		int count = 0;
         try {
 			it.open();
@@ -99,11 +102,54 @@ public class TableStats {
 		} catch (TransactionAbortedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			endScan(it, tid);
 		}
         
     	return (int) (count*selectivityFactor);
     }
 
+    /**
+     * The average selectivity of the field under op, for when the constant
+     * it is compared with is not known yet (e.g. the number of groups of a
+     * GROUP BY on the field is 1/avgSelectivity(field, EQUALS)).
+     *
+     * @param field the index of the field
+     * @param op the operator in the predicate
+     * @return the expected selectivity of a predicate <tt>field op c</tt>
+     *         for an unknown constant c
+     */
+    public double avgSelectivity(int field, Predicate.Op op) {
+        TransactionId tid = new TransactionId();
+        HeapFileIterator it = (HeapFileIterator)this.file.iterator(tid);
+        HashSet<Field> distinct = new HashSet<Field>();
+        try {
+            it.open();
+            while (it.hasNext())
+                distinct.add(it.next().getField(field));
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        } finally {
+            endScan(it, tid);
+        }
+        if (distinct.isEmpty())
+            return 1.0;
+
+        double eq = 1.0 / distinct.size();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        default:
+            // a range predicate keeps half of the values on average
+            return 0.5;
+        }
+    }
+
     /** 
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the table.
      * 
@@ -118,7 +164,8 @@ public class TableStats {
     	if(this.file.getTupleDesc().getFieldType(field).equals(Type.INT_TYPE))
     	{
 
-        	HeapFileIterator it = (HeapFileIterator)this.file.iterator(new TransactionId());
+        	TransactionId tid = new TransactionId();
+        	HeapFileIterator it = (HeapFileIterator)this.file.iterator(tid);
         	ArrayList<Integer> arr = new ArrayList<Integer>();
         	
             try {
@@ -136,6 +183,8 @@ public class TableStats {
     		} catch (TransactionAbortedException e) {
     			// TODO Auto-generated catch block
     			e.printStackTrace();
+    		} finally {
+    			endScan(it, tid);
     		}
             
             int minValue = Collections.min(arr);
@@ -149,4 +198,17 @@ public class TableStats {
     	return 1.0;
     }
 
+    /**
+     * Close a scan of the table and complete the transaction it ran
+     * under, releasing the locks the scan took.
+     */
+    private static void endScan(HeapFileIterator it, TransactionId tid) {
+        it.close();
+        try {
+            Database.getBufferPool().transactionComplete(tid);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -8,11 +8,39 @@ import java.io.*;
  */
 
 public class Transaction {
+    /** How a transaction is kept apart from the others. */
+    public enum Concurrency {
+        /** Two-phase locking, with the locks of {@link LockSet}. */
+        LOCKING,
+        /** Read only, from a snapshot taken when it starts and without
+            locks (see {@link BufferPool#beginSnapshot}). */
+        SNAPSHOT,
+        /** No locks until it commits, when its reads are validated (see
+            {@link BufferPool#beginOptimistic}); suits short transactions
+            that rarely conflict. */
+        OPTIMISTIC
+    }
+
     private final TransactionId tid;
+    private final Concurrency concurrency;
     volatile boolean started = false;
 
     public Transaction() {
+        this(Concurrency.LOCKING);
+    }
+
+    /**
+     * @param readOnly true if the transaction only reads, from a snapshot
+     *            of the database taken when it starts and without locks
+     *            (see {@link BufferPool#beginSnapshot})
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly ? Concurrency.SNAPSHOT : Concurrency.LOCKING);
+    }
+
+    public Transaction(Concurrency concurrency) {
         tid = new TransactionId();
+        this.concurrency = concurrency;
     }
 
     /** Start the transaction running */
@@ -23,24 +51,59 @@ public class Transaction {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (concurrency == Concurrency.SNAPSHOT)
+            Database.getBufferPool().beginSnapshot(tid);
+        else if (concurrency == Concurrency.OPTIMISTIC)
+            Database.getBufferPool().beginOptimistic(tid);
+    }
+
+    /** @return true if the transaction reads a snapshot */
+    public boolean isReadOnly() {
+        return concurrency == Concurrency.SNAPSHOT;
+    }
+
+    public Concurrency getConcurrency() {
+        return concurrency;
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if an optimistic transaction
+     *         fails validation; it is aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
         transactionComplete(false);
     }
 
     /** Finish the transaction */
     public void abort() throws IOException {
-        transactionComplete(true);
+        complete(true);
+    }
+
+    /**
+     * Handle the details of transaction commit / abort
+     *
+     * @throws TransactionAbortedException if an optimistic transaction
+     *         fails validation; it is aborted
+     */
+    public void transactionComplete(boolean abort) throws IOException, TransactionAbortedException {
+        if (started && !abort && concurrency == Concurrency.OPTIMISTIC) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                complete(true);
+                throw e;
+            }
+        }
+        complete(abort);
     }
 
-    /** Handle the details of transaction commit / abort */
-    public void transactionComplete(boolean abort) throws IOException {
+    private void complete(boolean abort) throws IOException {
 
         if (started) {
             //write commit / abort records
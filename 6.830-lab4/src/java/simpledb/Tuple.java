@@ -91,7 +91,7 @@ public class Tuple implements Serializable {
         String desc = "";
         for(Field fd: Content)
         {
-            desc += fd.toString()+")\t";
+            desc += fd+")\t";
         }
         desc = desc.substring(0,desc.length()-1) + "\n";
         return desc;
@@ -0,0 +1,333 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TupleBatch holds up to a fixed number of rows that share one TupleDesc,
+ * stored column by column: an int[] for every INT_TYPE column and a
+ * String[] for every STRING_TYPE column. Operators that work on batches
+ * (see {@link BatchIterator}) loop over these arrays directly instead of
+ * calling through hasNext/next and Field for every tuple.
+ * <p>
+ * A batch also has a selection vector: the increasing list of row numbers
+ * that are still part of the result. Filters narrow the selection instead
+ * of copying the surviving rows. Consumers should only look at the rows
+ * returned by {@link #selected}, for i from 0 to {@link #numSelected}-1.
+ */
+public class TupleBatch {
+
+    /** Number of rows in a batch unless another capacity is given. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private int numRows;
+
+    // per column data; intColumns[i] is null unless column i is an INT, and
+    // stringColumns[i] is null unless it is a STRING
+    private final int[][] intColumns;
+    private final String[][] stringColumns;
+    // undecoded[i][row] is true if column i of the row was not decoded (a
+    // null field); allocated for an INT column the first time it gets one,
+    // STRING columns store null instead
+    private final boolean[][] undecoded;
+    private final RecordId[] recordIds;
+
+    // row numbers of the selected rows, or null if every row is selected
+    private int[] selection;
+    private int numSelected;
+
+    /**
+     * Create an empty batch with room for DEFAULT_SIZE rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the TupleDesc of the rows in the batch
+     * @param capacity the maximum number of rows
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        intColumns = new int[n][];
+        stringColumns = new String[n][];
+        undecoded = new boolean[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                intColumns[i] = new int[capacity];
+            else
+                stringColumns[i] = new String[capacity];
+        }
+        recordIds = new RecordId[capacity];
+    }
+
+    // batch that shares its column arrays with another batch
+    private TupleBatch(TupleDesc td, int capacity, int numRows, int[][] intColumns,
+                       String[][] stringColumns, boolean[][] undecoded,
+                       RecordId[] recordIds, int[] selection, int numSelected) {
+        this.td = td;
+        this.capacity = capacity;
+        this.numRows = numRows;
+        this.intColumns = intColumns;
+        this.stringColumns = stringColumns;
+        this.undecoded = undecoded;
+        this.recordIds = recordIds;
+        this.selection = selection;
+        this.numSelected = numSelected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the maximum number of rows of this batch */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows in the batch, selected or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** Remove all rows, and reset the selection to all rows. */
+    public void clear() {
+        numRows = 0;
+        selection = null;
+        numSelected = 0;
+    }
+
+    /**
+     * Append an empty row; its fields must be set before the batch is
+     * read.
+     *
+     * @return the row number of the new row
+     */
+    public int addRow() {
+        if (numRows == capacity)
+            throw new IllegalStateException("batch is full");
+        if (selection != null)
+            throw new IllegalStateException("cannot add rows to a filtered batch");
+        recordIds[numRows] = null;
+        numSelected++;
+        return numRows++;
+    }
+
+    /**
+     * Append a copy of the fields (and record id) of a tuple.
+     *
+     * @return the row number of the new row
+     */
+    public int addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < intColumns.length; i++)
+            setField(i, row, t.getField(i));
+        recordIds[row] = t.getRecordId();
+        return row;
+    }
+
+    /**
+     * Copy all the columns of one row of another batch into columns
+     * destCol, destCol+1, ... of a row of this batch.
+     */
+    public void copyRow(TupleBatch src, int srcRow, int destRow, int destCol) {
+        for (int i = 0; i < src.intColumns.length; i++) {
+            if (src.intColumns[i] != null) {
+                intColumns[destCol + i][destRow] = src.intColumns[i][srcRow];
+                setDecoded(destCol + i, destRow, src.isDecoded(i, srcRow));
+            } else
+                stringColumns[destCol + i][destRow] = src.stringColumns[i][srcRow];
+        }
+    }
+
+    /**
+     * Copy all the fields of a tuple into columns destCol, destCol+1, ...
+     * of a row of this batch.
+     */
+    public void copyTuple(Tuple src, int destRow, int destCol) {
+        int n = src.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            setField(destCol + i, destRow, src.getField(i));
+    }
+
+    /**
+     * @return the values of an INT column, indexed by row number; only the
+     *   first numRows() entries are meaningful, and a row that was not
+     *   decoded (see {@link #isDecoded}) holds 0
+     */
+    public int[] intColumn(int col) {
+        return intColumns[col];
+    }
+
+    /**
+     * @return the values of a STRING column, indexed by row number
+     */
+    public String[] stringColumn(int col) {
+        return stringColumns[col];
+    }
+
+    public int getInt(int col, int row) {
+        return intColumns[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return stringColumns[col][row];
+    }
+
+    public void setInt(int col, int row, int value) {
+        intColumns[col][row] = value;
+        setDecoded(col, row, true);
+    }
+
+    /**
+     * @return false if a column of a row was set from a null field, i.e. a
+     *   scan did not decode it (see {@link SeqScan#setColumns})
+     */
+    public boolean isDecoded(int col, int row) {
+        if (intColumns[col] == null)
+            return stringColumns[col][row] != null;
+        return undecoded[col] == null || !undecoded[col][row];
+    }
+
+    private void setDecoded(int col, int row, boolean decoded) {
+        if (undecoded[col] == null) {
+            if (decoded)
+                return;
+            undecoded[col] = new boolean[capacity];
+        }
+        undecoded[col][row] = !decoded;
+    }
+
+    public void setString(int col, int row, String value) {
+        stringColumns[col][row] = value;
+    }
+
+    /** @return the value of a column of a row, as a Field */
+    public Field getField(int col, int row) {
+        if (intColumns[col] != null)
+            return isDecoded(col, row) ? new IntField(intColumns[col][row]) : null;
+        String s = stringColumns[col][row];
+        return s == null ? null : new StringField(s, Type.STRING_LEN);
+    }
+
+    /**
+     * Set a column of a row from a Field. A null field (a column a scan
+     * did not decode, see {@link SeqScan#setColumns}) is kept as null:
+     * {@link #getField} returns null for it again.
+     */
+    public void setField(int col, int row, Field f) {
+        if (f == null) {
+            if (intColumns[col] != null) {
+                intColumns[col][row] = 0;
+                setDecoded(col, row, false);
+            } else
+                stringColumns[col][row] = null;
+        } else if (intColumns[col] != null)
+            setInt(col, row, ((IntField) f).getValue());
+        else
+            stringColumns[col][row] = ((StringField) f).getValue();
+    }
+
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    /**
+     * Materialize a row as a Tuple.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < intColumns.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+
+    /** @return the number of selected rows */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /** @return the row number of the i-th selected row */
+    public int selected(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * Replace the selection. The rows must be a subset of the currently
+     * selected rows, in increasing order. The array is kept by the batch.
+     *
+     * @param rows the row numbers to keep
+     * @param n the number of entries of rows that are used
+     */
+    public void select(int[] rows, int n) {
+        selection = rows;
+        numSelected = n;
+    }
+
+    /**
+     * Return a batch with the specified columns of this batch. The column
+     * arrays and the selection are shared, not copied.
+     *
+     * @param cols the columns of this batch to keep, in output order
+     * @param outTd the TupleDesc of the result
+     */
+    public TupleBatch project(int[] cols, TupleDesc outTd) {
+        int[][] ints = new int[cols.length][];
+        String[][] strings = new String[cols.length][];
+        boolean[][] notDecoded = new boolean[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            ints[i] = intColumns[cols[i]];
+            strings[i] = stringColumns[cols[i]];
+            notDecoded[i] = undecoded[cols[i]];
+        }
+        return new TupleBatch(outTd, capacity, numRows, ints, strings, notDecoded,
+                              recordIds, selection, numSelected);
+    }
+
+    /**
+     * Read the next batch of rows from a DbIterator. Iterators that
+     * implement {@link BatchIterator} produce the batch themselves; for any
+     * other iterator up to DEFAULT_SIZE rows are read with hasNext/next.
+     *
+     * @return the next batch, or null if the iterator has no more rows
+     */
+    public static TupleBatch read(DbIterator it)
+        throws DbException, TransactionAbortedException {
+        if (it instanceof BatchIterator)
+            return ((BatchIterator) it).nextBatch();
+        return fill(it, new TupleBatch(it.getTupleDesc()));
+    }
+
+    /**
+     * Fill a batch from the rows of an iterator, using hasNext/next.
+     *
+     * @return the batch, or null if the iterator had no more rows
+     */
+    static TupleBatch fill(DbIterator it, TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch.numRows() == 0 ? null : batch;
+    }
+
+    /**
+     * @return the selected rows of the batch as Tuples
+     */
+    public ArrayList<Tuple> tuples() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(numSelected);
+        for (int i = 0; i < numSelected; i++)
+            tuples.add(getTuple(selected(i)));
+        return tuples;
+    }
+}
@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed versions of pages that snapshot
+ * transactions may still need, so they can read without taking locks.
+ * <p>
+ * Every commit gets a timestamp, and a snapshot transaction reads the
+ * database as of the last commit before it began: of each page, the newest
+ * version committed at or before its timestamp. Versions are only kept
+ * while a snapshot is active. When a commit changes a page that has no
+ * versions, the page's before image (its last committed state) is kept
+ * first, as the version every earlier snapshot reads; a page no commit has
+ * changed since the oldest snapshot began is read from its before image
+ * in the buffer pool. A version is dropped once a newer one is old enough
+ * for every active snapshot.
+ * <p>
+ * While optimistic transactions are active, the store also remembers the
+ * last commit that changed each page, so that they can tell at commit
+ * whether a page they read has changed since (see
+ * {@link BufferPool#validate}).
+ * <p>
+ * Commits and snapshot reads of pages without versions synchronize on the
+ * store, so a reader never sees a commit only partly.
+ */
+public class VersionStore {
+
+    /** A committed image of a page, and the commit that made it. */
+    private static class Version
+    {
+        final long ts;
+        final byte[] data;
+
+        Version(long ts, byte[] data)
+        {
+            this.ts = ts;
+            this.data = data;
+        }
+    }
+
+    // the timestamp of the last commit
+    private long lastCommit = 0;
+    // the timestamps of the active snapshots
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    // the versions of each page, oldest first
+    private final HashMap<PageId, LinkedList<Version>> chains = new HashMap<PageId, LinkedList<Version>>();
+    // the active optimistic transactions
+    private final Set<TransactionId> optimists = new HashSet<TransactionId>();
+    // the last commit that changed each page since the oldest optimistic
+    // transaction began
+    private final HashMap<PageId, Long> changes = new HashMap<PageId, Long>();
+
+    /**
+     * Begin a snapshot for a transaction, as of the last commit.
+     *
+     * @return the timestamp of the snapshot
+     */
+    public synchronized long beginSnapshot(TransactionId tid)
+    {
+        snapshots.put(tid, lastCommit);
+        return lastCommit;
+    }
+
+    /** End the snapshot of a transaction, if it has one. */
+    public synchronized void endSnapshot(TransactionId tid)
+    {
+        if (snapshots.remove(tid) != null)
+            prune();
+    }
+
+    /** Begin tracking the pages commits change, for tid to validate its reads. */
+    public synchronized void beginOptimistic(TransactionId tid)
+    {
+        optimists.add(tid);
+    }
+
+    /** Stop tracking changes for tid, if it is optimistic. */
+    public synchronized void endOptimistic(TransactionId tid)
+    {
+        if (optimists.remove(tid) && optimists.isEmpty())
+            changes.clear();
+    }
+
+    /**
+     * @return the timestamp of the last commit that changed a page while
+     *         an optimistic transaction was active, or 0 if none did
+     */
+    public synchronized long lastChange(PageId pid)
+    {
+        Long ts = changes.get(pid);
+        return ts == null ? 0 : ts;
+    }
+
+    /** @return true if tid reads a snapshot */
+    public boolean isSnapshot(TransactionId tid)
+    {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /** @return the timestamp of the last commit */
+    public synchronized long getLastCommit()
+    {
+        return lastCommit;
+    }
+
+    /** @return the number of page versions kept */
+    public synchronized int numVersions()
+    {
+        int n = 0;
+        for (LinkedList<Version> chain : chains.values())
+            n += chain.size();
+        return n;
+    }
+
+    /** @return the timestamp the next commit will get */
+    synchronized long nextTimestamp()
+    {
+        return lastCommit + 1;
+    }
+
+    /**
+     * Record the image of a page committed at ts, if a snapshot may need
+     * it, and that the commit changed the page, if an optimistic
+     * transaction may have read it.
+     *
+     * @param before the image of the page before the commit
+     * @param after the image of the page committed at ts
+     */
+    synchronized void addVersion(PageId pid, byte[] before, byte[] after, long ts)
+    {
+        if (!optimists.isEmpty() && !Arrays.equals(before, after))
+            changes.put(pid, ts);
+        if (snapshots.isEmpty())
+            return;
+        LinkedList<Version> chain = chains.get(pid);
+        if (chain == null)
+        {
+            chain = new LinkedList<Version>();
+            chain.add(new Version(0, before));
+            chains.put(pid, chain);
+        }
+        chain.add(new Version(ts, after));
+    }
+
+    /** Make the commit at ts visible to the snapshots that begin later. */
+    synchronized void publish(long ts)
+    {
+        lastCommit = ts;
+        prune();
+    }
+
+    /**
+     * @return the version of a page the snapshot of tid reads, or null if
+     *         no commit has changed the page since the snapshot began (or
+     *         since the oldest snapshot began)
+     */
+    synchronized Page read(TransactionId tid, PageId pid) throws DbException
+    {
+        LinkedList<Version> chain = chains.get(pid);
+        Long ts = snapshots.get(tid);
+        if (chain == null || ts == null)
+            return null;
+        Iterator<Version> it = chain.descendingIterator();
+        while (it.hasNext())
+        {
+            Version v = it.next();
+            if (v.ts <= ts)
+            {
+                try
+                {
+                    return new HeapPage((HeapPageId)pid, v.data);
+                }
+                catch (java.io.IOException e)
+                {
+                    throw new DbException("could not read a version of " + pid);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the versions no snapshot reads any more: all but the newest one
+     * at or before the oldest snapshot, and the newer ones.
+     */
+    private void prune()
+    {
+        if (snapshots.isEmpty())
+        {
+            chains.clear();
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (long ts : snapshots.values())
+            oldest = Math.min(oldest, ts);
+        for (Iterator<LinkedList<Version>> it = chains.values().iterator(); it.hasNext();)
+        {
+            LinkedList<Version> chain = it.next();
+            while (chain.size() > 1 && chain.get(1).ts <= oldest)
+                chain.removeFirst();
+            // the before image of the page is current again
+            if (chain.size() == 1 && chain.getFirst().ts <= oldest)
+                it.remove();
+        }
+    }
+}
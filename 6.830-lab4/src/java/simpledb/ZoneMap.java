@@ -0,0 +1,304 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * ZoneMap keeps the minimum and maximum value of every INT field on every
+ * page of a HeapFile, so that a scan with a range or equality predicate can
+ * skip the pages that cannot hold a matching tuple without reading them.
+ * <p>
+ * The ranges only ever widen: inserting a tuple widens the range of its
+ * page, and deleting one does not narrow it, so a zone map may claim that
+ * a page can match when it cannot, but never the other way around.
+ * <p>
+ * The zone map of a file f is stored next to it, in f.zm, as one fixed
+ * size record per page, so that writing a page only rewrites its own
+ * record (see {@link #pageWritten}). Each record holds a checksum of the
+ * page as it was written. A stored zone map is only used if it describes
+ * as many pages as the file has and the checksum of every page still
+ * matches, which catches files that were appended to or rewritten behind
+ * its back; otherwise it is rebuilt from the pages on disk.
+ *
+ * @see HeapFile#enableZoneMap
+ */
+public class ZoneMap {
+    private final TupleDesc td;
+    private final int numFields;
+    private final File sidecar;
+    private int numPages = 0;
+    // min and max of field f on page p are at p*numFields+f; only
+    // meaningful for INT fields of pages that have had a tuple
+    private int[] min = new int[0];
+    private int[] max = new int[0];
+    private boolean[] hasRows = new boolean[0];
+    // the checksum of each page as it was last written
+    private long[] checksums = new long[0];
+    // the number of pages the sidecar has records of
+    private int storedPages = 0;
+
+    // the sidecar starts with the number of fields and of pages
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Create an empty zone map for the tuples of a file.
+     *
+     * @param td the TupleDesc of the file
+     * @param sidecar the file the zone map is stored in
+     */
+    public ZoneMap(TupleDesc td, File sidecar) {
+        this.td = td;
+        this.numFields = td.numFields();
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * @return the file in which the zone map of f is stored
+     */
+    public static File sidecarFor(File f) {
+        return new File(f.getPath() + ".zm");
+    }
+
+    /**
+     * Return the zone map of a HeapFile, read from its sidecar file if that
+     * is up to date, or else built by reading every page of the file from
+     * disk (not through the BufferPool) and written to the sidecar.
+     */
+    public static ZoneMap open(HeapFile hf) throws IOException {
+        File f = hf.getFile();
+        ZoneMap zm = new ZoneMap(hf.getTupleDesc(), sidecarFor(f));
+        if (zm.sidecar.exists() && zm.read(hf))
+            return zm;
+
+        for (int p = 0; p < hf.numPages(); p++) {
+            HeapPage page = (HeapPage)hf.readPage(new HeapPageId(hf.getId(), p));
+            zm.addPage(p, page);
+            zm.checksums[p] = checksum(page.getPageData());
+        }
+        zm.write();
+        return zm;
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private int recordSize() {
+        return 1 + 8 + 8 * numFields;
+    }
+
+    /** @return the number of pages the zone map knows about */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    private void ensurePages(int n) {
+        if (n <= numPages)
+            return;
+        int cap = hasRows.length;
+        if (n > cap) {
+            cap = Math.max(n, cap * 2);
+            min = Arrays.copyOf(min, cap * numFields);
+            max = Arrays.copyOf(max, cap * numFields);
+            hasRows = Arrays.copyOf(hasRows, cap);
+            checksums = Arrays.copyOf(checksums, cap);
+        }
+        for (int i = numPages * numFields; i < n * numFields; i++) {
+            min[i] = Integer.MAX_VALUE;
+            max[i] = Integer.MIN_VALUE;
+        }
+        Arrays.fill(hasRows, numPages, n, false);
+        Arrays.fill(checksums, numPages, n, 0);
+        numPages = n;
+    }
+
+    /**
+     * Widen the ranges of a page to include a tuple.
+     */
+    public synchronized void add(int page, Tuple t) {
+        ensurePages(page + 1);
+        hasRows[page] = true;
+        int base = page * numFields;
+        for (int f = 0; f < numFields; f++) {
+            if (td.getFieldType(f) != Type.INT_TYPE)
+                continue;
+            int v = ((IntField)t.getField(f)).getValue();
+            if (v < min[base + f])
+                min[base + f] = v;
+            if (v > max[base + f])
+                max[base + f] = v;
+        }
+    }
+
+    /**
+     * Widen the ranges of a page to include all the tuples on it.
+     */
+    public synchronized void addPage(int page, HeapPage hp) {
+        ensurePages(page + 1);
+        Iterator<Tuple> it = hp.iterator();
+        while (it.hasNext())
+            add(page, it.next());
+    }
+
+    /**
+     * Widen the ranges of a page that was written to disk to include the
+     * tuples on it, and rewrite its record in the sidecar (and those of
+     * the pages before it the sidecar does not have yet).
+     *
+     * @param data the page data that was written
+     */
+    public synchronized void pageWritten(int page, HeapPage hp, byte[] data) throws IOException {
+        addPage(page, hp);
+        checksums[page] = checksum(data);
+        RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+        try {
+            int from = Math.min(page, storedPages);
+            ByteArrayOutputStream records = new ByteArrayOutputStream((page + 1 - from) * recordSize());
+            DataOutputStream out = new DataOutputStream(records);
+            for (int p = from; p <= page; p++)
+                writeRecord(out, p);
+            out.flush();
+            raf.seek(HEADER_SIZE + (long)from * recordSize());
+            raf.write(records.toByteArray());
+            if (page >= storedPages) {
+                storedPages = page + 1;
+                raf.seek(4);
+                raf.writeInt(storedPages);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return a lower bound on the values of an INT field on a page, or
+     *         Integer.MIN_VALUE if the zone map does not know the page
+     */
+    public synchronized int getMin(int page, int field) {
+        return page >= numPages ? Integer.MIN_VALUE : min[page * numFields + field];
+    }
+
+    /**
+     * @return an upper bound on the values of an INT field on a page, or
+     *         Integer.MAX_VALUE if the zone map does not know the page
+     */
+    public synchronized int getMax(int page, int field) {
+        return page >= numPages ? Integer.MAX_VALUE : max[page * numFields + field];
+    }
+
+    /**
+     * @return false if no tuple on the page can satisfy all of the
+     *         predicates; true if one might. Pages the zone map does not
+     *         know about might always match.
+     */
+    public synchronized boolean mayMatch(int page, Predicate[] preds) {
+        if (page >= numPages)
+            return true;
+        if (!hasRows[page])
+            return false;
+        int base = page * numFields;
+        for (Predicate p : preds) {
+            if (!(p.getOperand() instanceof IntField))
+                continue;
+            int f = p.getField();
+            int lo = min[base + f], hi = max[base + f];
+            int v = ((IntField)p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                if (v < lo || v > hi)
+                    return false;
+                break;
+            case NOT_EQUALS:
+                if (lo == v && hi == v)
+                    return false;
+                break;
+            case GREATER_THAN:
+                if (hi <= v)
+                    return false;
+                break;
+            case GREATER_THAN_OR_EQ:
+                if (hi < v)
+                    return false;
+                break;
+            case LESS_THAN:
+                if (lo >= v)
+                    return false;
+                break;
+            case LESS_THAN_OR_EQ:
+                if (lo > v)
+                    return false;
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Store the whole zone map in its sidecar file.
+     */
+    public synchronized void write() throws IOException {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            out.writeInt(numFields);
+            out.writeInt(numPages);
+            for (int p = 0; p < numPages; p++)
+                writeRecord(out, p);
+        } finally {
+            out.close();
+        }
+        storedPages = numPages;
+    }
+
+    private void writeRecord(DataOutputStream out, int p) throws IOException {
+        out.writeBoolean(hasRows[p]);
+        out.writeLong(checksums[p]);
+        for (int i = p * numFields; i < (p + 1) * numFields; i++) {
+            out.writeInt(min[i]);
+            out.writeInt(max[i]);
+        }
+    }
+
+    /**
+     * Load the zone map from its sidecar file.
+     *
+     * @return false, leaving the zone map empty, if the sidecar does not
+     *         describe the pages hf has now
+     */
+    private boolean read(HeapFile hf) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            int n;
+            if (in.readInt() != numFields || (n = in.readInt()) != hf.numPages())
+                return false;
+            ensurePages(n);
+            for (int p = 0; p < n; p++) {
+                hasRows[p] = in.readBoolean();
+                checksums[p] = in.readLong();
+                for (int i = p * numFields; i < (p + 1) * numFields; i++) {
+                    min[i] = in.readInt();
+                    max[i] = in.readInt();
+                }
+            }
+            for (int p = 0; p < n; p++) {
+                Page page = hf.readPage(new HeapPageId(hf.getId(), p));
+                if (checksum(page.getPageData()) != checksums[p]) {
+                    numPages = 0;
+                    return false;
+                }
+            }
+            storedPages = n;
+            return true;
+        } catch (EOFException e) {
+            numPages = 0;
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+public class AggregationTableTest extends SimpleDbTestBase {
+
+  /**
+   * Many groups force the table to grow and rehash; every group must keep
+   * its own accumulators.
+   */
+  @Test public void manyGroups() {
+    AggregationTable table = new AggregationTable(Type.INT_TYPE);
+    int groups = 5000;
+    for (int round = 0; round < 3; round++) {
+      for (int k = 0; k < groups; k++) {
+        int g = table.findOrInsert(new IntField(k * 31 - 1000));
+        table.merge(g, k + round);
+      }
+    }
+
+    assertEquals(groups, table.numGroups());
+    for (int k = 0; k < groups; k++) {
+      int g = table.findOrInsert(new IntField(k * 31 - 1000));
+      assertEquals(k, g);
+      assertEquals(3, table.count(g));
+      assertEquals(3 * k + 3, table.sum(g));
+      assertEquals(k, table.min(g));
+      assertEquals(k + 2, table.max(g));
+      assertEquals(k + 1, table.aggregate(g, Aggregator.Op.AVG));
+    }
+  }
+
+  /**
+   * String group values are dictionary encoded and decoded back.
+   */
+  @Test public void stringGroups() {
+    AggregationTable table = new AggregationTable(Type.STRING_TYPE);
+    String[] vals = new String[] { "b", "a", "b", "c", "a", "b" };
+    for (String s : vals)
+      table.increment(table.findOrInsert(new StringField(s, Type.STRING_LEN)));
+
+    assertEquals(3, table.numGroups());
+    assertEquals(new StringField("b", Type.STRING_LEN), table.groupValue(0));
+    assertEquals(3, table.aggregate(0, Aggregator.Op.COUNT));
+    assertEquals(new StringField("a", Type.STRING_LEN), table.groupValue(1));
+    assertEquals(2, table.aggregate(1, Aggregator.Op.COUNT));
+    assertEquals(1, table.aggregate(2, Aggregator.Op.COUNT));
+  }
+
+  /**
+   * Sums are accumulated in 64 bits, so AVG over large values is exact.
+   */
+  @Test public void noOverflow() {
+    AggregationTable table = new AggregationTable(null);
+    int g = table.findOrInsert(null);
+    for (int i = 0; i < 4; i++)
+      table.merge(g, Integer.MAX_VALUE);
+
+    assertEquals(4L * Integer.MAX_VALUE, table.sum(g));
+    assertEquals(Integer.MAX_VALUE, table.aggregate(g, Aggregator.Op.AVG));
+  }
+
+  /**
+   * A SUM that does not fit in the int result is an error, not a wrap.
+   */
+  @Test(expected = ArithmeticException.class) public void sumOverflow() {
+    AggregationTable table = new AggregationTable(null);
+    int g = table.findOrInsert(null);
+    table.merge(g, Integer.MAX_VALUE);
+    table.merge(g, 1);
+    table.aggregate(g, Aggregator.Op.SUM);
+  }
+
+  /**
+   * Composite keys group on all columns together, and each aggregated
+   * column keeps its own accumulators.
+   */
+  @Test public void compositeKeys() {
+    AggregationTable table = new AggregationTable(
+        new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, 2);
+    int[] gbfields = new int[] { 0, 1 };
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+    int[][] rows = new int[][] { { 1, 0, 5 }, { 1, 1, 7 }, { 2, 0, 3 }, { 1, 0, 9 } };
+    for (int[] r : rows) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(r[0]));
+      t.setField(1, new StringField(r[1] == 0 ? "x" : "y", Type.STRING_LEN));
+      t.setField(2, new IntField(r[2]));
+      int g = table.findOrInsert(t, gbfields);
+      table.merge(g, 0, r[2]);
+      table.increment(g, 1);
+    }
+
+    assertEquals(3, table.numGroups());
+    assertEquals(new IntField(1), table.groupValue(0, 0));
+    assertEquals(new StringField("x", Type.STRING_LEN), table.groupValue(0, 1));
+    assertEquals(14, table.aggregate(0, 0, Aggregator.Op.SUM));
+    assertEquals(5, table.aggregate(0, 0, Aggregator.Op.MIN));
+    assertEquals(2, table.aggregate(0, 1, Aggregator.Op.COUNT));
+    assertEquals(new StringField("y", Type.STRING_LEN), table.groupValue(1, 1));
+    assertEquals(1, table.aggregate(1, 1, Aggregator.Op.COUNT));
+    assertEquals(new IntField(2), table.groupValue(2, 0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AggregationTableTest.class);
+  }
+}
@@ -5,11 +5,22 @@ import simpledb.TestUtil.LockGrabber;
 import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import static org.junit.Assume.assumeTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+/**
+ * Runs every test under each deadlock policy of LockSet.
+ */
+@RunWith(Parameterized.class)
 public class DeadlockTest extends TestUtil.CreateHeapFile {
+  private final LockSet.Policy policy;
   private PageId p0, p1, p2;
   private TransactionId tid1, tid2;
   private Random rand;
@@ -20,6 +31,17 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
   // just so we have a pointer shorter than Database.getBufferPool
   private BufferPool bp;
 
+  @Parameters public static Collection<Object[]> policies() {
+    ArrayList<Object[]> result = new ArrayList<Object[]>();
+    for (LockSet.Policy p : LockSet.Policy.values())
+      result.add(new Object[] { p });
+    return result;
+  }
+
+  public DeadlockTest(LockSet.Policy policy) {
+    this.policy = policy;
+  }
+
   /**
    * Set up initial resources for each unit test.
    */
@@ -53,6 +75,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
     bp.flushAllPages();
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.getLockSet().setPolicy(policy);
   }
 
   /**
@@ -216,6 +239,39 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Not-so-unit test to construct a deadlock of three transactions.
+   * t1, t2 and t3 acquire p0, p1 and p2 for writing; then t1 attempts
+   * p1, t2 attempts p2 and t3 attempts p0. Only the youngest, t3, is
+   * aborted, which lets t2 through.
+   */
+  @Test public void testThreeWayDeadlock() throws Exception {
+    // wound-wait aborts t2 instead, when t1 attempts p1
+    assumeTrue(policy != LockSet.Policy.WOUND_WAIT);
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    bp.getPage(tid3, p2, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2 = startGrabber(tid2, p2, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired() || lg2.acquired());
+
+    LockGrabber lg3 = startGrabber(tid3, p0, Permissions.READ_WRITE);
+    lg3.join(WAIT_INTERVAL * 10);
+    assertTrue(lg3.getError() instanceof TransactionAbortedException);
+    lg2.join(WAIT_INTERVAL * 10);
+    assertTrue(lg2.acquired());
+    assertFalse(lg1.acquired());
+    assertNull(lg1.getError());
+
+    bp.transactionComplete(tid2);
+    lg1.join(WAIT_INTERVAL * 10);
+    assertTrue(lg1.acquired());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -99,6 +100,56 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate.Evaluator, Predicate.ByteEvaluator)
+     */
+    @Test public void predicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+            new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(43771))
+        };
+        Iterator<Tuple> it = page.iterator(Predicate.and(preds),
+                Predicate.and(preds, Utility.getTupleDesc(2)));
+
+        int count = 0;
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] > 20000 && values[1] <= 43771) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+                count++;
+            }
+        }
+        assertFalse(it.hasNext());
+        assertEquals(9, count);
+
+        // slots that were not decoded are written back unchanged
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(Predicate.Evaluator, Predicate.ByteEvaluator, boolean[])
+     */
+    @Test public void columnIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator(null, null, new boolean[] { false, true });
+
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertNull(tup.getField(0));
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+
+        // partially decoded tuples are not kept by the page
+        assertEquals(EXAMPLE_VALUES[0][0],
+                ((IntField) page.iterator().next().getField(0)).getValue());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -107,6 +158,14 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         assertEquals(484, page.getNumEmptySlots());
     }
 
+    /**
+     * Unit test for HeapPage.getNumUsedSlots()
+     */
+    @Test public void getNumUsedSlots() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertEquals(20, page.getNumUsedSlots());
+    }
+
     /**
      * Unit test for HeapPage.isSlotUsed()
      */
@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -44,6 +45,27 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         assertEquals(false, dirtier != null);
     }
 
+    /**
+     * Unit test for HeapPage.latch(): a reader waits while the page is
+     * latched exclusive, and goes on once it is released.
+     */
+    @Test public void latchBlocksReaders() throws Exception {
+        final HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.latch(Permissions.READ_WRITE);
+        Thread reader = new Thread() {
+            public void run() {
+                page.getPageData();
+            }
+        };
+        reader.start();
+        reader.join(100);
+        assertTrue(reader.isAlive());
+
+        page.unlatch(Permissions.READ_WRITE);
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+    }
+
     /**
      * Unit test for HeapPage.addTuple()
      */
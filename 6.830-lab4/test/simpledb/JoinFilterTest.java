@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class JoinFilterTest extends SimpleDbTestBase {
+
+  /**
+   * Every key that was added may be contained; few others are.
+   */
+  @Test public void mayContain() {
+    JoinFilter f = new JoinFilter(0);
+    f.reset(1000);
+    Random r = new Random(1);
+    for (int i = 0; i < 1000; i++)
+      f.add(i * 7);
+    for (int i = 0; i < 1000; i++)
+      assertTrue(f.mayContain(i * 7));
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      int k = r.nextInt(7000);
+      if (k % 7 != 0 && f.mayContain(k))
+        falsePositives++;
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 1000);
+
+    // keys outside the range are never contained
+    assertFalse(f.mayContain(-1));
+    assertFalse(f.mayContain(7000));
+  }
+
+  /**
+   * Unit test for JoinFilter.mayContainRange()
+   */
+  @Test public void mayContainRange() {
+    JoinFilter f = new JoinFilter(0);
+    f.reset(2);
+    assertFalse(f.mayContainRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    f.add(10);
+    f.add(20);
+    assertTrue(f.mayContainRange(15, 16));
+    assertTrue(f.mayContainRange(0, 10));
+    assertFalse(f.mayContainRange(21, 30));
+    assertFalse(f.mayContainRange(0, 9));
+  }
+
+  /**
+   * The filter compiled for serialized tuples tests the right field.
+   */
+  @Test public void compileBytes() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    JoinFilter f = new JoinFilter(1);
+    f.reset(1);
+    f.add(5);
+    Predicate.ByteEvaluator e = f.compile(td);
+    java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+    java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+    out.writeInt(5);
+    out.writeInt(6);
+    out.writeInt(6);
+    out.writeInt(5);
+    byte[] data = bytes.toByteArray();
+    assertFalse(e.eval(data, 0));
+    assertTrue(e.eval(data, 8));
+    assertTrue(f.compile().eval(Utility.getHeapTuple(new int[] { 0, 5 })));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinFilterTest.class);
+  }
+}
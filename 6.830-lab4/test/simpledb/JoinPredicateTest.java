@@ -5,6 +5,7 @@ import org.junit.Test;
 import simpledb.systemtest.SimpleDbTestBase;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
 import junit.framework.JUnit4TestAdapter;
 
 public class JoinPredicateTest extends SimpleDbTestBase {
@@ -56,6 +57,24 @@ public class JoinPredicateTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Compiled join predicates agree with JoinPredicate.filter()
+   */
+  @Test public void compile() {
+    int[] vals = new int[] { -1, 0, 1 };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate p = new JoinPredicate(0, op, 0);
+      JoinPredicate.Evaluator e = p.compile(Type.INT_TYPE);
+      for (int i : vals) {
+        for (int j = i - 1; j <= i + 1; j++) {
+          Tuple t1 = Utility.getHeapTuple(i);
+          Tuple t2 = Utility.getHeapTuple(j);
+          assertEquals(p.filter(t1, t2), e.eval(t1, t2));
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
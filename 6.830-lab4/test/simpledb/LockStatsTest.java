@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockStatsTest extends TestUtil.CreateHeapFile {
+  private PageId p0, p1;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // commit two pages of tuples
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 600; ++i)
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    bp.transactionComplete(tid);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p1 = new HeapPageId(empty.getId(), 1);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  /**
+   * Unit test for LockStats.
+   * Acquisitions, upgrades and waits are counted on the page and its
+   * table, and the holders and waiters of the page are listed.
+   */
+  @Test public void countsAcquisitionsAndWaits() throws Exception {
+    LockSet locks = bp.getLockSet();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(LockSet.Mode.X, locks.getHolders(p0).get(tid1));
+    assertEquals(1, locks.getWaiters(p0).size());
+    assertEquals(tid2, locks.getWaiters(p0).get(0));
+
+    bp.transactionComplete(tid1);
+    reader.join(TIMEOUT * 10);
+    assertTrue(reader.acquired());
+    assertEquals(LockSet.Mode.S, locks.getHolders(p0).get(tid2));
+    assertTrue(locks.getWaiters(p0).isEmpty());
+
+    LockStats.Counters page = locks.getStats().getPageStats(p0);
+    assertEquals(3, page.getAcquisitions());
+    assertEquals(1, page.getUpgrades());
+    assertEquals(1, page.getWaits());
+    assertTrue(page.getWaitMillis() > 0);
+    long waits = 0;
+    for (long n : page.getWaitHistogram())
+      waits += n;
+    assertEquals(1, waits);
+
+    // the table counts both pages, and the intention locks on itself
+    LockStats.Counters table = locks.getStats().getTableStats(empty.getId());
+    assertEquals(1, table.getWaits());
+    assertTrue(table.getAcquisitions() >= 4);
+    assertEquals(p0, locks.getStats().mostContended(10).get(0));
+    assertEquals(1, locks.getStats().mostContended(10).size());
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Unit test for LockStats.
+   * A request aborted to prevent a deadlock is counted on its page.
+   */
+  @Test public void countsAborts() throws Exception {
+    LockSet locks = bp.getLockSet();
+    locks.setPolicy(LockSet.Policy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_ONLY);
+      fail("a younger transaction waited for an older one");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, locks.getStats().getPageStats(p0).getAborts());
+    assertEquals(1, locks.getStats().getTableStats(empty.getId()).getAborts());
+    bp.transactionComplete(tid2, false);
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Unit test for LockSet.dumpStats().
+   * The dump lists the tables and the contended pages with their holders.
+   */
+  @Test public void dumpListsContendedPages() throws Exception {
+    LockSet locks = bp.getLockSet();
+    locks.setPolicy(LockSet.Policy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    locks.dumpStats(new PrintStream(bytes, true));
+    String dump = bytes.toString();
+    assertTrue(dump.contains("table " + empty.getId() + ": "));
+    assertTrue(dump.contains("page 0 of table " + empty.getId()));
+    assertTrue(dump.contains("held by [" + tid1.getId() + "]"));
+    bp.transactionComplete(tid2, false);
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Unit test for LockStats.
+   * Beyond its limit, LockStats forgets the pages without contention
+   * before those with it.
+   */
+  @Test public void forgetsUncontendedPages() {
+    ReentrantLock guard = new ReentrantLock();
+    LockStats stats = new LockStats(guard, 4);
+    guard.lock();
+    try {
+      stats.waited(p1, 1000);
+      for (int i = 2; i < 10; i++)
+        stats.acquired(new HeapPageId(empty.getId(), i), false);
+    } finally {
+      guard.unlock();
+    }
+    assertTrue(stats.getPageStats().size() <= 4);
+    assertEquals(1, stats.getPageStats(p1).getWaits());
+    assertEquals(8, stats.getTableStats(empty.getId()).getAcquisitions());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockStatsTest.class);
+  }
+
+}
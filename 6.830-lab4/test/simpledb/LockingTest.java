@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -192,6 +194,239 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.releasePage() assuming locking.
+   * Releasing a lock grants it to the transaction waiting for it.
+   */
+  @Test public void releaseGrantsWaiter() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber waiter = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    waiter.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(waiter.acquired());
+
+    bp.releasePage(tid1, p0);
+    waiter.join(TIMEOUT * 10);
+    assertTrue(waiter.acquired());
+    assertNull(waiter.getError());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock requested after a queued write lock waits behind it, so
+   * readers cannot starve the writer.
+   */
+  @Test public void queuedWriterBlocksLaterReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT * 10);
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT * 10);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for LockSet.Mode: the compatibility and strengthening of
+   * table lock modes.
+   */
+  @Test public void lockModes() {
+    assertTrue(LockSet.Mode.IS.compatible(LockSet.Mode.SIX));
+    assertTrue(LockSet.Mode.IX.compatible(LockSet.Mode.IX));
+    assertFalse(LockSet.Mode.IX.compatible(LockSet.Mode.S));
+    assertFalse(LockSet.Mode.IS.compatible(LockSet.Mode.X));
+    assertEquals(LockSet.Mode.SIX, LockSet.Mode.IX.join(LockSet.Mode.S));
+    assertEquals(LockSet.Mode.S, LockSet.Mode.IS.join(LockSet.Mode.S));
+    assertTrue(LockSet.Mode.SIX.covers(LockSet.Mode.IX));
+    assertFalse(LockSet.Mode.IX.covers(LockSet.Mode.S));
+  }
+
+  /**
+   * Unit test for BufferPool.lockTable().
+   * A table read lock covers the reads of all pages of the table, and
+   * blocks writers.
+   */
+  @Test public void tableLockCoversPages() throws Exception {
+    bp.lockTable(tid1, empty.getId(), Permissions.READ_ONLY);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p2));
+    assertEquals(1, bp.getLockSet().numLocks(tid1));
+
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for HeapFileIterator.open() assuming locking.
+   * A scan holds IS on the table and S on the pages it has read, so a
+   * writer of another page is not blocked; with a lower escalation
+   * threshold, the scan ends up with a table lock.
+   */
+  @Test public void scanLocksPages() throws Exception {
+    SeqScan scan = new SeqScan(tid1, empty.getId(), "");
+    scan.open();
+    while (scan.hasNext())
+      scan.next();
+    scan.close();
+    assertEquals(LockSet.Mode.IS, bp.getLockSet().getTableLock(tid1, empty.getId()));
+    assertTrue(bp.holdsLock(tid1, p2));
+    grabLock(tid2, new HeapPageId(empty.getId(), 3), Permissions.READ_WRITE, true);
+    bp.transactionComplete(tid1);
+    bp.transactionComplete(tid2);
+
+    bp.getLockSet().setEscalationThreshold(2);
+    TransactionId tid3 = new TransactionId();
+    scan = new SeqScan(tid3, empty.getId(), "");
+    scan.open();
+    while (scan.hasNext())
+      scan.next();
+    scan.close();
+    assertEquals(LockSet.Mode.S, bp.getLockSet().getTableLock(tid3, empty.getId()));
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A transaction that locks enough pages of a table trades them for a
+   * table lock.
+   */
+  @Test public void lockEscalation() throws Exception {
+    bp.getLockSet().setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(LockSet.Mode.IS, bp.getLockSet().getTableLock(tid1, empty.getId()));
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockSet.Mode.S, bp.getLockSet().getTableLock(tid1, empty.getId()));
+    assertEquals(1, bp.getLockSet().numLocks(tid1));
+
+    bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    assertEquals(LockSet.Mode.SIX, bp.getLockSet().getTableLock(tid1, empty.getId()));
+    grabLock(tid2, p0, Permissions.READ_ONLY, true);
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Inserts or deletes a tuple through the buffer pool in a new thread.
+   */
+  private class TupleWriter extends Thread {
+    private final TransactionId tid;
+    private final Tuple t;
+    private final boolean delete;
+    volatile boolean done;
+    volatile Exception error;
+
+    TupleWriter(TransactionId tid, Tuple t, boolean delete) {
+      this.tid = tid;
+      this.t = t;
+      this.delete = delete;
+    }
+
+    public void run() {
+      try {
+        if (delete)
+          bp.deleteTuple(tid, t);
+        else
+          bp.insertTuple(tid, empty.getId(), t);
+        done = true;
+      } catch (Exception e) {
+        error = e;
+      }
+    }
+  }
+
+  /**
+   * Unit test for HeapFile.insertTuple() and deleteTuple() with tuple
+   * locks. Two transactions write the same page at once, but not the
+   * same tuple.
+   */
+  @Test public void tupleLocksShareAPage() throws Exception {
+    Tuple a = Utility.getHeapTuple(1, 2);
+    bp.insertTuple(tid1, empty.getId(), a);
+    assertEquals(LockSet.Mode.IX, bp.getLockSet().getTableLock(tid1, empty.getId()));
+
+    Tuple b = Utility.getHeapTuple(2, 2);
+    TupleWriter insert = new TupleWriter(tid2, b, false);
+    insert.start();
+    insert.join(TIMEOUT * 10);
+    assertTrue(insert.done);
+    assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+
+    TupleWriter delete = new TupleWriter(tid2, a, true);
+    delete.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(delete.done);
+    assertNull(delete.error);
+
+    bp.transactionComplete(tid1);
+    delete.join(TIMEOUT * 10);
+    assertTrue(delete.done);
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() with tuple locks.
+   * Aborting a transaction undoes its changes to a page, but keeps those
+   * of the other transactions that changed it.
+   */
+  @Test public void abortUndoesOwnTuples() throws Exception {
+    Tuple a = Utility.getHeapTuple(1, 2);
+    Tuple b = Utility.getHeapTuple(2, 2);
+    bp.insertTuple(tid1, empty.getId(), a);
+    bp.insertTuple(tid2, empty.getId(), b);
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    HeapPage page = (HeapPage) empty.readPage(b.getRecordId().getPageId());
+    assertNull(page.getTuple(a.getRecordId().tupleno()));
+    assertEquals(b.getField(0), page.getTuple(b.getRecordId().tupleno()).getField(0));
+  }
+
+  /**
+   * Unit test for BufferPool.flushPages() with tuple locks. The page is
+   * written with the changes of the committing transaction, but without
+   * those of the other one, before the commit; a commit of the other
+   * transaction in between keeps them.
+   */
+  @Test public void flushPagesForcesOwnTuples() throws Exception {
+    Tuple a = Utility.getHeapTuple(1, 2);
+    Tuple b = Utility.getHeapTuple(2, 2);
+    Tuple c = Utility.getHeapTuple(3, 2);
+    TransactionId tid3 = new TransactionId();
+    bp.insertTuple(tid1, empty.getId(), a);
+    bp.insertTuple(tid2, empty.getId(), b);
+    bp.insertTuple(tid3, empty.getId(), c);
+    bp.flushPages(tid1);
+
+    HeapPage page = (HeapPage) empty.readPage(a.getRecordId().getPageId());
+    assertEquals(a.getField(0), page.getTuple(a.getRecordId().tupleno()).getField(0));
+    assertNull(page.getTuple(b.getRecordId().tupleno()));
+
+    bp.transactionComplete(tid3, true);
+    page = (HeapPage) empty.readPage(a.getRecordId().getPageId());
+    assertEquals(a.getField(0), page.getTuple(a.getRecordId().tupleno()).getField(0));
+    assertEquals(c.getField(0), page.getTuple(c.getRecordId().tupleno()).getField(0));
+
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+    page = (HeapPage) empty.readPage(a.getRecordId().getPageId());
+    assertEquals(a.getField(0), page.getTuple(a.getRecordId().tupleno()).getField(0));
+    assertNull(page.getTuple(b.getRecordId().tupleno()));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,182 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // commit a page of ten tuples
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i)
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    bp.transactionComplete(tid);
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  /** @return the number of tuples of the table tid sees */
+  private int count(TransactionId tid) throws Exception {
+    SeqScan scan = new SeqScan(tid, empty.getId(), "");
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    return n;
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() with optimistic transactions.
+   * An optimistic transaction writes a private copy of the page without
+   * locks; others do not see it until it commits.
+   */
+  @Test public void writesArePrivate() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(20, 2));
+    assertEquals(11, count(tid1));
+    assertEquals(0, bp.getLockSet().numLocks(tid1));
+    assertEquals(0, bp.getPinCount(p0));
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    writer.join(1000);
+    assertTrue(writer.acquired());
+    assertEquals(10, count(tid2));
+    bp.transactionComplete(tid2);
+
+    bp.validate(tid1);
+    bp.transactionComplete(tid1);
+    TransactionId tid3 = new TransactionId();
+    assertEquals(11, count(tid3));
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.validate().
+   * Of two optimistic transactions that write the same page, the one that
+   * commits second fails validation.
+   */
+  @Test public void conflictingWriteFails() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.beginOptimistic(tid2);
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(20, 2));
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(21, 2));
+    bp.validate(tid1);
+    bp.transactionComplete(tid1);
+    try {
+      bp.validate(tid2);
+      fail("validated a read of a page changed since");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid2, false);
+
+    TransactionId tid3 = new TransactionId();
+    assertEquals(11, count(tid3));
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.validate().
+   * A read-only optimistic transaction fails validation if a locking
+   * transaction changed what it read, and passes otherwise.
+   */
+  @Test public void staleReadFails() throws Exception {
+    bp.beginOptimistic(tid1);
+    assertEquals(10, count(tid1));
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(20, 2));
+    assertEquals(10, count(tid1));
+    bp.transactionComplete(tid2);
+    try {
+      bp.validate(tid1);
+      fail("validated a read of a page changed since");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1, false);
+    assertFalse(bp.holdsLock(tid1, p0));
+
+    TransactionId tid3 = new TransactionId();
+    bp.beginOptimistic(tid3);
+    assertEquals(11, count(tid3));
+    bp.validate(tid3);
+    bp.transactionComplete(tid3);
+  }
+
+  /** Fill page 0 of the table, so that the next insert appends a page. */
+  private void fillFirstPage() throws Exception {
+    TransactionId tid = new TransactionId();
+    HeapFile f = (HeapFile)empty;
+    while (((HeapPage)bp.getPage(tid, p0, Permissions.READ_ONLY)).getNumEmptySlots() > 0)
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(30, 2));
+    bp.transactionComplete(tid);
+    assertEquals(1, f.numPages());
+  }
+
+  /**
+   * Unit test for BufferPool.validate().
+   * A scan fails validation if a commit appended a page to the table
+   * after it began: the tuples there would be phantoms.
+   */
+  @Test public void appendedPageFails() throws Exception {
+    fillFirstPage();
+    bp.beginOptimistic(tid1);
+    count(tid1);
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(20, 2));
+    bp.transactionComplete(tid2);
+    assertEquals(2, ((HeapFile)empty).numPages());
+    try {
+      bp.validate(tid1);
+      fail("validated a scan that missed an appended page");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1, false);
+  }
+
+  /**
+   * Unit test for BufferPool.validate().
+   * The pages an optimistic transaction appends itself do not fail its
+   * validation.
+   */
+  @Test public void ownAppendPasses() throws Exception {
+    fillFirstPage();
+    bp.beginOptimistic(tid1);
+    int n = count(tid1);
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(20, 2));
+    bp.validate(tid1);
+    bp.transactionComplete(tid1);
+    TransactionId tid3 = new TransactionId();
+    assertEquals(n + 1, count(tid3));
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OptimisticTest.class);
+  }
+
+}
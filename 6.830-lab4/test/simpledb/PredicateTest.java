@@ -5,6 +5,7 @@ import org.junit.Test;
 import simpledb.systemtest.SimpleDbTestBase;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
 import junit.framework.JUnit4TestAdapter;
 
 public class PredicateTest extends SimpleDbTestBase{
@@ -55,6 +56,78 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * Compiled predicates agree with Predicate.filter() for every operation
+   */
+  @Test public void compile() {
+    int[] vals = new int[] { -1, 0, 1 };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int i : vals) {
+        Predicate p = new Predicate(0, op, TestUtil.getField(i));
+        Predicate.Evaluator e = p.compile();
+        for (int j = i - 1; j <= i + 1; j++) {
+          Tuple t = Utility.getHeapTuple(j);
+          assertEquals(p.filter(t), e.eval(t));
+        }
+      }
+    }
+
+    StringField abc = new StringField("abc", Type.STRING_LEN);
+    Tuple t = new Tuple(new TupleDesc(new Type[] { Type.STRING_TYPE }));
+    t.setField(0, abc);
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (String s : new String[] { "ab", "abc", "abd" }) {
+        Predicate p = new Predicate(0, op, new StringField(s, Type.STRING_LEN));
+        assertEquals(p.filter(t), p.compile().eval(t));
+      }
+    }
+  }
+
+  /**
+   * Predicates compiled for serialized tuples agree with Predicate.filter()
+   */
+  @Test public void compileBytes() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+    Tuple t = new Tuple(td);
+    t.setField(0, new IntField(-7));
+    t.setField(1, new StringField("abc", Type.STRING_LEN));
+    t.setField(2, new IntField(300));
+    java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+    java.io.DataOutputStream dos = new java.io.DataOutputStream(baos);
+    dos.writeByte(1); // the tuple need not start at offset 0
+    for (int i = 0; i < td.numFields(); i++)
+      t.getField(i).serialize(dos);
+    byte[] data = baos.toByteArray();
+
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int v : new int[] { -8, -7, 299, 300, 301 }) {
+        for (int f : new int[] { 0, 2 }) {
+          Predicate p = new Predicate(f, op, new IntField(v));
+          assertEquals(p.filter(t), p.compile(td).eval(data, 1));
+        }
+      }
+      for (String s : new String[] { "ab", "abc", "abd" }) {
+        Predicate p = new Predicate(1, op, new StringField(s, Type.STRING_LEN));
+        assertEquals(p.filter(t), p.compile(td).eval(data, 1));
+      }
+    }
+  }
+
+  /**
+   * A conjunction is true only if all of its predicates are
+   */
+  @Test public void conjunction() {
+    Predicate.Evaluator e = Predicate.and(new Predicate[] {
+        new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(0)),
+        new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(5)),
+        new Predicate(0, Predicate.Op.NOT_EQUALS, TestUtil.getField(3)) });
+    assertFalse(e.eval(Utility.getHeapTuple(0)));
+    assertTrue(e.eval(Utility.getHeapTuple(1)));
+    assertFalse(e.eval(Utility.getHeapTuple(3)));
+    assertTrue(e.eval(Utility.getHeapTuple(4)));
+    assertFalse(e.eval(Utility.getHeapTuple(5)));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,121 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // commit a page of ten tuples
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i)
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    bp.transactionComplete(tid);
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  /** @return the number of tuples of the table tid sees */
+  private int count(TransactionId tid) throws Exception {
+    SeqScan scan = new SeqScan(tid, empty.getId(), "");
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    return n;
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() with snapshots.
+   * A snapshot reader reads a page another transaction writes, and does
+   * not keep writers from it.
+   */
+  @Test public void snapshotTakesNoLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.beginSnapshot(tid2);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    reader.start();
+    reader.join(TIMEOUT * 10);
+    assertTrue(reader.acquired());
+    assertEquals(10, count(tid2));
+    assertEquals(0, bp.getLockSet().numLocks(tid2));
+    bp.transactionComplete(tid1);
+
+    TransactionId tid3 = new TransactionId();
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    writer.start();
+    writer.join(TIMEOUT * 10);
+    assertTrue(writer.acquired());
+    bp.transactionComplete(tid3);
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() with snapshots.
+   * A snapshot sees neither the changes that have not committed nor those
+   * committed after it began; a later snapshot sees the committed ones.
+   */
+  @Test public void snapshotIsStable() throws Exception {
+    bp.beginSnapshot(tid2);
+    assertEquals(10, count(tid2));
+
+    Tuple t = Utility.getHeapTuple(20, 2);
+    bp.insertTuple(tid1, empty.getId(), t);
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(21, 2));
+    bp.deleteTuple(tid1, t);
+    assertEquals(10, count(tid2));
+    bp.transactionComplete(tid1);
+    assertEquals(10, count(tid2));
+    assertTrue(bp.getVersionStore().numVersions() > 0);
+
+    TransactionId tid3 = new TransactionId();
+    bp.beginSnapshot(tid3);
+    assertEquals(11, count(tid3));
+    bp.transactionComplete(tid3);
+    bp.transactionComplete(tid2);
+    assertEquals(0, bp.getVersionStore().numVersions());
+
+    TransactionId tid4 = new TransactionId();
+    assertEquals(11, count(tid4));
+    bp.transactionComplete(tid4);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() with snapshots.
+   * Snapshot transactions cannot write.
+   */
+  @Test(expected=DbException.class) public void snapshotIsReadOnly() throws Exception {
+    bp.beginSnapshot(tid2);
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(20, 2));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotTest.class);
+  }
+
+}
@@ -100,6 +100,18 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Assert.assertEquals(0, s.estimateTableCardinality(0.0));
 	}
 	
+	/**
+	 * The scans behind the estimates release their table locks, so they do
+	 * not block later writers.
+	 */
+	@Test public void estimatesReleaseLocks() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		s.estimateTableCardinality(1.0);
+		s.avgSelectivity(0, Predicate.Op.EQUALS);
+		s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1));
+		Assert.assertTrue(Database.getBufferPool().getLockSet().getHolders(this.tableId).isEmpty());
+	}
+	
 	/**
 	 * Verify that selectivity estimates do something reasonable.
 	 * Don't bother splitting this into N different functions for
@@ -0,0 +1,112 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  private TupleBatch batch(int rows) {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    TupleBatch b = new TupleBatch(td, 8);
+    for (int i = 0; i < rows; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+      b.addTuple(t);
+    }
+    return b;
+  }
+
+  /**
+   * Rows are stored column by column and can be materialized again.
+   */
+  @Test public void addAndGet() {
+    TupleBatch b = batch(5);
+    assertEquals(5, b.numRows());
+    assertEquals(5, b.numSelected());
+    assertEquals(3, b.getInt(0, 3));
+    assertEquals("s3", b.getString(1, 3));
+    Tuple t = b.getTuple(4);
+    assertEquals(new IntField(4), t.getField(0));
+    assertEquals(new StringField("s4", Type.STRING_LEN), t.getField(1));
+  }
+
+  /**
+   * Predicates narrow the selection vector; rows are not moved.
+   */
+  @Test public void filterSelection() {
+    TupleBatch b = batch(8);
+    int[] sel = new int[b.capacity()];
+    new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(3)).filter(b, sel);
+    assertEquals(5, b.numSelected());
+    assertEquals(3, b.selected(0));
+
+    int[] sel2 = new int[b.capacity()];
+    new Predicate(1, Predicate.Op.EQUALS, new StringField("s6", Type.STRING_LEN)).filter(b, sel2);
+    assertEquals(1, b.numSelected());
+    assertEquals(6, b.selected(0));
+    assertEquals(1, b.tuples().size());
+  }
+
+  /**
+   * Projection shares the columns and the selection of the batch.
+   */
+  @Test public void project() {
+    TupleBatch b = batch(4);
+    int[] sel = new int[b.capacity()];
+    new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(1)).filter(b, sel);
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE });
+    TupleBatch p = b.project(new int[] { 1 }, td);
+    assertEquals(3, p.numSelected());
+    assertEquals("s2", p.getString(0, p.selected(1)));
+  }
+
+  /**
+   * Plain DbIterators are read in batches through the row adapter.
+   */
+  @Test public void readRows() throws Exception {
+    TupleIterator it = TestUtil.createTupleList(1, new int[] { 1, 2, 3 });
+    it.open();
+    TupleBatch b = TupleBatch.read(it);
+    assertEquals(3, b.numRows());
+    assertEquals(2, b.getInt(0, 1));
+    assertNull(TupleBatch.read(it));
+  }
+
+  /**
+   * A field that was not decoded stays null in INT and STRING columns,
+   * also through copies and projections, until the row is set again.
+   */
+  @Test public void undecodedFields() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    TupleBatch b = batch(3);
+    b.copyTuple(new Tuple(td), 1, 0);
+    assertNull(b.getField(0, 1));
+    assertNull(b.getField(1, 1));
+    assertFalse(b.isDecoded(0, 1));
+    assertNull(b.getTuple(1).getField(0));
+    assertEquals(new IntField(2), b.getField(0, 2));
+
+    TupleBatch c = new TupleBatch(td, 8);
+    c.addRow();
+    c.copyRow(b, 1, 0, 0);
+    assertNull(c.getField(0, 0));
+    TupleBatch p = b.project(new int[] { 0 }, new TupleDesc(new Type[] { Type.INT_TYPE }));
+    assertNull(p.getField(0, 1));
+
+    b.setInt(0, 1, 7);
+    assertEquals(new IntField(7), b.getField(0, 1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+  private static final int ROWS_PER_PAGE = 504;   // two int columns
+
+  private HeapFile hf;
+
+  /**
+   * A two-column table whose first column counts up from 0, so each page
+   * holds one range of it.
+   */
+  @Before public void createTable() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 3 * ROWS_PER_PAGE; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i);
+      t.add(-i);
+      tuples.add(t);
+    }
+    File f = File.createTempFile("table", ".dat");
+    f.deleteOnExit();
+    ZoneMap.sidecarFor(f).deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 2);
+    hf = Utility.openHeapFile(2, f);
+  }
+
+  private static Predicate[] pred(int field, Predicate.Op op, int v) {
+    return new Predicate[] { new Predicate(field, op, new IntField(v)) };
+  }
+
+  /**
+   * Unit test for ZoneMap.mayMatch()
+   */
+  @Test public void mayMatch() throws Exception {
+    ZoneMap zm = ZoneMap.open(hf);
+    assertEquals(3, zm.numPages());
+
+    assertTrue(zm.mayMatch(1, pred(0, Predicate.Op.EQUALS, ROWS_PER_PAGE)));
+    assertFalse(zm.mayMatch(0, pred(0, Predicate.Op.EQUALS, ROWS_PER_PAGE)));
+    assertFalse(zm.mayMatch(0, pred(0, Predicate.Op.GREATER_THAN, ROWS_PER_PAGE - 1)));
+    assertTrue(zm.mayMatch(0, pred(0, Predicate.Op.GREATER_THAN_OR_EQ, ROWS_PER_PAGE - 1)));
+    assertFalse(zm.mayMatch(2, pred(0, Predicate.Op.LESS_THAN, 2 * ROWS_PER_PAGE)));
+    assertTrue(zm.mayMatch(2, pred(0, Predicate.Op.LESS_THAN_OR_EQ, 2 * ROWS_PER_PAGE)));
+    assertFalse(zm.mayMatch(0, pred(1, Predicate.Op.LESS_THAN, -ROWS_PER_PAGE)));
+
+    // every predicate has to be satisfiable
+    Predicate[] both = new Predicate[] {
+        new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+        new Predicate(1, Predicate.Op.LESS_THAN, new IntField(-ROWS_PER_PAGE - 10)) };
+    assertFalse(zm.mayMatch(0, both));
+    assertFalse(zm.mayMatch(1, both));
+
+    // pages it does not know about might match
+    assertTrue(zm.mayMatch(3, pred(0, Predicate.Op.EQUALS, -1)));
+  }
+
+  /**
+   * Inserting a tuple widens the range of its page.
+   */
+  @Test public void insert() throws Exception {
+    ZoneMap zm = ZoneMap.open(hf);
+    Tuple t = Utility.getHeapTuple(new int[] { -5, 5 });
+    t.setRecordId(new RecordId(new HeapPageId(hf.getId(), 1), 0));
+    assertFalse(zm.mayMatch(1, pred(0, Predicate.Op.LESS_THAN, 0)));
+    zm.add(1, t);
+    assertTrue(zm.mayMatch(1, pred(0, Predicate.Op.LESS_THAN, 0)));
+    assertTrue(zm.mayMatch(1, pred(1, Predicate.Op.EQUALS, 5)));
+    assertFalse(zm.mayMatch(0, pred(0, Predicate.Op.LESS_THAN, 0)));
+  }
+
+  /**
+   * The zone map is read back from its sidecar file while the table is
+   * unchanged, and rebuilt once pages are appended to it.
+   */
+  @Test public void sidecar() throws Exception {
+    ZoneMap zm = ZoneMap.open(hf);
+    Tuple t = Utility.getHeapTuple(new int[] { -5, 5 });
+    zm.add(0, t);
+    zm.write();
+    assertTrue(ZoneMap.open(hf).mayMatch(0, pred(0, Predicate.Op.EQUALS, -5)));
+
+    // a sidecar of fewer pages than the file is ignored
+    RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+    raf.seek(raf.length());
+    raf.write(HeapPage.createEmptyPageData());
+    raf.close();
+    assertFalse(ZoneMap.open(hf).mayMatch(0, pred(0, Predicate.Op.EQUALS, -5)));
+  }
+
+  /**
+   * A sidecar whose checksum of the last page no longer matches is
+   * ignored.
+   */
+  @Test public void staleChecksum() throws Exception {
+    ZoneMap zm = ZoneMap.open(hf);
+    zm.add(0, Utility.getHeapTuple(new int[] { -5, 5 }));
+    zm.write();
+
+    RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+    raf.seek(raf.length() - BufferPool.PAGE_SIZE);
+    raf.write(HeapPage.createEmptyPageData());
+    raf.close();
+    assertFalse(ZoneMap.open(hf).mayMatch(0, pred(0, Predicate.Op.EQUALS, -5)));
+  }
+
+  /**
+   * A sidecar whose checksum of any other page no longer matches is
+   * ignored too.
+   */
+  @Test public void staleChecksumOfFirstPage() throws Exception {
+    ZoneMap zm = ZoneMap.open(hf);
+    zm.add(0, Utility.getHeapTuple(new int[] { -5, 5 }));
+    zm.write();
+
+    RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+    raf.write(HeapPage.createEmptyPageData());
+    raf.close();
+    assertFalse(ZoneMap.open(hf).mayMatch(0, pred(0, Predicate.Op.EQUALS, -5)));
+  }
+
+  /**
+   * Writing a page updates its record in the sidecar in place.
+   */
+  @Test public void pageWritten() throws Exception {
+    hf.enableZoneMap();
+    long length = ZoneMap.sidecarFor(hf.getFile()).length();
+    HeapPageId pid = new HeapPageId(hf.getId(), 1);
+    HeapPage page = (HeapPage)hf.readPage(pid);
+    page.deleteTuple(page.iterator().next());
+    page.insertTuple(Utility.getHeapTuple(new int[] { -7, 7 }));
+    hf.writePage(page);
+
+    assertEquals(length, ZoneMap.sidecarFor(hf.getFile()).length());
+    ZoneMap zm = ZoneMap.open(hf);
+    assertTrue(zm.mayMatch(1, pred(0, Predicate.Op.EQUALS, -7)));
+    assertFalse(zm.mayMatch(0, pred(0, Predicate.Op.EQUALS, -7)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ZoneMapTest.class);
+  }
+}
@@ -8,13 +8,21 @@ import java.util.Map;
 import simpledb.*;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, expectedResult, Aggregate.DEFAULT_MEMORY_BUDGET);
+    }
+
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult, long memoryBudget)
+            throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, table.getId(), "");
         Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation);
+        ag.setMemoryBudget(memoryBudget);
 
         SystemTestUtil.matchTuples(ag, expectedResult);
         Database.getBufferPool().transactionComplete(tid);
@@ -113,6 +121,221 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * A memory budget far below the size of the groups forces the aggregate
+     * to spill partitions to disk (and to re-partition them); the result
+     * must not change.
+     */
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 4 * ROWS, 1 << 16, null, createdTuples);
+
+        for (Aggregator.Op operation : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT }) {
+            ArrayList<ArrayList<Integer>> expected =
+                    aggregate(createdTuples, operation, 1, 0);
+            validateAggregate(table, operation, 1, 0, expected, 1024);
+        }
+    }
+
+    /**
+     * Two-phase aggregation on several worker threads must give the same
+     * answer as the serial aggregate, with and without grouping.
+     */
+    @Test public void testParallel() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 8 * ROWS, MAX_VALUE, null, createdTuples);
+
+        for (Aggregator.Op operation : Aggregator.Op.values()) {
+            for (int groupColumn : new int[] { 0, Aggregator.NO_GROUPING }) {
+                ArrayList<ArrayList<Integer>> expected =
+                        aggregate(createdTuples, operation, 1, groupColumn);
+
+                TransactionId tid = new TransactionId();
+                SeqScan ss = new SeqScan(tid, table.getId(), "");
+                Aggregate ag = new Aggregate(ss, 1, groupColumn, operation);
+                ag.setParallelism(4);
+                SystemTestUtil.matchTuples(ag, expected);
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /**
+     * A parallel aggregate whose partial groups outgrow the memory budget
+     * falls back to the serial aggregate, which spills; the result must not
+     * change.
+     */
+    @Test public void testParallelOverBudget()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 4 * ROWS, 1 << 16, null, createdTuples);
+        ArrayList<ArrayList<Integer>> expected =
+                aggregate(createdTuples, Aggregator.Op.SUM, 1, 0);
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Aggregate ag = new Aggregate(ss, 1, 0, Aggregator.Op.SUM);
+        ag.setParallelism(4);
+        ag.setMemoryBudget(1024);
+        SystemTestUtil.matchTuples(ag, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Several aggregates over a composite group key, computed in one pass,
+     * must match the aggregates computed one at a time; also when the
+     * groups spill to disk.
+     */
+    @Test public void testMultiple() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2 * ROWS, 8, null, createdTuples);
+
+        int[] gfields = new int[] { 0, 1 };
+        int[] afields = new int[] { 2, 2, 2, 1 };
+        Aggregator.Op[] aops = new Aggregator.Op[] {
+            Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.COUNT, Aggregator.Op.MAX };
+
+        HashMap<ArrayList<Integer>, ArrayList<ArrayList<Integer>>> groups =
+                new HashMap<ArrayList<Integer>, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>();
+            key.add(t.get(0));
+            key.add(t.get(1));
+            if (!groups.containsKey(key)) groups.put(key, new ArrayList<ArrayList<Integer>>());
+            groups.get(key).add(t);
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<ArrayList<Integer>, ArrayList<ArrayList<Integer>>> e : groups.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>(e.getKey());
+            for (int i = 0; i < afields.length; i++) {
+                ArrayList<Integer> values = new ArrayList<Integer>();
+                for (ArrayList<Integer> t : e.getValue()) values.add(t.get(afields[i]));
+                result.add(computeAggregate(values, aops[i]));
+            }
+            expected.add(result);
+        }
+
+        for (long budget : new long[] { Aggregate.DEFAULT_MEMORY_BUDGET, 1024 }) {
+            TransactionId tid = new TransactionId();
+            SeqScan ss = new SeqScan(tid, table.getId(), "");
+            Aggregate ag = new Aggregate(ss, afields, gfields, aops);
+            ag.setMemoryBudget(budget);
+            SystemTestUtil.matchTuples(ag, expected);
+
+            // the tuples are named like the operator's TupleDesc says
+            TupleDesc td = ag.getTupleDesc();
+            assertEquals(ss.getTupleDesc().getFieldName(1), td.getFieldName(1));
+            assertEquals("min(" + ss.getTupleDesc().getFieldName(2) + ")", td.getFieldName(3));
+            ag.open();
+            assertEquals(td.getFieldName(3), ag.next().getTupleDesc().getFieldName(3));
+            ag.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * StreamAggregate over a child sorted on the group field must give the
+     * same groups as Aggregate, in sorted order.
+     */
+    @Test public void testStreaming() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, MAX_VALUE, null, createdTuples);
+
+        for (Aggregator.Op operation : Aggregator.Op.values()) {
+            for (int groupColumn : new int[] { 0, Aggregator.NO_GROUPING }) {
+                ArrayList<ArrayList<Integer>> expected =
+                        aggregate(createdTuples, operation, 1, groupColumn);
+
+                TransactionId tid = new TransactionId();
+                SeqScan ss = new SeqScan(tid, table.getId(), "");
+                StreamAggregate ag = new StreamAggregate(new OrderBy(0, true, ss), 1, groupColumn, operation);
+                SystemTestUtil.matchTuples(ag, expected);
+
+                TupleDesc named = ag.getTupleDesc();
+                assertEquals(Aggregate.nameOfAggregatorOp(operation) + "(" + ss.getTupleDesc().getFieldName(1) + ")",
+                        named.getFieldName(named.numFields() - 1));
+
+                ag.open();
+                int last = Integer.MIN_VALUE;
+                while (ag.hasNext()) {
+                    int group = ((IntField) ag.next().getField(0)).getValue();
+                    assertTrue(groupColumn == Aggregator.NO_GROUPING || group > last);
+                    last = group;
+                }
+                ag.close();
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /**
+     * A sort is known through the operators that keep the order of their
+     * child: Filter, and Join for its outer child.
+     */
+    @Test public void testSortField() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, MAX_VALUE, null, null);
+        TransactionId tid = new TransactionId();
+        OrderBy sorted = new OrderBy(1, true, new SeqScan(tid, table.getId(), ""));
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0));
+        JoinPredicate jp = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        assertEquals(1, sorted.getSortField());
+        assertEquals(1, new Filter(p, sorted).getSortField());
+        assertEquals(1, new Join(jp, sorted, new SeqScan(tid, table.getId(), "")).getSortField());
+        assertEquals(-1, new Join(jp, new SeqScan(tid, table.getId(), ""), sorted).getSortField());
+        assertEquals(-1, new Filter(p, new SeqScan(tid, table.getId(), "")).getSortField());
+    }
+
+    /**
+     * Ungrouped COUNT, MIN and MAX over a table with a zone map are answered
+     * from the page headers and the zone map, and stay right after the
+     * tuple holding the maximum is deleted.
+     */
+    @Test public void testMetadata() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 4 * ROWS, MAX_VALUE, null, createdTuples);
+        ZoneMap.sidecarFor(table.getFile()).deleteOnExit();
+        table.enableZoneMap();
+
+        int[] afields = new int[] { 0, 1, 1 };
+        int[] gfields = new int[0];
+        Aggregator.Op[] aops = new Aggregator.Op[] {
+            Aggregator.Op.COUNT, Aggregator.Op.MIN, Aggregator.Op.MAX };
+
+        for (int round = 0; round < 2; round++) {
+            ArrayList<Integer> values = new ArrayList<Integer>();
+            for (ArrayList<Integer> t : createdTuples) values.add(t.get(1));
+            ArrayList<Integer> result = new ArrayList<Integer>();
+            result.add(values.size());
+            result.add(computeAggregate(values, Aggregator.Op.MIN));
+            result.add(computeAggregate(values, Aggregator.Op.MAX));
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            expected.add(result);
+
+            TransactionId tid = new TransactionId();
+            SeqScan ss = new SeqScan(tid, table.getId(), "");
+            SystemTestUtil.matchTuples(new Aggregate(ss, afields, gfields, aops), expected);
+
+            // delete every tuple holding the maximum of field 1
+            int max = result.get(2);
+            Delete d = new Delete(tid, new Filter(
+                new Predicate(1, Predicate.Op.EQUALS, new IntField(max)),
+                new SeqScan(tid, table.getId(), "")));
+            d.open();
+            while (d.hasNext()) d.next();
+            d.close();
+            Database.getBufferPool().transactionComplete(tid);
+            for (int i = createdTuples.size() - 1; i >= 0; i--)
+                if (createdTuples.get(i).get(1) == max) createdTuples.remove(i);
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
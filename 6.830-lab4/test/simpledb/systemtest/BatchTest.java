@@ -0,0 +1,111 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs plans batch-at-a-time (read back as rows with BatchRowIterator) and
+ * checks that they return the same tuples as the row-at-a-time plans.
+ */
+public class BatchTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int MAX_VALUE = 64;
+
+    @Test public void testFilterProject()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) > 40 && t.get(2) != 7) {
+                ArrayList<Integer> out = new ArrayList<Integer>();
+                out.add(t.get(2));
+                out.add(t.get(0));
+                expected.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Filter f1 = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(40)), ss);
+        Filter f2 = new Filter(new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(7)), f1);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.add(Type.INT_TYPE);
+        types.add(Type.INT_TYPE);
+        Project p = new Project(fields, types, f2);
+        SystemTestUtil.matchTuples(new BatchRowIterator(p), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 300, MAX_VALUE, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, t2Tuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(1))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        HashEquiJoin join = new HashEquiJoin(p, ss1, ss2);
+        SystemTestUtil.matchTuples(new BatchRowIterator(join), expected);
+
+        // the row interface of the same operator gives the same answer
+        SystemTestUtil.matchTuples(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testAggregateOverFilter()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+
+        HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 20) {
+                Integer s = sums.get(t.get(0));
+                sums.put(t.get(0), (s == null ? 0 : s) + t.get(1));
+            }
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Integer k : sums.keySet()) {
+            ArrayList<Integer> out = new ArrayList<Integer>();
+            out.add(k);
+            out.add(sums.get(k));
+            expected.add(out);
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Filter f = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(20)), ss);
+        Aggregate ag = new Aggregate(f, 1, 0, Aggregator.Op.SUM);
+        SystemTestUtil.matchTuples(ag, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchTest.class);
+    }
+}
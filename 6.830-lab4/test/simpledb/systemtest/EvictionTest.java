@@ -26,11 +26,14 @@ public class EvictionTest extends SimpleDbTestBase {
         System.out.println("EvictionTest scanning large table");
         Database.resetBufferPool(BUFFER_PAGES);
         long beginMem = SystemTestUtil.getMemoryFootprint();
-        SeqScan scan = new SeqScan(null, f.getId(), "");
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
         scan.open();
         while (scan.hasNext()) {
             scan.next();
         }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
         System.out.println("EvictionTest scan complete, testing memory usage of scan");
         long endMem = SystemTestUtil.getMemoryFootprint();
         long memDiff = (endMem - beginMem) / (1<<20);
@@ -39,6 +42,65 @@ public class EvictionTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A page pinned by BufferPool.getTuplePage() is not evicted until it is
+     * unpinned.
+     */
+    @Test public void testPinnedPageIsNotEvicted() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1024, null, null);
+        BufferPool bp = Database.resetBufferPool(1);
+        TransactionId tid = new TransactionId();
+        HeapPageId p0 = new HeapPageId(f.getId(), 0);
+        HeapPageId p1 = new HeapPageId(f.getId(), 1);
+        bp.getTuplePage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p0));
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(p0);
+        assertEquals(0, bp.getPinCount(p0));
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The partitions of the page table share its capacity: a partition
+     * whose pages are all pinned evicts from another one, and the pool
+     * fails only when no partition has a page to evict.
+     */
+    @Test public void testEvictAcrossPartitions() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2048, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        assertEquals(2, bp.getNumPartitions());
+        TransactionId tid = new TransactionId();
+        HeapPageId p0 = new HeapPageId(f.getId(), 0);
+        HeapPageId p1 = new HeapPageId(f.getId(), 1);
+        HeapPageId p2 = new HeapPageId(f.getId(), 2);
+        HeapPageId p3 = new HeapPageId(f.getId(), 3);
+        bp.getTuplePage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        bp.getPage(tid, p3, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p0));
+
+        bp.getTuplePage(tid, p3, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(p0);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.unpinPage(p3);
+        bp.transactionComplete(tid);
+    }
+
     public static void insertRow(HeapFile f, Transaction t) throws DbException,
             TransactionAbortedException {
         // Create a row to insert
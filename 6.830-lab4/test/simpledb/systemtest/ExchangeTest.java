@@ -0,0 +1,189 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs subtrees of plans in producer threads through Gather, Repartition
+ * and Broadcast exchanges.
+ */
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int MAX_VALUE = 64;
+
+    @Test public void testGather()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        DbIterator[] inputs = new DbIterator[3];
+        for (int i = 0; i < inputs.length; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+            SeqScan ss = new SeqScan(tid, table.getId(), "");
+            inputs[i] = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(20)), ss);
+            for (ArrayList<Integer> t : tuples) {
+                if (t.get(1) < 20)
+                    expected.add(t);
+            }
+        }
+
+        Gather g = new Gather(inputs);
+        g.setQueueChunks(1);
+        SystemTestUtil.matchTuples(g, expected);
+
+        // rewinding a single output runs the inputs again
+        g.open();
+        int count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            while (g.hasNext()) {
+                g.next();
+                count++;
+            }
+            g.rewind();
+        }
+        g.close();
+        assertEquals(2 * expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Repartitions two tables on the group by field, aggregates each
+     * partition on its own and gathers the groups again.
+     */
+    @Test public void testRepartition()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        DbIterator[] inputs = new DbIterator[2];
+        for (int i = 0; i < inputs.length; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+            inputs[i] = new SeqScan(tid, table.getId(), "");
+            for (ArrayList<Integer> t : tuples) {
+                Integer c = counts.get(t.get(0));
+                counts.put(t.get(0), (c == null ? 0 : c) + 1);
+            }
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Integer k : counts.keySet()) {
+            ArrayList<Integer> out = new ArrayList<Integer>();
+            out.add(k);
+            out.add(counts.get(k));
+            expected.add(out);
+        }
+
+        Repartition[] parts = Repartition.create(inputs, 0, 3);
+        DbIterator[] aggs = new DbIterator[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            aggs[i] = new Aggregate(parts[i], 1, 0, Aggregator.Op.COUNT);
+        // a key split across partitions would show up as two groups
+        SystemTestUtil.matchTuples(new Gather(aggs), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Broadcasts a small table to two joins over halves of a large one; the
+     * broadcast outputs are the inner children, which the joins rewind, so
+     * they are declared rewindable.
+     */
+    @Test public void testBroadcast()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> smallTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 50, MAX_VALUE, null, smallTuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        Broadcast[] copies = Broadcast.create(
+            new DbIterator[] { new SeqScan(tid, small.getId(), "") }, 2);
+        DbIterator[] joins = new DbIterator[copies.length];
+        for (int i = 0; i < joins.length; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile large = SystemTestUtil.createRandomHeapFile(2, 500, MAX_VALUE, null, tuples);
+            for (ArrayList<Integer> t1 : tuples) {
+                for (ArrayList<Integer> t2 : smallTuples) {
+                    if (t1.get(0).equals(t2.get(0))) {
+                        ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                        out.addAll(t2);
+                        expected.add(out);
+                    }
+                }
+            }
+            JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+            copies[i].setRewindable(true);
+            joins[i] = new Join(p, new SeqScan(tid, large.getId(), ""), copies[i]);
+        }
+        SystemTestUtil.matchTuples(new Gather(joins), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Closing one output early does not hold up the others.
+     */
+    @Test public void testCloseEarly()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+
+        Broadcast[] copies = Broadcast.create(
+            new DbIterator[] { new SeqScan(tid, table.getId(), "") }, 2);
+        copies[0].setQueueChunks(1);
+        copies[1].open();
+        copies[1].close();
+        SystemTestUtil.matchTuples(copies[0], tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An output of an exchange with several outputs keeps no tuples unless
+     * it was declared rewindable, so it cannot be rewound.
+     */
+    @Test(expected = DbException.class) public void testRewindUndeclared()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, MAX_VALUE, null, null);
+        Broadcast[] copies = Broadcast.create(
+            new DbIterator[] { new SeqScan(tid, table.getId(), "") }, 2);
+        copies[1].open();
+        copies[1].close();
+        try {
+            copies[0].open();
+            copies[0].rewind();
+        } finally {
+            copies[0].close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Errors in a producer are thrown to the consumer.
+     */
+    @Test(expected = DbException.class) public void testError()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, MAX_VALUE, null, null);
+        // the predicate compares an INT field with a string
+        Filter bad = new Filter(new Predicate(0, Predicate.Op.EQUALS,
+            new StringField("x", Type.STRING_LEN)), new SeqScan(tid, table.getId(), ""));
+        Gather g = new Gather(bad);
+        try {
+            g.open();
+            while (g.hasNext())
+                g.next();
+        } finally {
+            g.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import org.junit.Test;
 
 import simpledb.*;
@@ -69,6 +71,73 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Joins a small table (the build side) with a large one through a
+     * HashEquiJoin, which pushes a join filter into the probe-side scan.
+     */
+    private void validateHashJoin(int buildRows, boolean parallel)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, buildRows, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 1000000, null, t2Tuples);
+        table2.enableZoneMap();
+
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> byKey =
+            new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            if (!byKey.containsKey(t1.get(0)))
+                byKey.put(t1.get(0), new ArrayList<ArrayList<Integer>>());
+            byKey.get(t1.get(0)).add(t1);
+        }
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t2 : t2Tuples) {
+            if (t2.get(1) < 100 || !byKey.containsKey(t2.get(0)))
+                continue;
+            for (ArrayList<Integer> t1 : byKey.get(t2.get(0))) {
+                ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                out.addAll(t2);
+                expectedResults.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        DbIterator probe = parallel ? new ParallelScan(ss2, 3) : ss2;
+        probe = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)), probe);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, probe);
+
+        joinOp.open();
+        assertNotNull(joinOp.getJoinFilter());
+        assertEquals(1, ss2.getJoinFilters().length);
+        joinOp.close();
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        // the filter is taken off the scan when the join is closed
+        assertEquals(0, ss2.getJoinFilters().length);
+
+        joinOp.setJoinFilter(false);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashJoinFilter()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(500, false);
+        validateHashJoin(500, true);
+    }
+
+    /**
+     * A build side larger than the hash table is joined a part at a time,
+     * with the filter refilled for each part.
+     */
+    @Test public void testHashJoinFilterParts()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(HashEquiJoin.MAP_SIZE + 5000, false);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
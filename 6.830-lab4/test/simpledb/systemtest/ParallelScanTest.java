@@ -0,0 +1,90 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Reads tables with several workers taking morsels, with and without a
+ * pipeline of operators run inside the workers.
+ */
+public class ParallelScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 100;
+
+    @Test public void testUnordered()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        ParallelScan ps = new ParallelScan(new SeqScan(tid, table.getId(), ""), 4);
+        ps.setMorselPages(2);
+        SystemTestUtil.matchTuples(ps, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testOrdered()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        ParallelScan ps = new ParallelScan(new SeqScan(tid, table.getId(), ""), null, 4, true);
+        ps.setMorselPages(1);
+        ps.setBufferedMorsels(2);
+        ps.open();
+        for (int pass = 0; pass < 2; pass++) {
+            for (ArrayList<Integer> expected : tuples) {
+                assertTrue(ps.hasNext());
+                assertEquals(expected, SystemTestUtil.tupleToList(ps.next()));
+            }
+            assertFalse(ps.hasNext());
+            ps.rewind();
+        }
+        ps.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPipeline()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 30 && t.get(1) >= 50) {
+                ArrayList<Integer> out = new ArrayList<Integer>();
+                out.add(t.get(2));
+                expected.add(out);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        ss.addPredicate(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30)));
+        ParallelScan ps = new ParallelScan(ss, new ParallelScan.Pipeline() {
+            public DbIterator build(DbIterator morsel) {
+                Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+                        new IntField(50)), morsel);
+                ArrayList<Integer> fields = new ArrayList<Integer>();
+                fields.add(2);
+                ArrayList<Type> types = new ArrayList<Type>();
+                types.add(Type.INT_TYPE);
+                return new Project(fields, types, f);
+            }
+        }, 3, false);
+        assertEquals(1, ps.getTupleDesc().numFields());
+        SystemTestUtil.matchTuples(ps, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
@@ -68,6 +68,28 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test that a scan only decodes the columns it is asked for. */
+    @Test public void testColumns() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table");
+        scan.setColumns(new int[] { 2 });
+        scan.addPredicate(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)));
+        scan.open();
+        for (ArrayList<Integer> expected : tuples) {
+            assertTrue(scan.hasNext());
+            Tuple t = scan.next();
+            assertNull(t.getField(0));
+            assertNull(t.getField(1));
+            assertEquals(new IntField(expected.get(2)), t.getField(2));
+        }
+        assertFalse(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Verifies that the buffer pool is actually caching data.
      * @throws TransactionAbortedException
      * @throws DbException */
@@ -105,6 +127,68 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a scan with a zone map only reads the pages that can match. */
+    @Test public void testZoneMap() throws IOException, DbException, TransactionAbortedException {
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                readCount += 1;
+                return super.readPage(pid);
+            }
+
+            public int readCount = 0;
+        }
+
+        // a time-ordered table: the first column only grows
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 992*PAGES; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        ZoneMap.sidecarFor(f).deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 1);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        table.enableZoneMap();
+        table.readCount = 0;
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "table");
+        scan.addPredicate(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(992*PAGES - 1500)));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            assertTrue(((IntField)scan.next().getField(0)).getValue() >= 992*PAGES - 1500);
+            count++;
+        }
+        scan.close();
+        assertEquals(1500, count);
+        assertEquals(2, table.readCount);
+
+        // inserted tuples are found on the pages they were added to
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(992*PAGES + 7));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        scan.open();
+        count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(1501, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
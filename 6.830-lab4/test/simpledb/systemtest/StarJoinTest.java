@@ -0,0 +1,172 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Joins a fact table with dimension tables in one StarJoin, directly and
+ * as planned by the optimizer.
+ */
+public class StarJoinTest extends SimpleDbTestBase {
+    private static final int FACT_ROWS = 3000;
+    private static final int DIM_ROWS = 40;
+    private static final int MAX_VALUE = 60;
+
+    private ArrayList<ArrayList<Integer>> factTuples = new ArrayList<ArrayList<Integer>>();
+    private ArrayList<ArrayList<Integer>> dim1Tuples = new ArrayList<ArrayList<Integer>>();
+    private ArrayList<ArrayList<Integer>> dim2Tuples = new ArrayList<ArrayList<Integer>>();
+
+    private HeapFile fact, dim1, dim2;
+
+    /**
+     * Fields are named after their table (e.g. sales.c1), as the planner
+     * expects.
+     */
+    private void createTables() throws IOException, DbException, TransactionAbortedException {
+        fact = SystemTestUtil.createRandomHeapFile(3, FACT_ROWS, MAX_VALUE, null, factTuples, "sales.c");
+        dim1 = SystemTestUtil.createRandomHeapFile(2, DIM_ROWS, MAX_VALUE, null, dim1Tuples, "store.c");
+        dim2 = SystemTestUtil.createRandomHeapFile(2, DIM_ROWS, MAX_VALUE, null, dim2Tuples, "item.c");
+    }
+
+    /**
+     * The fact tuples joined with dim1 on fact.c1 = dim1.c0 and with dim2
+     * on fact.c2 = dim2.c0, with the fields in the order StarJoin returns
+     * them.
+     */
+    private ArrayList<ArrayList<Integer>> expectedJoin() {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> f : factTuples) {
+            for (ArrayList<Integer> d1 : dim1Tuples) {
+                if (!f.get(1).equals(d1.get(0)))
+                    continue;
+                for (ArrayList<Integer> d2 : dim2Tuples) {
+                    if (!f.get(2).equals(d2.get(0)))
+                        continue;
+                    ArrayList<Integer> out = new ArrayList<Integer>(f);
+                    out.addAll(d1);
+                    out.addAll(d2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test public void testStarJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        createTables();
+        ArrayList<ArrayList<Integer>> expected = expectedJoin();
+
+        TransactionId tid = new TransactionId();
+        SeqScan factScan = new SeqScan(tid, fact.getId(), "");
+        StarJoin join = new StarJoin(factScan,
+            new DbIterator[] { new SeqScan(tid, dim1.getId(), ""), new SeqScan(tid, dim2.getId(), "") },
+            new int[] { 1, 2 }, new int[] { 0, 0 });
+        SystemTestUtil.matchTuples(join, expected);
+        assertEquals(0, factScan.getJoinFilters().length);
+
+        join.setJoinFilters(false);
+        SystemTestUtil.matchTuples(join, expected);
+
+        // rewinding returns the same tuples again
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.rewind();
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(2 * expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlanner()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        createTables();
+        Database.getCatalog().addTable(fact, "sales");
+        Database.getCatalog().addTable(dim1, "store");
+        Database.getCatalog().addTable(dim2, "item");
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : expectedJoin()) {
+            ArrayList<Integer> out = new ArrayList<Integer>();
+            out.add(t.get(0));
+            out.add(t.get(4));
+            out.add(t.get(6));
+            expected.add(out);
+        }
+
+        java.util.HashMap<String, TableStats> stats = new java.util.HashMap<String, TableStats>();
+        stats.put("sales", new TableStats(fact.getId(), 100));
+        stats.put("store", new TableStats(dim1.getId(), 100));
+        stats.put("item", new TableStats(dim2.getId(), 100));
+
+        // SELECT sales.c0, store.c1, item.c1 FROM sales, store, item
+        // WHERE sales.c1 = store.c0 AND item.c0 = sales.c2
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(fact.getId(), "sales");
+        lp.addScan(dim1.getId(), "store");
+        lp.addScan(dim2.getId(), "item");
+        lp.addJoin("sales.c1", "store.c0", Predicate.Op.EQUALS);
+        lp.addJoin("item.c0", "sales.c2", Predicate.Op.EQUALS);
+        lp.addProjectField("sales.c0", null);
+        lp.addProjectField("store.c1", null);
+        lp.addProjectField("item.c1", null);
+        TransactionId tid = new TransactionId();
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(containsStarJoin(plan));
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Dimensions that together exceed the memory limit of a StarJoin are
+     * left to the binary join ordering.
+     */
+    @Test public void testDimensionLimit()
+            throws IOException, DbException, TransactionAbortedException {
+        createTables();
+        java.util.HashMap<String, TableStats> stats = new java.util.HashMap<String, TableStats>();
+        stats.put("sales", new TableStats(fact.getId(), 100));
+        stats.put("store", new TableStats(dim1.getId(), 100));
+        stats.put("item", new TableStats(dim2.getId(), 100));
+        java.util.HashMap<String, Double> selectivities = new java.util.HashMap<String, Double>();
+
+        java.util.Vector<LogicalJoinNode> joins = new java.util.Vector<LogicalJoinNode>();
+        joins.add(new LogicalJoinNode("sales", "store", "c1", "c0", Predicate.Op.EQUALS));
+        joins.add(new LogicalJoinNode("item", "sales", "c0", "c2", Predicate.Op.EQUALS));
+        JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), joins);
+        assertEquals("sales", jo.findStarJoin(stats, selectivities));
+
+        jo.setStarJoinMaxTuples(2 * DIM_ROWS);
+        assertEquals("sales", jo.findStarJoin(stats, selectivities));
+        jo.setStarJoinMaxTuples(2 * DIM_ROWS - 1);
+        assertNull(jo.findStarJoin(stats, selectivities));
+    }
+
+    private static boolean containsStarJoin(DbIterator it) {
+        if (it instanceof StarJoin)
+            return true;
+        if (!(it instanceof Operator))
+            return false;
+        for (DbIterator child : ((Operator)it).getChildren()) {
+            if (containsStarJoin(child))
+                return true;
+        }
+        return false;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StarJoinTest.class);
+    }
+}
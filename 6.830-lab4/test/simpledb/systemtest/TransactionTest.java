@@ -7,23 +7,54 @@ import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 
+import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import simpledb.*;
 
 import static org.junit.Assert.*;
 
 /**
- * Tests running concurrent transactions.
+ * Tests running concurrent transactions, under each deadlock policy of
+ * LockSet.
  * You do not need to pass this test until lab3.
  */
+@RunWith(Parameterized.class)
 public class TransactionTest extends SimpleDbTestBase {
     // Wait up to 10 minutes for the test to complete
     private static final int TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final LockSet.Policy policy;
+
+    @Parameters public static Collection<Object[]> policies() {
+        ArrayList<Object[]> result = new ArrayList<Object[]>();
+        for (LockSet.Policy p : LockSet.Policy.values())
+            result.add(new Object[] { p });
+        return result;
+    }
+
+    public TransactionTest(LockSet.Policy policy) {
+        this.policy = policy;
+    }
+
+    @Before public void setPolicy() {
+        Database.getBufferPool().getLockSet().setPolicy(policy);
+    }
+
     private void validateTransactions(int threads)
             throws DbException, TransactionAbortedException, IOException {
+        validateTransactions(threads, Transaction.Concurrency.LOCKING);
+    }
+
+    private void validateTransactions(int threads, Transaction.Concurrency concurrency)
+            throws DbException, TransactionAbortedException, IOException {
         // Create a table with a single integer value = 0
         HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
         columnSpecification.put(0, 0);
@@ -32,7 +63,7 @@ public class TransactionTest extends SimpleDbTestBase {
         ModifiableCyclicBarrier latch = new ModifiableCyclicBarrier(threads);
         XactionTester[] list = new XactionTester[threads];
         for(int i = 0; i < list.length; i++) {
-            list[i] = new XactionTester(table.getId(), latch);
+            list[i] = new XactionTester(table.getId(), latch, concurrency);
             list[i].start();
         }
 
@@ -73,12 +104,15 @@ public class TransactionTest extends SimpleDbTestBase {
     private static class XactionTester extends Thread {
         private final int tableId;
         private final ModifiableCyclicBarrier latch;
+        private final Transaction.Concurrency concurrency;
         public Exception exception = null;
         public boolean completed = false;
 
-        public XactionTester(int tableId, ModifiableCyclicBarrier latch) {
+        public XactionTester(int tableId, ModifiableCyclicBarrier latch,
+                Transaction.Concurrency concurrency) {
             this.tableId = tableId;
             this.latch = latch;
+            this.concurrency = concurrency;
         }
 
         public void run() {
@@ -87,7 +121,7 @@ public class TransactionTest extends SimpleDbTestBase {
                 while (true) {
                     // Wait for all threads to be ready
                     latch.await();
-                    Transaction tr = new Transaction();
+                    Transaction tr = new Transaction(concurrency);
                     try {
                         tr.start();
                         SeqScan ss1 = new SeqScan(tr.getId(), tableId, "");
@@ -226,6 +260,11 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
+    @Test public void testOptimisticFiveThreads()
+    throws IOException, DbException, TransactionAbortedException {
+        validateTransactions(5, Transaction.Concurrency.OPTIMISTIC);
+    }
+
     @Test public void testAllDirtyFails()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data